@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.benchmarks;
+
+import ch.epfl.leb.alica.Analyzer;
+import ch.epfl.leb.alica.analyzers.AnalyzerFactory;
+import ch.epfl.leb.alica.analyzers.autolase.AutoLase;
+import ch.epfl.leb.alica.analyzers.integrator.Integrator;
+import ch.epfl.leb.alica.analyzers.quickpalm.QuickPalm;
+import ch.epfl.leb.alica.analyzers.spotcounter.SpotCounter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures time and allocation per frame of all analyzers, including the
+ * plugin analyzers loaded by the AnalyzerFactory, on synthetic blinking
+ * frames of several sizes and emitter densities. Run through the
+ * "bench-analyzers" Ant target.
+ *
+ * The built-in analyzers run with fixed settings, and with as many threads
+ * as their setup panels use. QuickPalm gets its parameters directly
+ * instead of from its dialog, so the benchmark also runs on a headless JVM.
+ * Plugin analyzers are built by their setup panels with default settings;
+ * a plugin analyzer which can not be built is reported and skipped.
+ * @author Marcel Stefko
+ */
+public class AllAnalyzersBenchmark {
+    private static final List<String> BUILT_IN = Arrays.asList(
+            "SpotCounter", "AutoLase", "QuickPalm", "Integrator");
+    // as in the setup panels
+    private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int[] SIZES = {256, 1024, 2048};
+    // emitters which are on in each 256x256 area of a frame
+    private static final int[] DENSITIES = {5, 50, 500};
+    // pixels processed per measurement, the number of frames is scaled so
+    // that each size takes about the same time
+    private static final long WARMUP_PIXELS = 200L * 256 * 256;
+    private static final long MEASURED_PIXELS = 500L * 256 * 256;
+
+    /**
+     * @param args names of the analyzers to measure, all if empty
+     */
+    public static void main(String[] args) {
+        AnalyzerFactory factory = new AnalyzerFactory();
+        List<String> names = new ArrayList<String>(BUILT_IN);
+        for (String name: factory.getProductNameList()) {
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        if (args.length > 0) {
+            names.retainAll(Arrays.asList(args));
+        }
+
+        List<String> skipped = new ArrayList<String>();
+        System.out.println(String.format("%-12s %11s %8s %28s",
+                "analyzer", "size", "emitters", "steady state"));
+        for (int size: SIZES) {
+            int pixels = size * size;
+            int warmup = (int) Math.max(10, WARMUP_PIXELS / pixels);
+            int measured = (int) Math.max(20, MEASURED_PIXELS / pixels);
+            for (int density: DENSITIES) {
+                int emitters = density * pixels / (256 * 256);
+                short[][] frames = SyntheticFrames.generate(size, size, emitters,
+                        Math.min(20, measured), 1);
+                for (String name: names) {
+                    if (skipped.contains(name)) {
+                        continue;
+                    }
+                    Analyzer analyzer;
+                    try {
+                        analyzer = build(factory, name);
+                    } catch (RuntimeException ex) {
+                        System.out.println(String.format("%-12s skipped: %s", name, ex));
+                        skipped.add(name);
+                        continue;
+                    }
+                    AnalyzerBenchmark.Result result = AnalyzerBenchmark.measure(
+                            analyzer, frames, size, size, warmup, measured);
+                    analyzer.dispose();
+                    System.out.println(String.format("%-12s %5dx%-5d %8d %s",
+                            name, size, size, emitters, result));
+                }
+            }
+        }
+    }
+
+    private static Analyzer build(AnalyzerFactory factory, String name) {
+        if (name.equals("SpotCounter")) {
+            return new SpotCounter(80, 5, false, N_THREADS);
+        } else if (name.equals("AutoLase")) {
+            return new AutoLase(120, N_THREADS);
+        } else if (name.equals("QuickPalm")) {
+            // defaults of the QuickPALM dialog
+            return new QuickPalm(false, 5, 4.0, 106.0);
+        } else if (name.equals("Integrator")) {
+            return new Integrator();
+        } else {
+            factory.selectProduct(name);
+            return factory.build();
+        }
+    }
+}
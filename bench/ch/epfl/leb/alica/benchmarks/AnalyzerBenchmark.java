@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.benchmarks;
+
+import ch.epfl.leb.alica.Analyzer;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures processing time and heap allocation per frame of an Analyzer.
+ *
+ * Allocation is read from the per-thread allocation counters of the HotSpot
+ * JVM and summed over all live threads, so the allocation of the worker
+ * threads of parallel analyzers is included. If the counters are not
+ * available, bytes per frame are reported as NaN.
+ * @author Marcel Stefko
+ */
+public class AnalyzerBenchmark {
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN;
+
+    static {
+        com.sun.management.ThreadMXBean bean = null;
+        try {
+            bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!bean.isThreadAllocatedMemorySupported()) {
+                bean = null;
+            } else {
+                bean.setThreadAllocatedMemoryEnabled(true);
+            }
+        } catch (Throwable ex) {
+            bean = null;
+        }
+        THREAD_BEAN = bean;
+    }
+
+    /**
+     * Result of a single benchmark run.
+     */
+    public static class Result {
+        /**
+         * Mean wall-clock time per frame in nanoseconds.
+         */
+        public final double ns_per_frame;
+
+        /**
+         * Mean heap allocation per frame in bytes on all threads, NaN if
+         * unknown.
+         */
+        public final double bytes_per_frame;
+
+        Result(double ns_per_frame, double bytes_per_frame) {
+            this.ns_per_frame = ns_per_frame;
+            this.bytes_per_frame = bytes_per_frame;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%12.0f ns/frame %12.1f B/frame", ns_per_frame, bytes_per_frame);
+        }
+    }
+
+    /**
+     * Feed the frames to the analyzer repeatedly, and measure the steady state.
+     * The batch output is queried every 10 frames, like a controller would.
+     * @param analyzer analyzer to be measured
+     * @param frames frames as 1D raw pixel arrays, cycled through
+     * @param width frame width in pixels
+     * @param height frame height in pixels
+     * @param warmup_frames number of frames processed before measurement
+     * @param measured_frames number of frames processed during measurement
+     * @return measured time and allocation per frame
+     */
+    public static Result measure(Analyzer analyzer, Object[] frames, int width,
+            int height, int warmup_frames, int measured_frames) {
+        run(analyzer, frames, width, height, warmup_frames);
+        long bytes_start = allocatedBytes();
+        long time_start = System.nanoTime();
+        run(analyzer, frames, width, height, measured_frames);
+        long time_end = System.nanoTime();
+        long bytes_end = allocatedBytes();
+        double bytes_per_frame = (bytes_start < 0) ? Double.NaN :
+                (double) (bytes_end - bytes_start) / measured_frames;
+        return new Result((double) (time_end - time_start) / measured_frames, bytes_per_frame);
+    }
+
+    private static void run(Analyzer analyzer, Object[] frames, int width,
+            int height, int n_frames) {
+        for (int i = 0; i < n_frames; i++) {
+            analyzer.processImage(frames[i % frames.length], width, height, 0.1, i);
+            if (i % 10 == 9) {
+                analyzer.getBatchOutput();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return bytes allocated so far by all live threads, or -1 if unknown
+     */
+    public static long allocatedBytes() {
+        if (THREAD_BEAN == null) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes: THREAD_BEAN.getThreadAllocatedBytes(THREAD_BEAN.getAllThreadIds())) {
+            // -1 for threads which ended in between
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
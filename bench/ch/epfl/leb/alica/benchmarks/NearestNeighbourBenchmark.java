@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.benchmarks;
+
+import ch.epfl.leb.alica.analyzers.spotcounter.NearestNeighbourGrid;
+import java.util.Random;
+
+/**
+ * Compares the grid nearest neighbour search of the SpotCounter with the
+ * all-pairs search it replaced, at 100, 1k and 10k spots in a 2048x2048
+ * field of view.
+ * @author Marcel Stefko
+ */
+public class NearestNeighbourBenchmark {
+    private static final int FIELD_SIZE = 2048;
+
+    /**
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        int[] spot_counts = {100, 1000, 10000};
+        NearestNeighbourGrid grid = new NearestNeighbourGrid();
+        for (int n: spot_counts) {
+            Random random = new Random(n);
+            int[] xs = new int[n];
+            int[] ys = new int[n];
+            for (int i = 0; i < n; i++) {
+                xs[i] = random.nextInt(FIELD_SIZE);
+                ys[i] = random.nextInt(FIELD_SIZE);
+            }
+            double[] distances = new double[n];
+            // keep the total work of the brute force around a few seconds
+            int iterations = (int) Math.max(3, 2e9 / ((double) n * n));
+            int grid_iterations = Math.max(iterations, 1000);
+
+            double brute_ns = 0;
+            double grid_ns = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                // first pass is a warmup
+                long start = System.nanoTime();
+                for (int it = 0; it < iterations; it++) {
+                    NearestNeighbourGrid.computeDistancesBruteForce(xs, ys, n, distances);
+                }
+                brute_ns = (double) (System.nanoTime() - start) / iterations;
+                start = System.nanoTime();
+                for (int it = 0; it < grid_iterations; it++) {
+                    grid.computeDistances(xs, ys, n, distances);
+                }
+                grid_ns = (double) (System.nanoTime() - start) / grid_iterations;
+            }
+            System.out.println(String.format(
+                    "NearestNeighbour %6d spots: all-pairs %12.0f ns, grid %10.0f ns, speedup %6.1fx",
+                    n, brute_ns, grid_ns, brute_ns / grid_ns));
+        }
+    }
+}
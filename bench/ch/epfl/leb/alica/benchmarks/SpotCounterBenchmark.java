@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.benchmarks;
+
+import ch.epfl.leb.alica.analyzers.spotcounter.SpotCounter;
+
+/**
+ * Measures time and allocation per frame of the SpotCounter in steady state,
+ * serially and with the stripe threads which the setup panel uses. Run
+ * through the "bench" Ant target.
+ * @author Marcel Stefko
+ */
+public class SpotCounterBenchmark {
+
+    /**
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        int[] sizes = {256, 1024};
+        int[] densities = {50, 500};
+        // serial, and as built by the SpotCounterSetupPanel
+        int[] thread_counts = {1, Runtime.getRuntime().availableProcessors()};
+        for (int size: sizes) {
+            for (int density: densities) {
+                int emitters = density * size * size / (256 * 256);
+                short[][] frames = SyntheticFrames.generate(size, size, emitters, 20, 1);
+                for (int t = 0; t < thread_counts.length; t++) {
+                    if (t > 0 && thread_counts[t] == thread_counts[t - 1]) {
+                        continue;
+                    }
+                    SpotCounter analyzer = new SpotCounter(80, 5, false, thread_counts[t]);
+                    AnalyzerBenchmark.Result result = AnalyzerBenchmark.measure(
+                            analyzer, frames, size, size, 200, 500);
+                    analyzer.dispose();
+                    System.out.println(String.format(
+                            "SpotCounter %5dx%-5d %6d emitters %2d threads: %s",
+                            size, size, emitters, thread_counts[t], result));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates 16-bit frames of blinking point emitters on a noisy background,
+ * for benchmarking of analyzers.
+ * @author Marcel Stefko
+ */
+public class SyntheticFrames {
+    private static final int BACKGROUND = 100;
+    private static final int NOISE = 20;
+    private static final double PEAK = 1000.0;
+    private static final double SIGMA_PX = 1.3;
+
+    /**
+     * Generate a sequence of frames. Each frame contains a fresh random set
+     * of emitters, so consecutive frames look like a blinking sample.
+     * @param width frame width in pixels
+     * @param height frame height in pixels
+     * @param emitters_per_frame mean number of emitters which are on per frame
+     * @param n_frames number of frames to generate
+     * @param seed seed of the random generator
+     * @return frames as 1D raw pixel arrays
+     */
+    public static short[][] generate(int width, int height,
+            int emitters_per_frame, int n_frames, long seed) {
+        Random random = new Random(seed);
+        short[][] frames = new short[n_frames][];
+        int radius = (int) Math.ceil(3 * SIGMA_PX);
+        for (int f = 0; f < n_frames; f++) {
+            short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (short) (BACKGROUND + random.nextInt(NOISE));
+            }
+            int n_on = (int) Math.max(0, Math.round(emitters_per_frame +
+                    Math.sqrt(emitters_per_frame) * random.nextGaussian()));
+            for (int e = 0; e < n_on; e++) {
+                double cx = random.nextDouble() * width;
+                double cy = random.nextDouble() * height;
+                double peak = PEAK * (0.5 + random.nextDouble());
+                int x0 = Math.max(0, (int) cx - radius);
+                int x1 = Math.min(width - 1, (int) cx + radius);
+                int y0 = Math.max(0, (int) cy - radius);
+                int y1 = Math.min(height - 1, (int) cy + radius);
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        double r2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                        int value = (pixels[y * width + x] & 0xffff) +
+                                (int) (peak * Math.exp(-r2 / (2 * SIGMA_PX * SIGMA_PX)));
+                        pixels[y * width + x] = (short) Math.min(value, 65535);
+                    }
+                }
+            }
+            frames[f] = pixels;
+        }
+        return frames;
+    }
+}
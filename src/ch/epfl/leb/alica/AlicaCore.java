@@ -20,7 +20,9 @@
 package ch.epfl.leb.alica;
 
 import ch.epfl.leb.alica.analyzers.AnalyzerFactory;
+import ch.epfl.leb.alica.workers.AnalysisWorker;
 import ch.epfl.leb.alica.workers.Coordinator;
+import ch.epfl.leb.alica.workers.FrameTrigger;
 import ch.epfl.leb.alica.controllers.ControllerFactory;
 import ch.epfl.leb.alica.lasers.LaserFactory;
 import ij.IJ;
@@ -47,6 +49,8 @@ public final class AlicaCore {
     private final LaserFactory laser_factory;
     
     private int controller_tick_rate_ms = 500;
+    private int control_frames_per_tick = 0;
+    private double control_statistics_target = 0.0;
     private Roi ROI;
     
 
@@ -140,6 +144,34 @@ public final class AlicaCore {
         this.laser_factory.setLaserVirtual(is_laser_virtual);
     }
     
+    /**
+     * Filters the power settings passed to the laser, so that changes which
+     * are too small, too fast or too frequent do not reach the hardware. A
+     * limit of 0 disables it.
+     * @param absolute_deadband smallest change of power which is issued
+     * @param relative_deadband smallest change relative to the current power
+     *  which is issued (NOT in percent)
+     * @param hysteresis additional change required to reverse the direction
+     *  of the last change
+     * @param max_slew_rate largest change of power per second
+     * @param max_update_rate largest number of power settings per second
+     */
+    public void setLaserActuationFilter(double absolute_deadband, double relative_deadband,
+            double hysteresis, double max_slew_rate, double max_update_rate) {
+        this.laser_factory.setActuationFilter(absolute_deadband, relative_deadband, 
+                hysteresis, max_slew_rate, max_update_rate);
+    }
+    
+    /**
+     * Apply the power settings of a real laser on a separate thread, so
+     * that the control loop does not wait for the hardware.
+     * @param is_laser_asynchronous true if asynchronous, false if the
+     *  control loop waits until each setting is applied
+     */
+    public void setLaserAsynchronous(boolean is_laser_asynchronous) {
+        this.laser_factory.setLaserAsynchronous(is_laser_asynchronous);
+    }
+    
     /**
      * Sets the tick rate for the controller.
      * @param controller_tick_rate_ms delay between two runs of the ControlTask
@@ -149,6 +181,31 @@ public final class AlicaCore {
         this.controller_factory.setControllerTickRateMs(controller_tick_rate_ms);
     }
     
+    /**
+     * Runs the controller after a given number of analyzed frames, instead
+     * of at a fixed tick rate.
+     * @param frames_per_tick number of analyzed frames per control tick, 0
+     *  to use the tick rate
+     */
+    public void setControlFramesPerTick(int frames_per_tick) {
+        if (frames_per_tick < 0)
+            throw new IllegalArgumentException("Number of frames must be non-negative!");
+        this.control_frames_per_tick = frames_per_tick;
+    }
+    
+    /**
+     * In the frame-synchronous mode, runs the controller before the number
+     * of frames per tick is reached, once the sum of the analyzer's
+     * intermittent outputs since the last tick reaches the target.
+     * @param statistics_target target sum of intermittent outputs, 0 to
+     *  disable
+     */
+    public void setControlStatisticsTarget(double statistics_target) {
+        if (statistics_target < 0.0)
+            throw new IllegalArgumentException("Statistics target must be non-negative!");
+        this.control_statistics_target = statistics_target;
+    }
+    
     /**
      * Sets currently selected ROI to the analyzer when it is initialized
      * @return true if ROI is set, false if no ROI is set
@@ -193,10 +250,17 @@ public final class AlicaCore {
         if (coordinator != null) {
             coordinator.dispose();
         }
+        FrameTrigger frame_trigger = null;
+        if (control_frames_per_tick > 0) {
+            frame_trigger = new FrameTrigger(control_frames_per_tick, 
+                    control_statistics_target);
+        }
         // run without headless mode
         coordinator = new Coordinator(studio, analyzer_factory.build(), 
                 controller_factory.build(), laser_factory.build(), imaging_mode,
-                controller_tick_rate_ms, ROI, false);
+                controller_tick_rate_ms, ROI, false, 
+                AnalysisWorker.DEFAULT_FRAME_QUEUE_CAPACITY,
+                AnalysisWorker.DEFAULT_OVERFLOW_POLICY, frame_trigger);
     }
     
     /**
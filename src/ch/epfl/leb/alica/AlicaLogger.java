@@ -19,41 +19,277 @@
  */
 package ch.epfl.leb.alica;
 
+import ch.epfl.leb.alica.logging.ColumnarLog;
+import ch.epfl.leb.alica.logging.CsvLogExporter;
+import ch.epfl.leb.alica.logging.LogRing;
 import ij.IJ;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.JDialog;
 import javax.swing.JFileChooser;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import org.micromanager.LogManager;
 import org.micromanager.Studio;
 import org.micromanager.internal.MMStudio;
 
 /**
- *
+ * Logs messages, and the values of parameters in each frame. Values are
+ * put into a lock-free ring by the logging threads, and a background writer
+ * thread moves them into a ColumnarLog, which streams them to a binary file
+ * during the run; they are converted to csv only when the log is saved.
  * @author stefko
  */
 public class AlicaLogger {
-    private static AlicaLogger instance = null;
+    // created eagerly, so that only one writer thread is ever started
+    private static final AlicaLogger instance = new AlicaLogger();
     private LogManager mm_logger = null;
     
-    private LinkedHashMap<Integer, LinkedHashMap<String,Object>> log_map;
-    private LinkedHashSet<String> parameter_set;
+    private static final int RING_CAPACITY = 1 << 16;
+    // pause of the writer thread if there are no events
+    private static final long WRITER_PERIOD_NS = 10000000L;
+    
+    // channel dictionary of the logger, kept when the log is cleared
+    private final ConcurrentHashMap<String,Integer> channel_ids =
+            new ConcurrentHashMap<String,Integer>();
+    private volatile String[] channel_names = new String[0];
+    
+    private final LogRing ring = new LogRing(RING_CAPACITY);
+    // text values are rare, and are queued as objects
+    private final ConcurrentLinkedQueue<TextEvent> text_events =
+            new ConcurrentLinkedQueue<TextEvent>();
+    
+    // guards the binary log and the draining of the ring
+    private final Object writer_lock = new Object();
+    // created on first use, in a temporary file unless set by setLogFile()
+    private ColumnarLog log = null;
+    private boolean log_is_temporary = false;
+    // channel id of the logger -> channel id in the binary log, -1 if the
+    // channel is not in the log yet
+    private int[] log_channel_ids = new int[0];
+    private boolean write_error_reported = false;
+    private long reported_dropped_count = 0;
+    private final LogRing.EventHandler ring_handler = new LogRing.EventHandler() {
+        @Override
+        public void onEvent(int frame, int channel, double value) {
+            writeEvent(frame, channel, value);
+        }
+    };
+    
+    private final int intermittent_output_channel =
+            getChannelId("analyzer_intermittent_output");
+    private final int batched_output_channel =
+            getChannelId("analyzer_batched_output");
+    private final int controller_output_channel =
+            getChannelId("controller_output");
+    private final int setpoint_channel = getChannelId("setpoint");
+    
+    // converts saved logs to csv, one after another
+    private final ExecutorService export_executor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ALICA log exporter");
+            t.setDaemon(true);
+            return t;
+        }
+    });
     
     private AlicaLogger() {
-        clear();
+        Thread writer_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    int count;
+                    // the thread must survive any error, or the ring fills up
+                    try {
+                        count = drainEvents();
+                    } catch (RuntimeException ex) {
+                        reportWriteError(ex);
+                        count = 0;
+                    }
+                    if (count == 0) {
+                        LockSupport.parkNanos(WRITER_PERIOD_NS);
+                    }
+                }
+            }
+        }, "ALICA log writer");
+        writer_thread.setDaemon(true);
+        writer_thread.start();
     }
     
     /**
      * Resets logger, removes all data.
      */
     public final void clear() {
-        log_map = new LinkedHashMap<Integer, LinkedHashMap<String,Object>>();
-        parameter_set = new LinkedHashSet<String>();
+        synchronized(writer_lock) {
+            drainEvents();
+            Arrays.fill(log_channel_ids, -1);
+            if (log == null)
+                return;
+            try {
+                log.reset();
+            } catch (IOException ex) {
+                logError(ex, "Failed to reset the binary log.");
+            }
+        }
+    }
+    
+    /**
+     * Streams the following log values into a binary log file, which can
+     * later be converted with CsvLogExporter. The current values are
+     * discarded.
+     * @param file binary log file, null for a temporary file
+     * @throws IOException if the file can not be created
+     */
+    public void setLogFile(File file) throws IOException {
+        synchronized(writer_lock) {
+            drainEvents();
+            Arrays.fill(log_channel_ids, -1);
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            if (file != null) {
+                log = new ColumnarLog(file);
+                log_is_temporary = false;
+            }
+        }
+    }
+    
+    /**
+     * Writes the events logged so far into the binary log, and returns it.
+     * @return binary log to which the values are streamed
+     * @throws IOException if the temporary log file can not be created
+     */
+    public ColumnarLog getColumnarLog() throws IOException {
+        synchronized(writer_lock) {
+            drainEvents();
+            return getOrCreateLog();
+        }
+    }
+    
+    private ColumnarLog getOrCreateLog() throws IOException {
+        if (log == null) {
+            File file = File.createTempFile("alica_log", ".bin");
+            file.deleteOnExit();
+            log = new ColumnarLog(file);
+            log_is_temporary = true;
+        }
+        return log;
+    }
+    
+    /**
+     * Moves the queued events into the binary log.
+     * @return number of moved events
+     */
+    private int drainEvents() {
+        synchronized(writer_lock) {
+            int count = ring.drain(ring_handler, RING_CAPACITY);
+            TextEvent event;
+            while ((event = text_events.poll()) != null) {
+                try {
+                    getOrCreateLog().append(event.frame_no,
+                            channel_names[event.channel], event.value);
+                } catch (IOException ex) {
+                    reportWriteError(ex);
+                } catch (RuntimeException ex) {
+                    // text value in a numeric channel, the event is dropped
+                    reportWriteError(ex);
+                }
+                count++;
+            }
+            long dropped_count = ring.getDroppedCount();
+            if (dropped_count != reported_dropped_count) {
+                logMessage("Log events dropped because the log ring was full: "
+                        + (dropped_count - reported_dropped_count));
+                reported_dropped_count = dropped_count;
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Called by the ring for each drained event, with the writer lock held.
+     */
+    private void writeEvent(int frame_no, int channel, double value) {
+        try {
+            ColumnarLog columnar_log = getOrCreateLog();
+            if (channel >= log_channel_ids.length) {
+                int length = log_channel_ids.length;
+                log_channel_ids = Arrays.copyOf(log_channel_ids,
+                        Math.max(channel + 1, 2 * length));
+                Arrays.fill(log_channel_ids, length, log_channel_ids.length, -1);
+            }
+            int log_channel = log_channel_ids[channel];
+            if (log_channel < 0) {
+                log_channel = columnar_log.getChannelId(channel_names[channel], false);
+                log_channel_ids[channel] = log_channel;
+            }
+            columnar_log.append(frame_no, log_channel, value);
+        } catch (IOException ex) {
+            reportWriteError(ex);
+        } catch (RuntimeException ex) {
+            // number in a text channel, the event is dropped
+            reportWriteError(ex);
+        }
+    }
+    
+    private void reportWriteError(Exception ex) {
+        synchronized(writer_lock) {
+            // reported once, as it would be repeated for every event
+            if (!write_error_reported) {
+                write_error_reported = true;
+                logError(ex, "Failed to write to the binary log.");
+            }
+        }
+    }
+    
+    /**
+     *
+     * @return number of log events which were dropped because the writer
+     *  thread could not keep up
+     */
+    public long getDroppedEventCount() {
+        return ring.getDroppedCount();
+    }
+    
+    /**
+     * Returns the id of a parameter, which can be passed to 
+     * addToLog(int, int, double) to avoid the lookup of the name.
+     * @param value_name name of parameter
+     * @return id of the parameter
+     */
+    public int getChannelId(String value_name) {
+        Integer id = channel_ids.get(value_name);
+        if (id != null)
+            return id;
+        synchronized(channel_ids) {
+            id = channel_ids.get(value_name);
+            if (id == null) {
+                String[] names = Arrays.copyOf(channel_names, channel_names.length + 1);
+                names[names.length - 1] = value_name;
+                // name is published before the id can be used
+                channel_names = names;
+                id = names.length - 1;
+                channel_ids.put(value_name, id);
+            }
+            return id;
+        }
     }
     
     /**
@@ -61,9 +297,6 @@ public class AlicaLogger {
      * @return AlicaLogger singleton
      */
     public static AlicaLogger getInstance() {
-        if (instance == null) {
-            instance = new AlicaLogger();
-        }
         return instance;
     }
     
@@ -144,7 +377,7 @@ public class AlicaLogger {
      * @param value value of the output
      */
     public void addIntermittentOutput(int frame_no, double value) {
-        addToLog(frame_no,"analyzer_intermittent_output",value);
+        addToLog(frame_no, intermittent_output_channel, value);
     }
     /**
      * Add batched output of analyzer into log
@@ -152,7 +385,7 @@ public class AlicaLogger {
      * @param value value of the output
      */
     public void addBatchedOutput(int frame_no, double value) {
-        addToLog(frame_no,"analyzer_batched_output",value);
+        addToLog(frame_no, batched_output_channel, value);
     }
     
     /**
@@ -161,7 +394,7 @@ public class AlicaLogger {
      * @param value value of the output
      */
     public void addControllerOutput(int frame_no, double value) {
-        addToLog(frame_no,"controller_output",value);
+        addToLog(frame_no, controller_output_channel, value);
     }
     
     /**
@@ -170,7 +403,7 @@ public class AlicaLogger {
      * @param setpoint value of the output
      */
     public void addSetpoint(int frame_no, double setpoint) {
-        addToLog(frame_no,"setpoint", setpoint);
+        addToLog(frame_no, setpoint_channel, setpoint);
     }
     
     
@@ -181,41 +414,48 @@ public class AlicaLogger {
      * @param value value of parameter
      */
     public void addToLog(int frame_no, String value_name, double value) {
-        parameter_set.add(value_name);
-        if (!log_map.containsKey(frame_no))
-            log_map.put(frame_no, new LinkedHashMap<String,Object>());
-        log_map.get(frame_no).put(value_name, Double.valueOf(value));
+        addToLog(frame_no, getChannelId(value_name), value);
     }
     
     /**
-     * Add a parameter into log
+     * Add a parameter into log, without locking or allocation. The value is
+     * dropped if the writer thread can not keep up.
+     * @param frame_no
+     * @param channel_id id of parameter, from getChannelId()
+     * @param value value of parameter
+     */
+    public void addToLog(int frame_no, int channel_id, double value) {
+        ring.offer(frame_no, channel_id, value);
+    }
+    
+    /**
+     * Add a parameter into log. A parameter holds either numbers or text,
+     * values of the other kind are dropped, and the first one is reported
+     * by logError().
      * @param frame_no
      * @param value_name name of parameter
      * @param value value of parameter
      */
     public void addToLog(int frame_no, String value_name, String value) {
-        parameter_set.add(value_name);
-        if (!log_map.containsKey(frame_no))
-            log_map.put(frame_no, new LinkedHashMap<String,Object>());
-        log_map.get(frame_no).put(value_name, value);
+        if (value == null)
+            throw new NullPointerException("You need to set a value!");
+        text_events.add(new TextEvent(frame_no, getChannelId(value_name), value));
     }
     
     /**
-     * Saves the log into a csv file chosen by file selection dialog.
-     * @return true if save was successful, false otherwise
+     * Saves the log into a csv file chosen by file selection dialog. The
+     * file is written in the background, while a modal progress dialog keeps
+     * the GUI painted, and the log is cleared for the next run right away.
+     * Must be called on the event dispatch thread.
+     * @return true if the csv file was written, false otherwise
      */
     public boolean saveLog() {
-        if (log_map.isEmpty()) {
-            this.showMessage("Log is empty!");
-            return true;
-        }
-        
-        
-        int max_frame_no = 0;
-        // intermittent output should have the largest value
-        for (int key: log_map.keySet()) {
-            if (max_frame_no < key)
-                max_frame_no = key;
+        synchronized(writer_lock) {
+            drainEvents();
+            if (log == null || log.getEventCount() == 0) {
+                this.showMessage("Log is empty!");
+                return true;
+            }
         }
         
         JFileChooser fc = new JFileChooser();
@@ -225,60 +465,236 @@ public class AlicaLogger {
         fc.setDialogType(JFileChooser.SAVE_DIALOG);
         //set a default filename 
         fc.setSelectedFile(new File("alica_log.csv"));
-        //Set an extension filter
-        fc.setFileFilter(new FileNameExtensionFilter("CSV file","csv"));
+        //Set extension filters, which also select the format
+        FileNameExtensionFilter wide_filter = 
+                new FileNameExtensionFilter("CSV file, one row per frame","csv");
+        FileNameExtensionFilter gzip_filter = 
+                new FileNameExtensionFilter("Compressed CSV file, one row per frame","gz");
+        FileNameExtensionFilter sparse_filter = 
+                new FileNameExtensionFilter("Sparse CSV file, one row per value","csv");
+        fc.addChoosableFileFilter(gzip_filter);
+        fc.addChoosableFileFilter(sparse_filter);
+        fc.setFileFilter(wide_filter);
         returnVal = fc.showSaveDialog(null);
         if  (returnVal != JFileChooser.APPROVE_OPTION) {
             return false;
         }
         File csv_output = fc.getSelectedFile();
+        CsvLogExporter.Format format = (fc.getFileFilter() == sparse_filter) ?
+                CsvLogExporter.Format.SPARSE : CsvLogExporter.Format.WIDE;
+        boolean compressed = (fc.getFileFilter() == gzip_filter) ||
+                csv_output.getName().endsWith(".gz");
         
-        PrintWriter writer;
+        final JDialog dialog = new JDialog((java.awt.Frame) null, 
+                "Saving log to " + csv_output.getName(), true);
+        final JProgressBar progress_bar = new JProgressBar(0, 100);
+        progress_bar.setStringPainted(true);
+        dialog.add(progress_bar);
+        dialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        dialog.setSize(350, 70);
+        dialog.setLocationRelativeTo(null);
+        Future<?> result;
         try {
-            writer = new PrintWriter(csv_output.getAbsolutePath());
-        } catch (FileNotFoundException ex) {
-            this.showError(ex, "Can't find file to save.");
+            result = exportCsvAsync(csv_output, format, compressed, 
+                    new CsvLogExporter.ProgressListener() {
+                @Override
+                public void progressChanged(final double fraction) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (fraction >= 1.0) {
+                                dialog.dispose();
+                            } else {
+                                progress_bar.setValue((int) (100 * fraction));
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (IOException ex) {
+            showError(ex, "Can't save the log to " + csv_output.getPath() + ".");
             return false;
         }
-        
-        writer.print("#frame_no");
-        for (String s: parameter_set) {
-            writer.print(','+s);
+        // the dialog is closed by the last progress report, which is
+        // processed by the event loop of the modal dialog
+        if (!result.isDone()) {
+            dialog.setVisible(true);
         }
-        writer.print("\n");
-        
-        
-        LinkedHashMap<String,Object> value_cache = log_map.get(1);
-        if (value_cache == null) {
-            value_cache = new LinkedHashMap<String,Object>();
+        try {
+            result.get();
+            return true;
+        } catch (ExecutionException ex) {
+            // already shown by exportCsvAsync()
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    /**
+     * Converts the values logged so far into a csv file, with one row per
+     * frame and one column per parameter. Values logged during the export
+     * are kept in the log, but are not exported. The log must not be
+     * cleared or replaced during the export.
+     * @param csv_output output csv file
+     * @throws IOException if the log can not be read or the file written
+     */
+    public void exportCsv(File csv_output) throws IOException {
+        File log_file;
+        long log_length;
+        synchronized(writer_lock) {
+            ColumnarLog columnar_log = getColumnarLog();
+            columnar_log.flush();
+            log_file = columnar_log.getFile();
+            log_length = columnar_log.getFileLength();
         }
-        for (String s: parameter_set) {
-            if (value_cache.get(s) == null) {
-                value_cache.put(s, 0.0);
+        // the lock is released, so that the writer thread keeps draining the
+        // ring, and appends after the exported part of the file
+        new CsvLogExporter().export(log_file, log_length, csv_output, false);
+    }
+    
+    /**
+     * Converts the values logged so far into a csv file on a background
+     * thread, and clears the log for the following values. If the log file
+     * was set by setLogFile(), the following values are streamed into a new
+     * file next to it, see nextLogFile(). Errors are shown by showError().
+     * If the export fails, the binary log of the values is kept, and its
+     * path is shown with the error.
+     * @param csv_output output csv file
+     * @param format layout of the csv table
+     * @param compressed if true, the csv file is compressed by gzip
+     * @param listener receives the progress of the export, can be null
+     * @return future which completes when the file is written, or fails
+     *  with the error of the export
+     * @throws IOException if the output file can not be created, the log
+     *  is then kept
+     */
+    public Future<?> exportCsvAsync(final File csv_output,
+            CsvLogExporter.Format format, final boolean compressed,
+            CsvLogExporter.ProgressListener listener) throws IOException {
+        // fails before the log is detached if the file can not be written
+        new FileOutputStream(csv_output).close();
+        final File log_file;
+        final boolean is_temporary;
+        synchronized(writer_lock) {
+            drainEvents();
+            // the log is closed, and a new one is created for the next values
+            try {
+                getOrCreateLog().close();
+            } catch (IOException ex) {
+                logError(ex, "Failed to close the binary log.");
+            }
+            log_file = log.getFile();
+            is_temporary = log_is_temporary;
+            log = null;
+            Arrays.fill(log_channel_ids, -1);
+            if (!is_temporary) {
+                File next_file = nextLogFile(log_file);
+                try {
+                    log = new ColumnarLog(next_file);
+                    log_is_temporary = false;
+                } catch (IOException ex) {
+                    logError(ex, "Failed to create the binary log " + 
+                            next_file.getPath() + ", using a temporary file.");
+                }
             }
         }
-        
-        for (int i=1; i<=max_frame_no; i++) {
-            writer.print(i);
-            
-            LinkedHashMap<String,Object> frame_map = log_map.get(i);
-            if (frame_map == null)
-                frame_map = new LinkedHashMap<String,Object>();
+        final CsvLogExporter exporter = new CsvLogExporter(format);
+        final CsvLogExporter.ProgressListener exporter_listener = listener;
+        exporter.setProgressListener(listener);
+        return export_executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    exporter.export(log_file, csv_output, compressed);
+                } catch (IOException ex) {
+                    exportFailed(ex);
+                    throw ex;
+                } catch (RuntimeException ex) {
+                    exportFailed(ex);
+                    throw ex;
+                }
+                // only deleted once its values are saved
+                if (is_temporary) {
+                    log_file.delete();
+                }
+                return null;
+            }
             
-            for (String s: parameter_set) {
-                Object output = frame_map.get(s);
-                if (output==null) {
-                    output = value_cache.get(s);
-                } else {
-                    value_cache.put(s, output);
+            private void exportFailed(Exception ex) {
+                showError(ex, "Can't save the log. Its values are kept in " + 
+                        keepLogFile(log_file, is_temporary).getPath() + ".");
+                // lets progress displays close
+                if (exporter_listener != null) {
+                    exporter_listener.progressChanged(1.0);
                 }
-                writer.print(",");
-                writer.print(output.toString());
             }
-            writer.print("\n");
+        });
+    }
+    
+    /**
+     * Keeps a binary log whose export failed. A temporary log is renamed,
+     * as it would be deleted on exit.
+     * @param log_file binary log
+     * @param is_temporary true if the log is in a temporary file
+     * @return file which holds the log
+     */
+    private File keepLogFile(File log_file, boolean is_temporary) {
+        if (!is_temporary)
+            return log_file;
+        File kept_file = nextLogFile(log_file);
+        if (log_file.renameTo(kept_file))
+            return kept_file;
+        logError(null, "Failed to rename the binary log " + log_file.getPath() + ".");
+        return log_file;
+    }
+    
+    /**
+     * Returns the first file which does not exist yet out of name_1.ext,
+     * name_2.ext, ... in the directory of the given file, where name.ext is
+     * its name with any previous _number suffix removed.
+     * @param file current log file
+     * @return file for the following values
+     */
+    static File nextLogFile(File file) {
+        String name = file.getName();
+        String extension = "";
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            extension = name.substring(dot);
+            name = name.substring(0, dot);
+        }
+        int underscore = name.lastIndexOf('_');
+        int number = 0;
+        if (underscore > 0 && underscore < name.length() - 1) {
+            try {
+                number = Integer.parseInt(name.substring(underscore + 1));
+                name = name.substring(0, underscore);
+            } catch (NumberFormatException ex) {
+                number = 0;
+            }
+        }
+        File next;
+        do {
+            number++;
+            next = new File(file.getParentFile(), name + "_" + number + extension);
+        } while (next.exists());
+        return next;
+    }
+    
+    /**
+     * Text value waiting for the writer thread.
+     */
+    private static class TextEvent {
+        final int frame_no;
+        final int channel;
+        final String value;
+        
+        TextEvent(int frame_no, int channel, String value) {
+            this.frame_no = frame_no;
+            this.channel = channel;
+            this.value = value;
         }
-        writer.close();
-        this.clear();
-        return true;
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica;
+
+/**
+ * Provides images for analysis to the AnalysisWorker, in place of the
+ * Micro-Manager core or pipeline.
+ * 
+ * An image source is used by a single analysis thread. Images are returned
+ * as 1D raw pixel data, in the same form as passed to
+ * Analyzer.processImage().
+ * @author Marcel Stefko
+ */
+public interface ImageSource {
+    
+    /**
+     * Wait until a new image is available.
+     * @param timeout_ns maximal waiting time in nanoseconds
+     * @return pixels of the new image, or null if none arrived in time
+     * @throws InterruptedException if waiting is interrupted
+     */
+    public Object waitForNewImage(long timeout_ns) throws InterruptedException;
+    
+    /**
+     *
+     * @return width of the images in pixels
+     */
+    public int getImageWidth();
+    
+    /**
+     *
+     * @return height of the images in pixels
+     */
+    public int getImageHeight();
+    
+    /**
+     *
+     * @return length of one pixel side in micrometers
+     */
+    public double getPixelSizeUm();
+    
+    /**
+     *
+     * @return number of the last returned image, or -1 if none
+     */
+    public long getLastImageNumber();
+    
+    /**
+     *
+     * @return true if the source will not provide any more images
+     */
+    public boolean isExhausted();
+    
+    /**
+     * Release the resources of the source.
+     */
+    public void close();
+}
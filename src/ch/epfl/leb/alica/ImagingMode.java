@@ -30,6 +30,13 @@ public enum ImagingMode {
      */
     GRAB_FROM_CORE,
 
+    /**
+     * Query the MMCore circular buffer, but instead of polling at a fixed
+     * rate, wait until shortly before the next image is expected (predicted
+     * from the measured inter-frame interval), then spin briefly and back off.
+     */
+    GRAB_FROM_CORE_ADAPTIVE,
+
     /**
      * Get images from the Datastore associated with live() mode.
      */
@@ -39,5 +46,11 @@ public enum ImagingMode {
      * Get images from the Datastore which is associated with the next
      * acquisition that will be started.
      */
-    NEXT_ACQUISITION
+    NEXT_ACQUISITION,
+    
+    /**
+     * Get images from an ImageSource passed to the Coordinator, such as a
+     * recorded stack replayed by a FileImageSource, without Micro-Manager.
+     */
+    IMAGE_SOURCE
 }
@@ -583,8 +583,8 @@ public final class MainGUI extends JFrame {
             AlicaLogger.getInstance().showMessage("Error in parsing controller tick rate.");
             return;
         }
-        if (controller_tick_rate<50) {
-            AlicaLogger.getInstance().showMessage("Controller tick rate must be at least 50ms.");
+        if (controller_tick_rate<10) {
+            AlicaLogger.getInstance().showMessage("Controller tick rate must be at least 10ms.");
             return;
         }
         alica_core.setControlWorkerTickRate(controller_tick_rate);
@@ -602,8 +602,8 @@ public final class MainGUI extends JFrame {
     }//GEN-LAST:event_b_worker_startActionPerformed
 
     private void b_save_last_run_logActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_b_save_last_run_logActionPerformed
-        AlicaLogger.getInstance().saveLog();
-        this.log_is_saved = true;
+        if (AlicaLogger.getInstance().saveLog())
+            this.log_is_saved = true;
     }//GEN-LAST:event_b_save_last_run_logActionPerformed
 
     private void b_set_roiActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_b_set_roiActionPerformed
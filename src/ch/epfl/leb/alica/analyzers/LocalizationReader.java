@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a localization file written by LocalizationWriter. The file can be
+ * read while it is being written; only frames which the writer has ended
+ * are visible, and refresh() makes newly ended frames visible.
+ * @author Marcel Stefko
+ */
+public class LocalizationReader {
+    private final RandomAccessFile records_file;
+    private final RandomAccessFile index_file;
+    private final Segments records;
+    private final Segments index;
+    private MappedByteBuffer records_header;
+    private MappedByteBuffer index_header;
+    private long record_count = 0;
+    private long frame_count = 0;
+
+    /**
+     * Opens the localization file and its frame index.
+     * @param file localization file
+     * @throws IOException if the files can not be opened or are not
+     *  localization files
+     */
+    public LocalizationReader(File file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("You need to set a file!");
+        records_file = new RandomAccessFile(file, "r");
+        records = new Segments(records_file, LocalizationWriter.RECORD_BYTES,
+                LocalizationWriter.SEGMENT_RECORDS);
+        try {
+            index_file = new RandomAccessFile(LocalizationWriter.getIndexFile(file), "r");
+        } catch (IOException ex) {
+            records_file.close();
+            throw ex;
+        }
+        index = new Segments(index_file, LocalizationWriter.INDEX_ENTRY_BYTES,
+                LocalizationWriter.INDEX_SEGMENT_ENTRIES);
+        try {
+            records_header = checkHeader(records_file, LocalizationWriter.MAGIC,
+                    LocalizationWriter.RECORD_BYTES);
+            index_header = checkHeader(index_file, LocalizationWriter.INDEX_MAGIC,
+                    LocalizationWriter.INDEX_ENTRY_BYTES);
+            refresh();
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private static MappedByteBuffer checkHeader(RandomAccessFile file, long magic,
+            int entry_bytes) throws IOException {
+        MappedByteBuffer header = file.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, LocalizationWriter.HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getLong(LocalizationWriter.MAGIC_OFFSET) != magic)
+            throw new IOException("Not a localization file!");
+        if (header.getInt(LocalizationWriter.VERSION_OFFSET) != LocalizationWriter.VERSION)
+            throw new IOException("Unsupported localization file version!");
+        if (header.getInt(LocalizationWriter.ENTRY_SIZE_OFFSET) != entry_bytes)
+            throw new IOException("Unexpected record size!");
+        return header;
+    }
+
+    /**
+     * Updates the record and frame counts to what the writer has published.
+     */
+    public synchronized void refresh() {
+        long frames, count;
+        while (true) {
+            // the counts are consistent if the writer did not update them
+            // while they were read
+            long sequence = records_header.getLong(LocalizationWriter.SEQUENCE_OFFSET);
+            frames = index_header.getLong(LocalizationWriter.COUNT_OFFSET);
+            count = records_header.getLong(LocalizationWriter.COUNT_OFFSET);
+            if (sequence % 2 == 0 && sequence ==
+                    records_header.getLong(LocalizationWriter.SEQUENCE_OFFSET))
+                break;
+            Thread.yield();
+        }
+        record_count = count;
+        frame_count = frames;
+        records.invalidate();
+        index.invalidate();
+    }
+
+    /**
+     *
+     * @return number of localizations visible to the reader
+     */
+    public synchronized long getRecordCount() {
+        return record_count;
+    }
+
+    /**
+     *
+     * @return number of frames visible to the reader
+     */
+    public synchronized long getFrameCount() {
+        return frame_count;
+    }
+
+    /**
+     * Reads a localization.
+     * @param record index of the localization
+     * @param values receives x, y, z and intensity
+     * @return frame number of the localization
+     * @throws IOException if the file can not be mapped
+     */
+    public synchronized int readRecord(long record, float[] values)
+            throws IOException {
+        if (record < 0 || record >= record_count)
+            throw new IndexOutOfBoundsException("Record " + record + " is not available!");
+        MappedByteBuffer segment = records.segmentFor(record, record_count);
+        int position = records.positionOf(record);
+        values[0] = segment.getFloat(position + 4);
+        values[1] = segment.getFloat(position + 8);
+        values[2] = segment.getFloat(position + 12);
+        values[3] = segment.getFloat(position + 16);
+        return segment.getInt(position);
+    }
+
+    /**
+     *
+     * @param entry index of the frame in the file
+     * @return frame number of the entry
+     * @throws IOException if the index file can not be mapped
+     */
+    public synchronized int getFrameNumber(long entry) throws IOException {
+        checkEntry(entry);
+        return (int) index.segmentFor(entry, frame_count)
+                .getLong(index.positionOf(entry));
+    }
+
+    /**
+     *
+     * @param entry index of the frame in the file
+     * @return index of the first localization of the frame
+     * @throws IOException if the index file can not be mapped
+     */
+    public synchronized long getFirstRecord(long entry) throws IOException {
+        checkEntry(entry);
+        return index.segmentFor(entry, frame_count)
+                .getLong(index.positionOf(entry) + 8);
+    }
+
+    /**
+     *
+     * @param entry index of the frame in the file
+     * @return number of localizations in the frame
+     * @throws IOException if the index file can not be mapped
+     */
+    public synchronized long getFrameRecordCount(long entry) throws IOException {
+        long next = (entry + 1 < frame_count) ?
+                getFirstRecord(entry + 1) : record_count;
+        return next - getFirstRecord(entry);
+    }
+
+    private void checkEntry(long entry) {
+        if (entry < 0 || entry >= frame_count)
+            throw new IndexOutOfBoundsException("Frame " + entry + " is not available!");
+    }
+
+    /**
+     * Closes the files.
+     * @throws IOException if the files can not be closed
+     */
+    public synchronized void close() throws IOException {
+        records.invalidate();
+        index.invalidate();
+        records_header = null;
+        index_header = null;
+        try {
+            records_file.close();
+        } finally {
+            index_file.close();
+        }
+    }
+
+    /**
+     * Read-only view of the entries of a file, mapped in segments.
+     */
+    private static class Segments {
+        private final RandomAccessFile file;
+        private final int entry_bytes;
+        private final int segment_entries;
+        private MappedByteBuffer segment = null;
+        private long segment_index = -1;
+
+        Segments(RandomAccessFile file, int entry_bytes, int segment_entries) {
+            this.file = file;
+            this.entry_bytes = entry_bytes;
+            this.segment_entries = segment_entries;
+        }
+
+        MappedByteBuffer segmentFor(long entry, long count) throws IOException {
+            long index = entry / segment_entries;
+            if (index != segment_index || segment == null) {
+                long first = index * segment_entries;
+                // the last segment only covers the published entries, it is
+                // mapped again after refresh()
+                long length = Math.min(segment_entries, count - first) * entry_bytes;
+                segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        LocalizationWriter.HEADER_BYTES + first * entry_bytes, length);
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segment_index = index;
+            }
+            return segment;
+        }
+
+        int positionOf(long entry) {
+            return (int) (entry % segment_entries) * entry_bytes;
+        }
+
+        void invalidate() {
+            segment = null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams localizations of an analyzer into a memory-mapped binary file.
+ *
+ * The file starts with a header of HEADER_BYTES bytes, followed by records
+ * of RECORD_BYTES bytes (int frame, float x, y, z in pixels/nm, float
+ * intensity), all little-endian. The frame index is written to a second
+ * file with the suffix ".idx": a header followed by one (long frame,
+ * long first record) entry per frame. The record and frame counts in the
+ * headers are updated after each frame, so both files can be read by
+ * LocalizationReader while the acquisition runs.
+ *
+ * The files are mapped in segments, so appending a record allocates
+ * nothing on the heap.
+ * @author Marcel Stefko
+ */
+public class LocalizationWriter {
+    /**
+     * Magic bytes at the start of the localization file.
+     */
+    public static final long MAGIC = 0x434f4c4143494c41L; // "ALICALOC"
+    /**
+     * Magic bytes at the start of the frame index file.
+     */
+    public static final long INDEX_MAGIC = 0x5844494143494c41L; // "ALICAIDX"
+    /**
+     * Version of the file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Size of the headers of both files in bytes.
+     */
+    public static final int HEADER_BYTES = 64;
+    /**
+     * Size of one localization record in bytes.
+     */
+    public static final int RECORD_BYTES = 20;
+    /**
+     * Size of one frame index entry in bytes.
+     */
+    public static final int INDEX_ENTRY_BYTES = 16;
+
+    // header field offsets
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 8;
+    static final int ENTRY_SIZE_OFFSET = 12;
+    static final int COUNT_OFFSET = 16;
+    // sequence number in the header of the localization file, odd while the
+    // counts of both files are being updated
+    static final int SEQUENCE_OFFSET = 24;
+
+    // records per mapped segment of the localization file
+    static final int SEGMENT_RECORDS = 1 << 22;
+    // entries per mapped segment of the index file
+    static final int INDEX_SEGMENT_ENTRIES = 1 << 16;
+
+    private final File file;
+    private final MappedFile records;
+    private final MappedFile index;
+
+    private long record_count = 0;
+    private long frame_count = 0;
+    private int current_frame = 0;
+    private boolean in_frame = false;
+    private long sequence = 0;
+
+    /**
+     * Creates the localization file and its frame index, and overwrites
+     * them if they exist.
+     * @param file localization file, the index is stored next to it
+     * @throws IOException if the files can not be created
+     */
+    public LocalizationWriter(File file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("You need to set a file!");
+        this.file = file;
+        this.records = new MappedFile(file, MAGIC, RECORD_BYTES, SEGMENT_RECORDS);
+        try {
+            this.index = new MappedFile(getIndexFile(file), INDEX_MAGIC,
+                    INDEX_ENTRY_BYTES, INDEX_SEGMENT_ENTRIES);
+        } catch (IOException ex) {
+            records.close(0);
+            throw ex;
+        }
+    }
+
+    /**
+     *
+     * @param file localization file
+     * @return frame index file belonging to the localization file
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    /**
+     * Starts a new frame. Localizations added until endFrame() belong to it.
+     * 
+     * Frames are numbered from 1 in the order of analysis, as in the ALICA
+     * log and in ImageJ stacks. Analyzers which write localizations follow
+     * this convention, so that files of different analyzers can be compared.
+     * @param frame frame number, starting from 1
+     * @throws IOException if the index file can not be extended
+     */
+    public synchronized void beginFrame(int frame) throws IOException {
+        if (in_frame)
+            endFrame();
+        MappedByteBuffer segment = index.segmentFor(frame_count);
+        int position = index.positionOf(frame_count);
+        segment.putLong(position, frame);
+        segment.putLong(position + 8, record_count);
+        current_frame = frame;
+        in_frame = true;
+    }
+
+    /**
+     * Appends a localization to the current frame.
+     * @param x_px x-position in pixels
+     * @param y_px y-position in pixels
+     * @param z_nm z-position in nanometers, 0 for 2D localizations
+     * @param intensity intensity of the localization
+     * @throws IOException if the file can not be extended
+     */
+    public synchronized void add(float x_px, float y_px, float z_nm, float intensity)
+            throws IOException {
+        if (!in_frame)
+            throw new IllegalStateException("beginFrame() needs to be called first!");
+        MappedByteBuffer segment = records.segmentFor(record_count);
+        int position = records.positionOf(record_count);
+        segment.putInt(position, current_frame);
+        segment.putFloat(position + 4, x_px);
+        segment.putFloat(position + 8, y_px);
+        segment.putFloat(position + 12, z_nm);
+        segment.putFloat(position + 16, intensity);
+        record_count++;
+    }
+
+    /**
+     * Ends the current frame, and publishes its localizations to readers.
+     */
+    public synchronized void endFrame() {
+        if (!in_frame)
+            return;
+        frame_count++;
+        records.publishSequence(++sequence);
+        records.publishCount(record_count);
+        index.publishCount(frame_count);
+        records.publishSequence(++sequence);
+        in_frame = false;
+    }
+
+    /**
+     *
+     * @return number of localizations written so far
+     */
+    public synchronized long getRecordCount() {
+        return record_count;
+    }
+
+    /**
+     *
+     * @return number of frames written so far
+     */
+    public synchronized long getFrameCount() {
+        return frame_count;
+    }
+
+    /**
+     *
+     * @return localization file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Ends the current frame, truncates both files to their content and
+     * closes them.
+     * @throws IOException if the files can not be truncated
+     */
+    public synchronized void close() throws IOException {
+        endFrame();
+        try {
+            records.close(record_count);
+        } finally {
+            index.close(frame_count);
+        }
+    }
+
+    /**
+     * File of fixed-size entries after a header, mapped in segments.
+     */
+    private static class MappedFile {
+        private final RandomAccessFile access;
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private final int entry_bytes;
+        private final int segment_entries;
+        private MappedByteBuffer segment = null;
+        private long segment_index = -1;
+
+        MappedFile(File file, long magic, int entry_bytes, int segment_entries)
+                throws IOException {
+            this.entry_bytes = entry_bytes;
+            this.segment_entries = segment_entries;
+            access = new RandomAccessFile(file, "rw");
+            access.setLength(0);
+            channel = access.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC_OFFSET, magic);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(ENTRY_SIZE_OFFSET, entry_bytes);
+            header.putLong(COUNT_OFFSET, 0);
+        }
+
+        MappedByteBuffer segmentFor(long entry) throws IOException {
+            long index = entry / segment_entries;
+            if (index != segment_index) {
+                // previous segment is unmapped once it is garbage collected
+                segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + index * segment_entries * entry_bytes,
+                        (long) segment_entries * entry_bytes);
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segment_index = index;
+            }
+            return segment;
+        }
+
+        int positionOf(long entry) {
+            return (int) (entry % segment_entries) * entry_bytes;
+        }
+
+        void publishCount(long count) {
+            header.putLong(COUNT_OFFSET, count);
+        }
+
+        void publishSequence(long sequence) {
+            header.putLong(SEQUENCE_OFFSET, sequence);
+        }
+
+        void close(long count) throws IOException {
+            publishCount(count);
+            segment = null;
+            try {
+                header.force();
+                access.setLength(HEADER_BYTES + count * entry_bytes);
+            } catch (IOException ex) {
+                // on some platforms a mapped file can not be truncated,
+                // the count in the header is valid anyway
+            } finally {
+                channel.close();
+                access.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers;
+
+/**
+ * Implemented by analyzers whose batch output has several components, for
+ * example one per analyzer of a composite or one per image patch. The
+ * AnalysisWorker logs all components after each getBatchOutput() call,
+ * while only the scalar batch output is passed on to the controller.
+ * @author Marcel Stefko
+ */
+public interface VectorBatchOutput {
+    
+    /**
+     * The names do not change while the analyzer is used.
+     * @return names of the components, used as names of the log channels
+     */
+    public String[] getBatchOutputNames();
+    
+    /**
+     *
+     * @return batch output of each component from the last getBatchOutput()
+     *  call, in the order of getBatchOutputNames()
+     */
+    public double[] getLastBatchOutputs();
+}
@@ -23,10 +23,15 @@ package ch.epfl.leb.alica.analyzers.autolase;
 import ch.epfl.leb.alica.Analyzer;
 import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
 import ij.gui.Roi;
-import ij.process.ShortProcessor;
-import static java.lang.Math.sqrt;
-import java.util.ArrayDeque;
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Wrapper for Thomas Pengo's implementation of AutoLase algorithm.
@@ -34,7 +39,6 @@ import java.util.ArrayList;
  */
 public class AutoLase implements Analyzer {
     private final AutoLaseAnalyzer autolase_core;
-    private ArrayList<Double> raw_value_history;
     private int threshold;
     
     /**
@@ -43,8 +47,18 @@ public class AutoLase implements Analyzer {
      * @param threshold
      */
     public AutoLase(int threshold) {
+        this(threshold, 1);
+    }
+    
+    /**
+     * Initializes AutoLase.
+     * @param threshold pixel value above which a pixel is considered "on"
+     * @param n_threads number of threads which process bands of image rows
+     *  in parallel, 1 for serial analysis
+     */
+    public AutoLase(int threshold, int n_threads) {
         this.threshold = threshold;
-        autolase_core = new AutoLaseAnalyzer(threshold);
+        autolase_core = new AutoLaseAnalyzer(threshold, n_threads);
     }
 
     @Override
@@ -54,9 +68,7 @@ public class AutoLase implements Analyzer {
             int image_height,
             double pixel_size_um,
             long time_ms) {
-        ShortProcessor sp = new ShortProcessor(image_width, image_height, true);
-        sp.setPixels(image);
-        autolase_core.nextImage(sp);
+        autolase_core.nextImage((short[]) image, image_width, image_height);
     }
 
     @Override
@@ -81,7 +93,7 @@ public class AutoLase implements Analyzer {
     
     @Override
     public void dispose() {
-        
+        autolase_core.dispose();
     }
 
     @Override
@@ -105,35 +117,63 @@ public class AutoLase implements Analyzer {
  * is "on", or above a certain threshold. The density is calculated as a moving
  * average 30 frames.
  * 
+ * The accumulator is a flat row-major array, and thresholding, accumulation
+ * and search for the maximum are done in a single pass over the pixels. Bands
+ * of rows can be processed on several threads.
+ * 
  * The code only works for 2 bytes per pixel cameras for now. 
  * 
  * @author Thomas Pengo
  */
 class AutoLaseAnalyzer {
     private int threshold;
-    private final int sqrt_threshold;
-    private int averaging;
     
     private Roi roi;
     
     boolean running = true;
     boolean stopping = false;
     
-    double currentDensity = 0;
-    private int[][] accumulator = null;
+    volatile double currentDensity = 0;
+    // on-time of each pixel of the analyzed area, row-major
+    private int[] accumulator = null;
+    
+    // processes bands of rows in parallel, null if the analysis is serial
+    private final ExecutorService band_executor;
+    private final List<BandTask> band_tasks;
     
     public AutoLaseAnalyzer(int threshold) {
+        this(threshold, 1);
+    }
+    
+    public AutoLaseAnalyzer(int threshold, int n_threads) {
+        if (n_threads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1!");
         this.threshold = threshold;
-        this.averaging = averaging;
-        sqrt_threshold = (int) sqrt(threshold);
+        if (n_threads > 1) {
+            band_executor = Executors.newFixedThreadPool(n_threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AutoLase band worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            band_tasks = new ArrayList<BandTask>(n_threads);
+            for (int i = 0; i < n_threads; i++) {
+                band_tasks.add(new BandTask());
+            }
+        } else {
+            band_executor = null;
+            band_tasks = null;
+        }
     }
     
-    public void setROI(Roi roi) {
+    public synchronized void setROI(Roi roi) {
         this.roi = roi;
         this.accumulator = null;
     }
     
-    public void setParameters(int threshold) {
+    public synchronized void setParameters(int threshold) {
         if (threshold<1 ) {
             throw new IllegalArgumentException("Wrong parameters for AutoLase!");
         }
@@ -141,53 +181,102 @@ class AutoLaseAnalyzer {
         this.accumulator = null;
     }
     
+    /**
+     * Stops the band worker threads.
+     */
+    public void dispose() {
+        if (band_executor != null) {
+            band_executor.shutdownNow();
+        }
+    }
+    
     /**
      * Analyzes next image and adjusts internal state.
-     * @param image image to be analyzed
+     * @param pixels raw 16-bit pixels of the image
+     * @param image_width width of the image in pixels
+     * @param image_height height of the image in pixels
      */
-    public void nextImage(ShortProcessor sp) {
+    public synchronized void nextImage(short[] pixels, int image_width, int image_height) {
         final int width, height;
         final int x_start, y_start;
         if (roi == null) {
-            width = sp.getWidth();
-            height = sp.getHeight();
+            width = image_width;
+            height = image_height;
             x_start = 0;
             y_start = 0;
         } else {
-            width = roi.getBounds().width;
-            height = roi.getBounds().height;
-            x_start = roi.getBounds().x;
-            y_start = roi.getBounds().y;
+            // only the part of the roi inside the image is analyzed
+            Rectangle bounds = roi.getBounds();
+            x_start = Math.max(0, bounds.x);
+            y_start = Math.max(0, bounds.y);
+            width = Math.max(0, Math.min(image_width, bounds.x + bounds.width) - x_start);
+            height = Math.max(0, Math.min(image_height, bounds.y + bounds.height) - y_start);
         }
         
-        // in case of reset, initialize arrays
-        if (accumulator == null) {
-            accumulator = new int[width][height];
+        // in case of reset or change of image size, initialize arrays
+        if (accumulator == null || accumulator.length != width * height) {
+            accumulator = new int[width * height];
         }
 
-        // scan over whole image
-        for (int i=0; i<width; i++) {
-            for (int j=0; j<height; j++) {
-                // if pixel over threshold, increment accumulator, otherwise
-                // reset it
-                if (sp.getPixel(i+x_start,j+y_start)>threshold) {
-                    accumulator[i][j]++;
-                } else {
-                    accumulator[i][j] = 0;
+        int curd;
+        if (band_executor == null || height < band_tasks.size()) {
+            curd = accumulate(pixels, image_width, accumulator, width, 
+                    x_start, y_start, 0, height, threshold);
+        } else {
+            // split rows into one band per thread
+            int n_bands = band_tasks.size();
+            for (int b = 0; b < n_bands; b++) {
+                band_tasks.get(b).set(pixels, image_width, width, x_start, 
+                        y_start, b * height / n_bands, (b + 1) * height / n_bands);
+            }
+            curd = 0;
+            try {
+                for (Future<Integer> result: band_executor.invokeAll(band_tasks)) {
+                    curd = Math.max(curd, result.get());
                 }
+            } catch (InterruptedException ex) {
+                // some bands may have updated the accumulator already
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while accumulating the image.", ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Error in accumulating the image.", ex.getCause());
             }
         }
-
-        // Density measure
-        double curd = 0;
-        for (int i=0; i<width; i++) {
-            for (int j=0; j<height; j++) {
-                // only take into account pixels that are not always on
-                if (accumulator[i][j]>curd)
-                    curd = accumulator[i][j];
+        currentDensity = curd;  
+    }
+    
+    /**
+     * Thresholds a band of rows of the image, updates the accumulator and
+     * finds the maximum accumulator value, all in a single pass.
+     * @param pixels raw 16-bit pixels of the image
+     * @param image_width width of the image
+     * @param accumulator row-major accumulator of the analyzed area
+     * @param width width of the analyzed area
+     * @param x_start first column of the analyzed area in the image
+     * @param y_start first row of the analyzed area in the image
+     * @param row_start first row of the band, relative to the analyzed area
+     * @param row_end row after the last row of the band
+     * @param threshold pixel value above which the pixel is on
+     * @return maximum accumulator value in the band
+     */
+    static int accumulate(short[] pixels, int image_width, int[] accumulator,
+            int width, int x_start, int y_start, int row_start, int row_end,
+            int threshold) {
+        int max = 0;
+        for (int j=row_start; j<row_end; j++) {
+            int src = (j + y_start) * image_width + x_start;
+            int dst = j * width;
+            for (int i=0; i<width; i++) {
+                // if pixel over threshold, increment accumulator, otherwise
+                // reset it (branch-free, on is 1 if the pixel is over
+                // threshold, 0 otherwise)
+                int on = (threshold - (pixels[src + i] & 0xffff)) >>> 31;
+                int count = (accumulator[dst + i] + 1) * on;
+                accumulator[dst + i] = count;
+                max = Math.max(max, count);
             }
         }
-        currentDensity = curd;  
+        return max;
     }
     
     /**
@@ -205,4 +294,29 @@ class AutoLaseAnalyzer {
     public double getRawCurrentValue() {
         return currentDensity;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Processes one band of rows of the current image.
+     */
+    private class BandTask implements Callable<Integer> {
+        private short[] pixels;
+        private int image_width, width, x_start, y_start, row_start, row_end;
+        
+        void set(short[] pixels, int image_width, int width, int x_start,
+                int y_start, int row_start, int row_end) {
+            this.pixels = pixels;
+            this.image_width = image_width;
+            this.width = width;
+            this.x_start = x_start;
+            this.y_start = y_start;
+            this.row_start = row_start;
+            this.row_end = row_end;
+        }
+        
+        @Override
+        public Integer call() {
+            return accumulate(pixels, image_width, accumulator, width, 
+                    x_start, y_start, row_start, row_end, threshold);
+        }
+    }
+}
@@ -39,7 +39,8 @@ public class AutoLaseSetupPanel extends AnalyzerSetupPanel {
     @Override
     public Analyzer initAnalyzer() {
         int threshold = Integer.parseInt(e_threshold.getText());
-        return new AutoLase(threshold);
+        // rows of the image are split across all available cores
+        return new AutoLase(threshold, Runtime.getRuntime().availableProcessors());
     }
     
     @Override
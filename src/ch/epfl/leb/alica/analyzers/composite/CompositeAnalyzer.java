@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.composite;
+
+import ch.epfl.leb.alica.Analyzer;
+import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
+import ch.epfl.leb.alica.analyzers.VectorBatchOutput;
+import ij.gui.Roi;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Analyzer which passes each image to several analyzers in parallel.
+ *
+ * All analyzers receive the same pixel buffer, so they must treat it as
+ * read-only (all builtin analyzers do). One of the analyzers is the primary
+ * one, and its output is passed on to the controller. Outputs of all
+ * analyzers are available through getLastBatchOutputs(), so they can be
+ * compared or logged.
+ *
+ * The time to process one image is roughly the time of the slowest analyzer,
+ * since the calling thread processes the first analyzer itself, while the
+ * others run on a fixed thread pool.
+ *
+ * @author Marcel Stefko
+ */
+public class CompositeAnalyzer implements Analyzer, VectorBatchOutput {
+    private final Analyzer[] analyzers;
+    private final int primary_index;
+    private final ExecutorService executor;
+
+    private final double[] last_batch_outputs;
+    private final String[] batch_output_names;
+    private final long[] last_processing_times_ns;
+    private final List<Future<?>> pending;
+
+    /**
+     * Initialize the composite analyzer.
+     * @param analyzers analyzers which receive each image
+     * @param primary_index index of the analyzer whose output is passed on
+     *  to the controller
+     */
+    public CompositeAnalyzer(List<Analyzer> analyzers, int primary_index) {
+        if (analyzers == null || analyzers.isEmpty())
+            throw new IllegalArgumentException("You need to set at least one analyzer!");
+        if (primary_index < 0 || primary_index >= analyzers.size())
+            throw new IllegalArgumentException("Invalid primary analyzer index.");
+        this.analyzers = analyzers.toArray(new Analyzer[analyzers.size()]);
+        for (Analyzer a: this.analyzers) {
+            if (a == null)
+                throw new NullPointerException("Analyzer can not be null!");
+        }
+        this.primary_index = primary_index;
+        this.last_batch_outputs = new double[this.analyzers.length];
+        Arrays.fill(last_batch_outputs, Double.NaN);
+        this.batch_output_names = new String[this.analyzers.length];
+        for (int i = 0; i < this.analyzers.length; i++) {
+            batch_output_names[i] = "batched_output_" + i + "_" + this.analyzers[i].getName();
+        }
+        this.last_processing_times_ns = new long[this.analyzers.length];
+        this.pending = new ArrayList<Future<?>>(this.analyzers.length);
+
+        // the calling thread processes one analyzer itself
+        int n_threads = Math.min(this.analyzers.length - 1,
+                Runtime.getRuntime().availableProcessors());
+        if (n_threads > 0) {
+            this.executor = Executors.newFixedThreadPool(n_threads, new ThreadFactory() {
+                private int counter = 0;
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Composite Analyzer Worker " + (counter++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    @Override
+    public void processImage(
+            final Object image,
+            final int image_width,
+            final int image_height,
+            final double pixel_size_um,
+            final long time_ms) {
+        pending.clear();
+        for (int i = 1; i < analyzers.length; i++) {
+            final int index = i;
+            pending.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    runAnalyzer(index, image, image_width, image_height, pixel_size_um, time_ms);
+                    return null;
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        try {
+            runAnalyzer(0, image, image_width, image_height, pixel_size_um, time_ms);
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        // wait for all analyzers, even if one of them failed
+        boolean interrupted = false;
+        for (Future<?> f: pending) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (failure == null)
+                        failure = new RuntimeException("Analyzer failed to process image.", ex.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void runAnalyzer(int index, Object image, int image_width,
+            int image_height, double pixel_size_um, long time_ms) {
+        long start = System.nanoTime();
+        analyzers[index].processImage(image, image_width, image_height, pixel_size_um, time_ms);
+        last_processing_times_ns[index] = System.nanoTime() - start;
+    }
+
+    @Override
+    public double getIntermittentOutput() {
+        return analyzers[primary_index].getIntermittentOutput();
+    }
+
+    /**
+     * Queries all analyzers for their batch output, and returns the output
+     * of the primary analyzer.
+     * @return batch output of the primary analyzer
+     */
+    @Override
+    public double getBatchOutput() {
+        for (int i = 0; i < analyzers.length; i++) {
+            last_batch_outputs[i] = analyzers[i].getBatchOutput();
+        }
+        return last_batch_outputs[primary_index];
+    }
+
+    /**
+     *
+     * @return batch outputs of all analyzers from the last getBatchOutput()
+     *  call, in the order in which the analyzers were passed in
+     */
+    @Override
+    public double[] getLastBatchOutputs() {
+        return Arrays.copyOf(last_batch_outputs, last_batch_outputs.length);
+    }
+
+    /**
+     *
+     * @return current intermittent outputs of all analyzers
+     */
+    public double[] getIntermittentOutputs() {
+        double[] outputs = new double[analyzers.length];
+        for (int i = 0; i < analyzers.length; i++) {
+            outputs[i] = analyzers[i].getIntermittentOutput();
+        }
+        return outputs;
+    }
+
+    /**
+     *
+     * @return time each analyzer spent on the last image, in nanoseconds
+     */
+    public long[] getLastProcessingTimesNs() {
+        return Arrays.copyOf(last_processing_times_ns, last_processing_times_ns.length);
+    }
+
+    /**
+     *
+     * @return names of all analyzers, in the order in which they were passed in
+     */
+    public String[] getAnalyzerNames() {
+        String[] names = new String[analyzers.length];
+        for (int i = 0; i < analyzers.length; i++) {
+            names[i] = analyzers[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     *
+     * @return names of the batch outputs, made up of the index and name
+     *  of each analyzer
+     */
+    @Override
+    public String[] getBatchOutputNames() {
+        return Arrays.copyOf(batch_output_names, batch_output_names.length);
+    }
+
+    /**
+     *
+     * @return number of analyzers in the composite
+     */
+    public int getAnalyzerCount() {
+        return analyzers.length;
+    }
+
+    @Override
+    public void setROI(Roi roi) {
+        for (Analyzer a: analyzers) {
+            a.setROI(roi);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (Analyzer a: analyzers) {
+            a.dispose();
+        }
+    }
+
+    @Override
+    public String getName() {
+        StringBuilder name = new StringBuilder("Composite(");
+        for (int i = 0; i < analyzers.length; i++) {
+            if (i > 0)
+                name.append(",");
+            name.append(analyzers[i].getName());
+        }
+        name.append(")");
+        return name.toString();
+    }
+
+    @Override
+    public AnalyzerStatusPanel getStatusPanel() {
+        return analyzers[primary_index].getStatusPanel();
+    }
+
+    @Override
+    public String getShortReturnDescription() {
+        return analyzers[primary_index].getShortReturnDescription();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.integrator;
+
+/**
+ * Summed-area table of a frame. After it is built in a single pass over the
+ * pixels, the sum of any rectangle is obtained from four table entries.
+ *
+ * The table is stored in doubles, which hold sums of integer pixel values
+ * exactly for any realistic frame size. The buffer is reused between frames
+ * of the same size, so an instance is not thread-safe.
+ *
+ * @author Marcel Stefko
+ */
+public class IntegralImage {
+    // (width+1) x (height+1) table, first row and column are zero
+    private double[] table = new double[0];
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * Builds the table from the pixels of a frame. Pixels are interpreted
+     * as unsigned for 8-bit and 16-bit frames.
+     * @param pixels byte[], short[] or float[] pixels of the frame
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     */
+    public void build(Object pixels, int width, int height) {
+        final int stride = width + 1;
+        if (table.length < stride * (height + 1)) {
+            table = new double[stride * (height + 1)];
+        }
+        this.width = width;
+        this.height = height;
+        // first row stays zero, first column is set for each row
+        for (int x=0; x<stride; x++) {
+            table[x] = 0.0;
+        }
+
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int y=0; y<height; y++) {
+                int src = y * width;
+                int dst = (y + 1) * stride;
+                double row_sum = 0.0;
+                table[dst] = 0.0;
+                for (int x=0; x<width; x++) {
+                    row_sum += p[src + x] & 0xffff;
+                    table[dst + x + 1] = table[dst - stride + x + 1] + row_sum;
+                }
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int y=0; y<height; y++) {
+                int src = y * width;
+                int dst = (y + 1) * stride;
+                double row_sum = 0.0;
+                table[dst] = 0.0;
+                for (int x=0; x<width; x++) {
+                    row_sum += p[src + x] & 0xff;
+                    table[dst + x + 1] = table[dst - stride + x + 1] + row_sum;
+                }
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int y=0; y<height; y++) {
+                int src = y * width;
+                int dst = (y + 1) * stride;
+                double row_sum = 0.0;
+                table[dst] = 0.0;
+                for (int x=0; x<width; x++) {
+                    row_sum += p[src + x];
+                    table[dst + x + 1] = table[dst - stride + x + 1] + row_sum;
+                }
+            }
+        } else if (pixels == null) {
+            throw new NullPointerException("You need to provide an image!");
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel type: " +
+                    pixels.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Sum of the pixel values in a rectangle. The rectangle is clipped to
+     * the frame.
+     * @param x_min first column of the rectangle
+     * @param y_min first row of the rectangle
+     * @param x_max column after the last column of the rectangle
+     * @param y_max row after the last row of the rectangle
+     * @return sum of the pixel values
+     */
+    public double sum(int x_min, int y_min, int x_max, int y_max) {
+        x_min = Math.max(0, x_min);
+        y_min = Math.max(0, y_min);
+        x_max = Math.min(width, x_max);
+        y_max = Math.min(height, y_max);
+        if (x_max <= x_min || y_max <= y_min)
+            return 0.0;
+        final int stride = width + 1;
+        return table[y_max * stride + x_max] - table[y_min * stride + x_max]
+             - table[y_max * stride + x_min] + table[y_min * stride + x_min];
+    }
+
+    /**
+     * Mean of the pixel values in a rectangle. The rectangle is clipped to
+     * the frame.
+     * @param x_min first column of the rectangle
+     * @param y_min first row of the rectangle
+     * @param x_max column after the last column of the rectangle
+     * @param y_max row after the last row of the rectangle
+     * @return mean pixel value, or NaN if the rectangle lies outside the frame
+     */
+    public double mean(int x_min, int y_min, int x_max, int y_max) {
+        int clipped_width = Math.min(width, x_max) - Math.max(0, x_min);
+        int clipped_height = Math.min(height, y_max) - Math.max(0, y_min);
+        if (clipped_width <= 0 || clipped_height <= 0)
+            return Double.NaN;
+        return sum(x_min, y_min, x_max, y_max) /
+                ((double) clipped_width * clipped_height);
+    }
+
+    /**
+     *
+     * @return width of the last built frame
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     *
+     * @return height of the last built frame
+     */
+    public int getHeight() {
+        return height;
+    }
+}
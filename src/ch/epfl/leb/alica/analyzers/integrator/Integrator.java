@@ -21,22 +21,30 @@ package ch.epfl.leb.alica.analyzers.integrator;
 
 import ch.epfl.leb.alica.Analyzer;
 import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
+import ch.epfl.leb.alica.analyzers.VectorBatchOutput;
 import ij.gui.Roi;
-import ij.process.ShortProcessor;
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Analyzer which outputs the average pixel value per frame.
  * 
  * The average is taken over the area of the image (or ROI) in units of squared
- * pixels.
+ * pixels. 8-bit, 16-bit and 32-bit float images are supported.
+ * 
+ * Optionally, a list of patch ROIs can be given. Then an integral image is
+ * built for each frame, and the mean of every patch is computed from it in
+ * constant time. The batch means of the patches are available from
+ * getLastBatchOutputs().
  * 
  * @author Marcel Stefko
  */
-public class Integrator implements Analyzer {
-    // array for storing outputs since last batchedoutput query
-    private final ArrayList<Double> intermittentOutputs = 
-            new ArrayList<Double>();
+public class Integrator implements Analyzer, VectorBatchOutput {
+    // sum and count of outputs since last batchedoutput query
+    private double intermittent_output_sum = 0.0;
+    private int intermittent_output_count = 0;
     private boolean start = true;
     
     // region of interest to confine analysis to
@@ -45,7 +53,70 @@ public class Integrator implements Analyzer {
     // last calculated output
     private double intermittent_output = 0.0;
     
+    // patches whose means are computed from the integral image, empty if
+    // the summed-area table mode is off
+    private final Rectangle[] patches;
+    private final IntegralImage integral_image = new IntegralImage();
+    private final double[] patch_output_sums;
+    private final double[] last_patch_outputs;
+    private final double[] last_batch_outputs;
+    private final String[] patch_names;
+    
     public Integrator() {
+        this(new ArrayList<Rectangle>());
+    }
+    
+    /**
+     * Initialize the Integrator in summed-area table mode.
+     * @param patches rectangular regions whose mean pixel values are computed
+     *  for each frame
+     */
+    public Integrator(List<Rectangle> patches) {
+        if (patches == null)
+            throw new NullPointerException("You need to set the patches!");
+        this.patches = new Rectangle[patches.size()];
+        for (int i = 0; i < this.patches.length; i++) {
+            this.patches[i] = new Rectangle(patches.get(i));
+        }
+        this.patch_output_sums = new double[this.patches.length];
+        this.last_patch_outputs = new double[this.patches.length];
+        this.last_batch_outputs = new double[this.patches.length];
+        this.patch_names = new String[this.patches.length];
+        for (int i = 0; i < this.patches.length; i++) {
+            this.patch_names[i] = "patch_mean_" + i;
+        }
+        Arrays.fill(last_patch_outputs, Double.NaN);
+        Arrays.fill(last_batch_outputs, Double.NaN);
+    }
+    
+    /**
+     * Divide the image into a grid of equally sized patches, for example for
+     * monitoring of illumination uniformity. Remaining pixels at the right
+     * and bottom edge are added to the last column and row.
+     * @param image_width width of the image in pixels
+     * @param image_height height of the image in pixels
+     * @param n_columns number of patches in horizontal direction
+     * @param n_rows number of patches in vertical direction
+     * @return patches in row-major order
+     */
+    public static List<Rectangle> createPatchGrid(int image_width, int image_height,
+            int n_columns, int n_rows) {
+        if (n_columns < 1 || n_rows < 1 || 
+                n_columns > image_width || n_rows > image_height)
+            throw new IllegalArgumentException("Invalid patch grid dimensions!");
+        List<Rectangle> grid = new ArrayList<Rectangle>(n_columns * n_rows);
+        int patch_width = image_width / n_columns;
+        int patch_height = image_height / n_rows;
+        for (int r = 0; r < n_rows; r++) {
+            int y = r * patch_height;
+            int h = (r == n_rows - 1) ? image_height - y : patch_height;
+            for (int c = 0; c < n_columns; c++) {
+                int x = c * patch_width;
+                int w = (c == n_columns - 1) ? image_width - x : patch_width;
+                grid.add(new Rectangle(x, y, w, h));
+            }
+        }
+        return grid;
     }
     
     /**
@@ -77,21 +148,45 @@ public class Integrator implements Analyzer {
             y_max = y_min + roi.getBounds().height;
         }
         
-        // create shortprocessor for accessing pixels
-        ShortProcessor sp = new ShortProcessor(image_width, image_height);
-        sp.setPixels(image);
-        
-        // sum up all pixels
-        long sum = 0;
-        for (int x=x_min; x<x_max; x++) {
-            for (int y=y_min; y<y_max; y++) {
-                sum += sp.getPixel(x, y);
+        if (patches.length == 0) {
+            // the roi may extend past the image, only the pixels inside it
+            // are averaged, as in the summed-area table mode
+            x_min = Math.max(0, x_min);
+            y_min = Math.max(0, y_min);
+            x_max = Math.min(image_width, x_max);
+            y_max = Math.min(image_height, y_max);
+            double mean;
+            if (x_max <= x_min || y_max <= y_min) {
+                mean = Double.NaN;
+            } else {
+                // sum up all pixels row by row, directly from the pixel array
+                double sum = PixelIntegrator.sum(image, image_width, 
+                        x_min, y_min, x_max, y_max);
+                // divide by area in px^2
+                mean = sum / ((double) (x_max-x_min) * (y_max-y_min));
             }
-        }      
-        
-        // divide by area in px^2, subtract background and store
-        intermittent_output = ((double)sum)/((x_max-x_min)*(y_max-y_min));
-        intermittentOutputs.add(intermittent_output);
+
+            // store
+            synchronized(this) {
+                intermittent_output = mean;
+                intermittent_output_sum += intermittent_output;
+                intermittent_output_count++;
+            }
+        } else {
+            // one pass over the image, then constant time for each patch
+            integral_image.build(image, image_width, image_height);
+            synchronized(this) {
+                intermittent_output = integral_image.mean(x_min, y_min, x_max, y_max);
+                intermittent_output_sum += intermittent_output;
+                intermittent_output_count++;
+                for (int i = 0; i < patches.length; i++) {
+                    Rectangle p = patches[i];
+                    last_patch_outputs[i] = integral_image.mean(
+                            p.x, p.y, p.x + p.width, p.y + p.height);
+                    patch_output_sums[i] += last_patch_outputs[i];
+                }
+            }
+        }
     }
 
     @Override
@@ -100,19 +195,58 @@ public class Integrator implements Analyzer {
     }
 
     @Override
-    public double getBatchOutput() {
-        // return arithmetic average of stored values and flush array
-        if (intermittentOutputs.size() == 0)
+    public synchronized double getBatchOutput() {
+        // return arithmetic average of stored values and reset
+        if (intermittent_output_count == 0) {
+            Arrays.fill(last_batch_outputs, Double.NaN);
             return Double.NaN;
-        double mean_output = 0.0;
-        for (double d: intermittentOutputs) {
-            mean_output += d;
         }
-        mean_output /= intermittentOutputs.size();
+        double mean_output = intermittent_output_sum / intermittent_output_count;
+        for (int i = 0; i < patches.length; i++) {
+            last_batch_outputs[i] = patch_output_sums[i] / intermittent_output_count;
+            patch_output_sums[i] = 0.0;
+        }
         
-        intermittentOutputs.clear();
+        intermittent_output_sum = 0.0;
+        intermittent_output_count = 0;
         return mean_output;
     }
+    
+    /**
+     *
+     * @return mean pixel values of the patches averaged over the frames
+     *  since the previous getBatchOutput() call, from the last 
+     *  getBatchOutput() call
+     */
+    @Override
+    public synchronized double[] getLastBatchOutputs() {
+        return Arrays.copyOf(last_batch_outputs, last_batch_outputs.length);
+    }
+    
+    /**
+     *
+     * @return mean pixel values of the patches in the last frame
+     */
+    public synchronized double[] getIntermittentOutputs() {
+        return Arrays.copyOf(last_patch_outputs, last_patch_outputs.length);
+    }
+    
+    /**
+     *
+     * @return number of patches, 0 if the summed-area table mode is off
+     */
+    public int getPatchCount() {
+        return patches.length;
+    }
+    
+    /**
+     *
+     * @return names of the patches, empty if the summed-area table mode is off
+     */
+    @Override
+    public String[] getBatchOutputNames() {
+        return Arrays.copyOf(patch_names, patch_names.length);
+    }
 
     @Override
     public void setROI(Roi roi) {
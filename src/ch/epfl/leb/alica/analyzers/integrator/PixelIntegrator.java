@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.integrator;
+
+/**
+ * Sums pixel values of a rectangular region directly from the raw pixel
+ * array of a frame, row by row.
+ *
+ * Rows are summed in chunks into int accumulators in simple counted loops,
+ * which the JIT compiler can unroll and vectorize, and the chunk sums are
+ * added up as longs.
+ *
+ * @author Marcel Stefko
+ */
+public class PixelIntegrator {
+    // longest run of 16-bit pixels whose sum fits into an int
+    private static final int SHORT_CHUNK = Integer.MAX_VALUE / 0xffff;
+    // longest run of 8-bit pixels whose sum fits into an int
+    private static final int BYTE_CHUNK = Integer.MAX_VALUE / 0xff;
+
+    /**
+     * Sums pixel values of a region of a frame. Pixels are interpreted as
+     * unsigned for 8-bit and 16-bit frames. The region must lie inside the
+     * frame, it is not clipped.
+     *
+     * @param pixels byte[], short[] or float[] pixels of the frame
+     * @param width width of the frame in pixels
+     * @param x_min first column of the region
+     * @param y_min first row of the region
+     * @param x_max column after the last column of the region
+     * @param y_max row after the last row of the region
+     * @return sum of the pixel values
+     */
+    public static double sum(Object pixels, int width,
+            int x_min, int y_min, int x_max, int y_max) {
+        if (pixels instanceof short[]) {
+            return sum((short[]) pixels, width, x_min, y_min, x_max, y_max);
+        } else if (pixels instanceof byte[]) {
+            return sum((byte[]) pixels, width, x_min, y_min, x_max, y_max);
+        } else if (pixels instanceof float[]) {
+            return sum((float[]) pixels, width, x_min, y_min, x_max, y_max);
+        } else if (pixels == null) {
+            throw new NullPointerException("You need to provide an image!");
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel type: " +
+                    pixels.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Sums unsigned 16-bit pixel values of a region of a frame.
+     *
+     * @param pixels pixels of the frame
+     * @param width width of the frame in pixels
+     * @param x_min first column of the region
+     * @param y_min first row of the region
+     * @param x_max column after the last column of the region
+     * @param y_max row after the last row of the region
+     * @return sum of the pixel values
+     */
+    public static long sum(short[] pixels, int width,
+            int x_min, int y_min, int x_max, int y_max) {
+        long sum = 0;
+        for (int y=y_min; y<y_max; y++) {
+            int row = y * width;
+            for (int start=row+x_min; start<row+x_max; start+=SHORT_CHUNK) {
+                int end = Math.min(start + SHORT_CHUNK, row + x_max);
+                int chunk_sum = 0;
+                for (int i=start; i<end; i++) {
+                    chunk_sum += pixels[i] & 0xffff;
+                }
+                sum += chunk_sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sums unsigned 8-bit pixel values of a region of a frame.
+     *
+     * @param pixels pixels of the frame
+     * @param width width of the frame in pixels
+     * @param x_min first column of the region
+     * @param y_min first row of the region
+     * @param x_max column after the last column of the region
+     * @param y_max row after the last row of the region
+     * @return sum of the pixel values
+     */
+    public static long sum(byte[] pixels, int width,
+            int x_min, int y_min, int x_max, int y_max) {
+        long sum = 0;
+        for (int y=y_min; y<y_max; y++) {
+            int row = y * width;
+            for (int start=row+x_min; start<row+x_max; start+=BYTE_CHUNK) {
+                int end = Math.min(start + BYTE_CHUNK, row + x_max);
+                int chunk_sum = 0;
+                for (int i=start; i<end; i++) {
+                    chunk_sum += pixels[i] & 0xff;
+                }
+                sum += chunk_sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sums 32-bit float pixel values of a region of a frame. Each row is
+     * summed in double precision.
+     *
+     * @param pixels pixels of the frame
+     * @param width width of the frame in pixels
+     * @param x_min first column of the region
+     * @param y_min first row of the region
+     * @param x_max column after the last column of the region
+     * @param y_max row after the last row of the region
+     * @return sum of the pixel values
+     */
+    public static double sum(float[] pixels, int width,
+            int x_min, int y_min, int x_max, int y_max) {
+        double sum = 0.0;
+        for (int y=y_min; y<y_max; y++) {
+            int row = y * width;
+            // two accumulators to shorten the dependency chain of additions
+            double even = 0.0, odd = 0.0;
+            int i = row + x_min;
+            int end = row + x_max;
+            for (; i+1<end; i+=2) {
+                even += pixels[i];
+                odd += pixels[i+1];
+            }
+            if (i < end) {
+                even += pixels[i];
+            }
+            sum += even + odd;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Difference-of-Gaussians band-pass filter used by QuickPALM for particle
+ * detection. It replaces two ImageJ GaussianBlur passes on duplicated
+ * images and a per-pixel difference loop.
+ *
+ * Both Gaussians are separable convolutions on float buffers which are
+ * reused between frames. The horizontal pass runs along rows, and the
+ * vertical pass accumulates whole rows, so that all memory accesses are
+ * row-major. Both passes can be split into bands of rows on several threads.
+ * Like ImageJ, pixels outside the image take the value of the nearest edge
+ * pixel, and both blurred images are rounded to integers before they are
+ * subtracted.
+ *
+ * An instance is not thread-safe.
+ * @author Marcel Stefko
+ */
+class BandPassFilter {
+    // same kernel accuracy as used by GaussianBlur.blur()
+    private static final double KERNEL_ACCURACY = 0.01;
+
+    private float[] kernel_short = new float[0];
+    private float[] kernel_long = new float[0];
+    private double sigma_short = Double.NaN;
+    private double sigma_long = Double.NaN;
+
+    // input image and horizontally blurred images, reused between frames
+    private float[] input = new float[0];
+    private float[] horizontal_short = new float[0];
+    private float[] horizontal_long = new float[0];
+
+    private int width, height;
+    private Object pixels;
+
+    // processes bands of rows in parallel, null if the filter is serial
+    private final ExecutorService band_executor;
+    private final List<BandTask> band_tasks;
+
+    /**
+     * Initialize the filter.
+     * @param n_threads number of threads which filter bands of rows in
+     *  parallel, 1 for serial filtering
+     */
+    BandPassFilter(int n_threads) {
+        if (n_threads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1!");
+        band_tasks = new ArrayList<BandTask>(n_threads);
+        for (int i = 0; i < n_threads; i++) {
+            band_tasks.add(new BandTask());
+        }
+        if (n_threads > 1) {
+            band_executor = Executors.newFixedThreadPool(n_threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "QuickPALM filter worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            band_executor = null;
+        }
+    }
+
+    /**
+     * Set the widths of both Gaussians. Kernels are only rebuilt if the
+     * widths change.
+     * @param sigma_short sigma of the narrow Gaussian in pixels
+     * @param sigma_long sigma of the wide Gaussian in pixels
+     */
+    void setSigmas(double sigma_short, double sigma_long) {
+        if (sigma_short != this.sigma_short) {
+            kernel_short = makeKernel(sigma_short);
+            this.sigma_short = sigma_short;
+        }
+        if (sigma_long != this.sigma_long) {
+            kernel_long = makeKernel(sigma_long);
+            this.sigma_long = sigma_long;
+        }
+    }
+
+    /**
+     * Builds one half of a normalized Gaussian kernel, including the center.
+     * @param sigma sigma in pixels
+     * @return kernel values from the center outwards
+     */
+    static float[] makeKernel(double sigma) {
+        int radius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(KERNEL_ACCURACY))) + 1;
+        double[] values = new double[radius];
+        double sum = 0.0;
+        for (int i = 0; i < radius; i++) {
+            values[i] = Math.exp(-0.5 * i * i / (sigma * sigma));
+            sum += (i == 0) ? values[i] : 2 * values[i];
+        }
+        float[] kernel = new float[radius];
+        for (int i = 0; i < radius; i++) {
+            kernel[i] = (float) (values[i] / sum);
+        }
+        return kernel;
+    }
+
+    /**
+     * Replaces the image with the positive part of the difference of its
+     * narrow and wide Gaussian blurs.
+     * @param pixels short[] or byte[] pixels of the image, overwritten
+     * @param width width of the image
+     * @param height height of the image
+     */
+    void filter(Object pixels, int width, int height) {
+        if (!(pixels instanceof short[]) && !(pixels instanceof byte[]))
+            throw new IllegalArgumentException("8 or 16 bit greyscale image required");
+        final int n = width * height;
+        if (input.length < n) {
+            input = new float[n];
+            horizontal_short = new float[n];
+            horizontal_long = new float[n];
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+
+        try {
+            runPass(true);
+            runPass(false);
+        } finally {
+            this.pixels = null;
+        }
+    }
+
+    /**
+     * Runs one pass over all bands of rows, and waits for it to finish. If
+     * the thread is interrupted, the filtered image is incomplete, and an
+     * exception is thrown.
+     */
+    private void runPass(boolean horizontal) {
+        int n_bands = Math.min(band_tasks.size(), height);
+        for (int b = 0; b < n_bands; b++) {
+            band_tasks.get(b).set(horizontal, b * height / n_bands, (b + 1) * height / n_bands);
+        }
+        if (band_executor == null || n_bands == 1) {
+            for (int b = 0; b < n_bands; b++) {
+                band_tasks.get(b).call();
+            }
+            return;
+        }
+        try {
+            for (Future<Void> result: band_executor.invokeAll(band_tasks.subList(0, n_bands))) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while filtering the image.", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error in filtering the image.", ex.getCause());
+        }
+    }
+
+    /**
+     * Converts rows of the image to floats, and blurs them horizontally with
+     * both kernels.
+     */
+    private void horizontalPass(int row_start, int row_end) {
+        final int last = width - 1;
+        for (int y = row_start; y < row_end; y++) {
+            final int row = y * width;
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int x = 0; x < width; x++) {
+                    input[row + x] = p[row + x] & 0xffff;
+                }
+            } else {
+                byte[] p = (byte[]) pixels;
+                for (int x = 0; x < width; x++) {
+                    input[row + x] = p[row + x] & 0xff;
+                }
+            }
+            convolveRow(input, row, last, kernel_short, horizontal_short);
+            convolveRow(input, row, last, kernel_long, horizontal_long);
+        }
+    }
+
+    private static void convolveRow(float[] in, int row, int last, float[] kernel, float[] out) {
+        final int radius = kernel.length - 1;
+        final float k0 = kernel[0];
+        // interior, loop over kernel outside so that the loop over pixels
+        // has no dependencies and can be vectorized
+        final int start = row + Math.min(radius, last + 1);
+        final int end = row + Math.max(last - radius + 1, Math.min(radius, last + 1));
+        for (int i = start; i < end; i++) {
+            out[i] = k0 * in[i];
+        }
+        for (int k = 1; k <= radius; k++) {
+            final float kk = kernel[k];
+            for (int i = start; i < end; i++) {
+                out[i] += kk * (in[i - k] + in[i + k]);
+            }
+        }
+        // borders, with pixels outside the image replaced by edge pixels
+        final float edge_left = in[row];
+        final float edge_right = in[row + last];
+        for (int x = 0; x <= last; x++) {
+            if (row + x == start) {
+                x = end - row;
+                if (x > last)
+                    break;
+            }
+            float sum = k0 * in[row + x];
+            for (int k = 1; k <= radius; k++) {
+                float left = (x - k < 0) ? edge_left : in[row + x - k];
+                float right = (x + k > last) ? edge_right : in[row + x + k];
+                sum += kernel[k] * (left + right);
+            }
+            out[row + x] = sum;
+        }
+    }
+
+    /**
+     * Blurs rows of the horizontally blurred images vertically, by
+     * accumulating whole neighbouring rows, and writes the rounded
+     * difference to the image.
+     */
+    private void verticalPass(int row_start, int row_end, float[] row_short, float[] row_long) {
+        for (int y = row_start; y < row_end; y++) {
+            convolveColumn(horizontal_short, y, kernel_short, row_short);
+            convolveColumn(horizontal_long, y, kernel_long, row_long);
+            final int row = y * width;
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int x = 0; x < width; x++) {
+                    int s = round(row_short[x], 65535) - round(row_long[x], 65535);
+                    p[row + x] = (short) ((s > 0) ? s : 0);
+                }
+            } else {
+                byte[] p = (byte[]) pixels;
+                for (int x = 0; x < width; x++) {
+                    int s = round(row_short[x], 255) - round(row_long[x], 255);
+                    p[row + x] = (byte) ((s > 0) ? s : 0);
+                }
+            }
+        }
+    }
+
+    private void convolveColumn(float[] in, int y, float[] kernel, float[] out) {
+        final int radius = kernel.length - 1;
+        final int last = height - 1;
+        final int row = y * width;
+        final float k0 = kernel[0];
+        for (int x = 0; x < width; x++) {
+            out[x] = k0 * in[row + x];
+        }
+        for (int k = 1; k <= radius; k++) {
+            final int up = Math.max(y - k, 0) * width;
+            final int down = Math.min(y + k, last) * width;
+            final float kk = kernel[k];
+            for (int x = 0; x < width; x++) {
+                out[x] += kk * (in[up + x] + in[down + x]);
+            }
+        }
+    }
+
+    // rounding as in ImageJ conversion from float to integer pixels
+    private static int round(float value, int max) {
+        if (value < 0f)
+            return 0;
+        if (value > max)
+            return max;
+        return (int) (value + 0.5f);
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    void dispose() {
+        if (band_executor != null) {
+            band_executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Filters one band of rows in the current pass.
+     */
+    private class BandTask implements Callable<Void> {
+        private boolean horizontal;
+        private int row_start, row_end;
+        private float[] row_short = new float[0];
+        private float[] row_long = new float[0];
+
+        void set(boolean horizontal, int row_start, int row_end) {
+            this.horizontal = horizontal;
+            this.row_start = row_start;
+            this.row_end = row_end;
+        }
+
+        @Override
+        public Void call() {
+            if (horizontal) {
+                horizontalPass(row_start, row_end);
+            } else {
+                if (row_short.length < width) {
+                    row_short = new float[width];
+                    row_long = new float[width];
+                }
+                verticalPass(row_start, row_end, row_short, row_long);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Max-heap of candidate pixels for QuickPALM particle detection. It replaces
+ * a full scan of the image for each particle by one scan per frame.
+ *
+ * The heap holds all pixels whose value is at least the detection threshold.
+ * Pixel values only decrease during detection (clearRegion() sets them to 0),
+ * so an entry whose stored value no longer matches the image is stale and is
+ * dropped when it reaches the top. Ties are broken in the scan order of
+ * MyFunctions.getMaxPositions() (by column, then by row), so the sequence of
+ * maxima is the same as with repeated full scans.
+ *
+ * The buffer is reused between frames, so an instance is not thread-safe.
+ * @author Marcel Stefko
+ */
+class MaxCandidateHeap {
+    // entries are (value << 32) | ~(x * height + y), so that the largest
+    // entry is the largest value first found in column-major order
+    private long[] heap = new long[0];
+    private int size = 0;
+    private int height = 0;
+
+    /**
+     * Collects the candidate pixels of the image and builds the heap.
+     * @param ip image to be searched for maxima
+     * @param threshold pixels below this value are not candidates, as the
+     *  detection stops when the maximum drops below it
+     */
+    void build(ImageProcessor ip, double threshold) {
+        final int width = ip.getWidth();
+        height = ip.getHeight();
+        size = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int s = ip.get(x, y);
+                // pixels of value 0 are never reported, see next()
+                // (comparison is false for a NaN threshold, hence the negation)
+                if (s > 0 && !(s < threshold)) {
+                    if (size == heap.length) {
+                        long[] grown = new long[Math.max(1024, 2 * heap.length)];
+                        System.arraycopy(heap, 0, grown, 0, size);
+                        heap = grown;
+                    }
+                    heap[size++] = ((long) s << 32) | (~(x * height + y) & 0xffffffffL);
+                }
+            }
+        }
+        // bottom-up heap construction in O(size)
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Finds the current maximum of the image, with the same result as
+     * MyFunctions.getMaxPositions(ip) if all pixels at least as large as the
+     * threshold have been collected by build().
+     * @param ip image, whose pixels were only decreased since build()
+     * @param results receives value, x and y of the maximum; (0, 0, 0) if no
+     *  candidate pixels remain
+     */
+    void next(ImageProcessor ip, int[] results) {
+        while (size > 0) {
+            long top = heap[0];
+            int s = (int) (top >>> 32);
+            int index = ~((int) top);
+            int x = index / height;
+            int y = index % height;
+            if (ip.get(x, y) == s) {
+                // still valid, keep it until it is cleared
+                results[0] = s;
+                results[1] = x;
+                results[2] = y;
+                return;
+            }
+            // stale, pixel was cleared since
+            heap[0] = heap[--size];
+            siftDown(0);
+        }
+        results[0] = 0;
+        results[1] = 0;
+        results[2] = 0;
+    }
+
+    /**
+     *
+     * @return number of entries in the heap, including stale ones
+     */
+    int size() {
+        return size;
+    }
+
+    private void siftDown(int i) {
+        final long entry = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && heap[child + 1] > heap[child])
+                child++;
+            if (heap[child] <= entry)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = entry;
+    }
+}
@@ -98,6 +98,40 @@ class MyDialogs
 	//int viewer_accumulate;
 	
 
+	/**
+	 * Sets the analysis parameters without a dialog. The other settings
+	 * take the defaults of the dialog, with online rendering and attaching
+	 * to an acquisition turned off, and are not saved to the preferences.
+	 * @param snr minimum SNR
+	 * @param fwhm maximum FWHM in pixels
+	 * @param pixelsize image plane pixel size in nm
+	 * @param smartsnr if true, stop searching when no new particles are found
+	 */
+	public void setParameters(int snr, double fwhm, double pixelsize, boolean smartsnr) {
+		if (snr < 0 || !(fwhm > 0.0) || !(pixelsize > 0.0))
+			throw new IllegalArgumentException("Wrong parameters for QuickPALM!");
+		this.snr = snr;
+		this.fwhm = fwhm;
+		this.pixelsize = pixelsize;
+		this.smartsnr = smartsnr;
+		is3d = false;
+		view = false;
+		attach = false;
+		magn = pixelsize/30;
+		viewer_accumulate = 0;
+		viewer_update = 10;
+		pattern = "imgNNNNNNNNN.tif";
+		prefix = pattern.substring(0, pattern.indexOf("N"));
+		sufix = pattern.substring(pattern.lastIndexOf("N")+1, pattern.length());
+		nimchars = pattern.split("N").length-1;
+		nimstart = 0;
+		waittime = 50;
+		symmetry = 0.5;
+		pthrsh = 0.2;
+		maxpart = 1000;
+		threads = 50;
+	}
+
 	public boolean analyseParticles(MyFunctions f) {	
 		GenericDialog gd = new GenericDialog("Analyse PALM/STORM Particles");
 		gd.addNumericField("Minimum SNR", prefs.get("QuickPALM.snr", 5), 2);
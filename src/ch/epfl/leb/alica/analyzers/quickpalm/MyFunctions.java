@@ -5,6 +5,7 @@
  */
 package ch.epfl.leb.alica.analyzers.quickpalm;
 
+import ch.epfl.leb.alica.analyzers.LocalizationWriter;
 import ij.*;
 import ij.measure.*;
 import ij.plugin.*;
@@ -14,13 +15,15 @@ import ij.process.*;
 import ij.gui.*;
 import ij.measure.CurveFitter.*;
 import java.awt.*;
+import java.io.IOException;
 
 class MyFunctions {
 
     ImagePlus live_view;
-    GaussianBlur gblur = new GaussianBlur();
-    //ResultsTable ptable = new ResultsTable(); // Particle table
-    ResultsTable ptable = Analyzer.getResultsTable(); // Particle table
+    BandPassFilter bandpass = null; // created with the number of threads from dialog
+    MaxCandidateHeap candidates = new MaxCandidateHeap(); // particle candidates
+    ParticleTable ptable = new ParticleTable(); // Particle table
+    LocalizationWriter lwriter = null; // Localization file, null if not saved
     ResultsTable dtable = new ResultsTable(); // Drift table
     ResultsTable caltable = new ResultsTable(); // Astigmatism calibration table
 
@@ -28,8 +31,6 @@ class MyFunctions {
     double[] cal3d_wmh; // width minus height
     int cal3d_center; // closest index to the center value of the cal3d_* arrays
 
-    java.util.concurrent.locks.Lock ptable_lock = new java.util.concurrent.locks.ReentrantLock();
-
     boolean debug = false;
 
     public MyFunctions(boolean live_view) {
@@ -39,7 +40,6 @@ class MyFunctions {
         } else {
             this.live_view = null;
         }
-        ptable.setPrecision(3);
         dtable.setPrecision(3);
         caltable.setPrecision(3);
     }
@@ -63,6 +63,17 @@ class MyFunctions {
         if (this.live_view!= null) {
             this.live_view.hide();
         }
+        if (bandpass != null) {
+            bandpass.dispose();
+        }
+        ptable.close();
+        if (lwriter != null) {
+            try {
+                lwriter.close();
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to close the localization file!", ex);
+            }
+        }
     }
 
     /**
@@ -159,18 +170,15 @@ class MyFunctions {
             }
         }
 
-        ImageProcessor spip = ip.duplicate(); // short-pass version of ip
-        ImageProcessor lpip = ip.duplicate(); // low-pass version of ip
-        gblur.blur(spip, 0.5);
-        gblur.blur(lpip, dg.fwhm * 2);
-
-        // build new frequency gatted image		
-        for (i = 0; i < width; i++) {
-            for (j = 0; j < height; j++) {
-                s = spip.get(i, j) - lpip.get(i, j);
-                ip.set(i, j, (s > 0) ? s : 0);
-            }
+        // build new frequency gatted image, as the difference of a
+        // short-pass and a low-pass version of ip (the sigmas are the same
+        // as of GaussianBlur.blur(ip, 0.5) and blur(ip, dg.fwhm * 2))
+        if (bandpass == null) {
+            bandpass = new BandPassFilter(Math.max(1, Math.min(dg.threads,
+                    Runtime.getRuntime().availableProcessors())));
         }
+        bandpass.setSigmas(0.4 * 0.5, 0.4 * dg.fwhm * 2);
+        bandpass.filter(ip.getPixels(), width, height);
 
         // lets calculate the noise level
         int xstart = xmin - 6;
@@ -206,19 +214,30 @@ class MyFunctions {
         // set minimum thresh
         double snrthresh = noise * dg.snr;
 
-        // start detecting particles
-        int[] maxs;
+        // start detecting particles, in the order of decreasing pixel value
+        candidates.build(ip, snrthresh);
+        int[] maxs = new int[3];
         int ok_nparticles = 0;
         int notok_nparticles = 0;
         int last_ok_nparticles = 0;
         int smartcounter = 0;
         Overlay ov = new Overlay();
+        LocalizationWriter writer = lwriter;
+        if (writer != null) {
+            // frames are numbered from 1, as in the particle table, see
+            // LocalizationWriter.beginFrame()
+            try {
+                writer.beginFrame(nframe + 1);
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to write the localization file!", ex);
+            }
+        }
         for (int n = 0; n <= dg.maxpart; n++) {
-            maxs = getMaxPositions(ip);
+            candidates.next(ip, maxs);
             
             if (ip.get(maxs[1], maxs[2]) < snrthresh) {
                 break;
-            } else if (getParticle(ip, mask, maxs, dg, ptable, nframe)) {
+            } else if (getParticle(ip, mask, maxs, dg, ptable, writer, nframe)) {
                 ok_nparticles++;
                 Roi roi = new Roi(maxs[1]-1,maxs[2]-1,3,3);
                 roi.setStrokeColor(Color.RED);
@@ -238,6 +257,9 @@ class MyFunctions {
                 }
             }
         }
+        if (writer != null) {
+            writer.endFrame();
+        }
         //IJ.log("Processed frame: "+nframe);
         if (live_view != null) {
             live_view.setProcessor(ip);
@@ -256,7 +278,7 @@ class MyFunctions {
      * @param dg dialog manager
      * @param nframe the frame index corresponding to this image
      */
-    boolean getParticle(ImageProcessor ip, boolean[][] mask, int[] maxs, MyDialogs dg, ResultsTable ptable, int nframe) {
+    boolean getParticle(ImageProcessor ip, boolean[][] mask, int[] maxs, MyDialogs dg, ParticleTable ptable, LocalizationWriter writer, int nframe) {
         int roirad = (int) Math.round(dg.fwhm);
         int xmax = maxs[1];
         int ymax = maxs[2];
@@ -423,31 +445,21 @@ class MyFunctions {
         }
 
         double s_ = sSum / npixels;
-        double xm_ = xm * dg.pixelsize;
-        double ym_ = ym * dg.pixelsize;
         double xlstd_ = xlstd * 1.177;
         double xrstd_ = xrstd * 1.177;
         double ylstd_ = ylstd * 1.177;
         double yrstd_ = yrstd * 1.177;
         double frame_ = nframe + 1;
 
-        ptable_lock.lock();
-        ptable.incrementCounter();
-        ptable.addValue("Intensity", s_);
-        ptable.addValue("X (px)", xm);
-        ptable.addValue("Y (px)", ym);
-        ptable.addValue("X (nm)", xm_);
-        ptable.addValue("Y (nm)", ym_);
-        ptable.addValue("Z (nm)", z);
-        ptable.addValue("Left-Width (px)", xlstd_);
-        ptable.addValue("Right-Width (px)", xrstd_);
-        ptable.addValue("Up-Height (px)", ylstd_);
-        ptable.addValue("Down-Height (px)", yrstd_);
-        ptable.addValue("X Symmetry (%)", xsym);
-        ptable.addValue("Y Symmetry (%)", ysym);
-        ptable.addValue("Width minus Height (px)", wmh);
-        ptable.addValue("Frame Number", frame_);
-        ptable_lock.unlock();
+        // columnar store, appends take no lock
+        ptable.add((int) frame_, xm, ym, z, s_, xlstd_ + xrstd_, ylstd_ + yrstd_);
+        if (writer != null) {
+            try {
+                writer.add((float) xm, (float) ym, (float) z, (float) s_);
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to write the localization file!", ex);
+            }
+        }
         clearRegion(thrsh, ip, mask, xstart, xend, ystart, yend);
         return true;
     }
@@ -681,9 +693,9 @@ class MyFunctions {
     }
 
     void showTable() {
-        if (ptable.getCounter() < 5000000) {
+        if (ptable.size() < 5000000) {
             IJ.showStatus("Creating particle table, this should take a few seconds...");
-            ptable.show("Results");
+            ptable.toResultsTable().show("Results");
         } else {
             IJ.showMessage("Warning", "Results table has too many particles, they will not be shown but the data still exists within it\nyou can still use all the plugin functionality or save table changes though the 'Save Particle Table' command.");
         }
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import ij.measure.ResultsTable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Columnar store of detected particles, backed by primitive arrays.
+ *
+ * Each appending thread writes into its own chunk of columns, so appends
+ * take no locks. Full chunks are moved to a shared lock-free queue. When
+ * the full chunks held in memory exceed the memory budget, the oldest ones
+ * are written to a spill file and dropped from the heap.
+ *
+ * Rows can be read by another thread at any time through forEachRow(). Rows
+ * appended concurrently with the read may or may not be visited.
+ *
+ * @author Marcel Stefko
+ */
+public class ParticleTable {
+    /**
+     * Number of rows in one chunk.
+     */
+    public static final int CHUNK_ROWS = 4096;
+
+    /**
+     * Default memory budget for full chunks in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    // 6 float columns and 1 int column
+    private static final int ROW_BYTES = 7 * 4;
+    private static final long CHUNK_BYTES = (long) CHUNK_ROWS * ROW_BYTES;
+
+    /**
+     * Receives rows of the table.
+     */
+    public interface RowVisitor {
+        /**
+         * Called for each visited row.
+         * @param frame frame number
+         * @param x_px x-position in pixels
+         * @param y_px y-position in pixels
+         * @param z_nm z-position in nanometers, 0 for 2D analysis
+         * @param intensity mean intensity of the particle
+         * @param width_px width of the particle in pixels
+         * @param height_px height of the particle in pixels
+         */
+        public void visit(int frame, float x_px, float y_px, float z_nm,
+                float intensity, float width_px, float height_px);
+    }
+
+    private final long memory_budget;
+    private final File spill_file;
+    private final AtomicLong next_chunk_id = new AtomicLong(0);
+    private final AtomicLong chunks_in_memory = new AtomicLong(0);
+
+    // appenders of all threads, each with its current chunk
+    private final ConcurrentLinkedQueue<Appender> appenders =
+            new ConcurrentLinkedQueue<Appender>();
+    private final ThreadLocal<Appender> local_appender = new ThreadLocal<Appender>() {
+        @Override
+        protected Appender initialValue() {
+            Appender appender = new Appender();
+            appenders.add(appender);
+            return appender;
+        }
+    };
+    // full chunks which are still in memory, oldest first
+    private final ConcurrentLinkedQueue<Chunk> full_chunks =
+            new ConcurrentLinkedQueue<Chunk>();
+
+    // guards the spill file and its index
+    private final Object spill_lock = new Object();
+    private RandomAccessFile spill_access = null;
+    private final List<SpilledChunk> spilled_chunks = new ArrayList<SpilledChunk>();
+    private volatile long spilled_rows = 0;
+
+    /**
+     * Initialize the table with the default memory budget and a temporary
+     * spill file, which is deleted when the JVM exits.
+     */
+    public ParticleTable() {
+        this(DEFAULT_MEMORY_BUDGET, null);
+    }
+
+    /**
+     * Initialize the table.
+     * @param memory_budget maximal size of full chunks kept in memory in
+     *  bytes, older chunks are spilled to disk
+     * @param spill_file file to spill old chunks to, or null for a temporary
+     *  file which is deleted when the JVM exits
+     */
+    public ParticleTable(long memory_budget, File spill_file) {
+        if (memory_budget < 0)
+            throw new IllegalArgumentException("Memory budget must not be negative!");
+        this.memory_budget = memory_budget;
+        this.spill_file = spill_file;
+    }
+
+    /**
+     * Appends a row to the buffer of the calling thread.
+     * @param frame frame number
+     * @param x_px x-position in pixels
+     * @param y_px y-position in pixels
+     * @param z_nm z-position in nanometers, 0 for 2D analysis
+     * @param intensity mean intensity of the particle
+     * @param width_px width of the particle in pixels
+     * @param height_px height of the particle in pixels
+     */
+    public void add(int frame, double x_px, double y_px, double z_nm,
+            double intensity, double width_px, double height_px) {
+        Appender appender = local_appender.get();
+        Chunk chunk = appender.current;
+        int row = chunk.size;
+        chunk.frame[row] = frame;
+        chunk.x_px[row] = (float) x_px;
+        chunk.y_px[row] = (float) y_px;
+        chunk.z_nm[row] = (float) z_nm;
+        chunk.intensity[row] = (float) intensity;
+        chunk.width_px[row] = (float) width_px;
+        chunk.height_px[row] = (float) height_px;
+        // volatile write publishes the row to readers
+        chunk.size = row + 1;
+        if (row + 1 == CHUNK_ROWS) {
+            // publish the full chunk before replacing it, so that readers,
+            // which look at current chunks first, never miss it
+            full_chunks.add(chunk);
+            appender.current = new Chunk(next_chunk_id.getAndIncrement());
+            if (chunks_in_memory.incrementAndGet() * CHUNK_BYTES > memory_budget) {
+                spillOldChunks();
+            }
+        }
+    }
+
+    /**
+     * Writes the oldest full chunks to the spill file until the memory budget
+     * is met.
+     */
+    private void spillOldChunks() {
+        synchronized(spill_lock) {
+            while (chunks_in_memory.get() * CHUNK_BYTES > memory_budget) {
+                Chunk oldest = full_chunks.peek();
+                if (oldest == null)
+                    return;
+                try {
+                    spill(oldest);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Unable to spill particles to disk.", ex);
+                }
+                // remove only after it is readable from disk
+                full_chunks.poll();
+                chunks_in_memory.decrementAndGet();
+            }
+        }
+    }
+
+    private void spill(Chunk chunk) throws IOException {
+        if (spill_access == null) {
+            File file = spill_file;
+            if (file == null) {
+                file = File.createTempFile("alica_particles", ".bin");
+                file.deleteOnExit();
+            }
+            spill_access = new RandomAccessFile(file, "rw");
+            spill_access.setLength(0);
+        }
+        int rows = chunk.size;
+        ByteBuffer buffer = ByteBuffer.allocate(rows * ROW_BYTES);
+        buffer.asIntBuffer().put(chunk.frame, 0, rows);
+        buffer.position(rows * 4);
+        putFloats(buffer, chunk.x_px, rows);
+        putFloats(buffer, chunk.y_px, rows);
+        putFloats(buffer, chunk.z_nm, rows);
+        putFloats(buffer, chunk.intensity, rows);
+        putFloats(buffer, chunk.width_px, rows);
+        putFloats(buffer, chunk.height_px, rows);
+        long offset = spill_access.length();
+        spill_access.seek(offset);
+        spill_access.write(buffer.array());
+        spilled_chunks.add(new SpilledChunk(chunk.id, offset, rows));
+        spilled_rows += rows;
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] values, int rows) {
+        buffer.asFloatBuffer().put(values, 0, rows);
+        buffer.position(buffer.position() + rows * 4);
+    }
+
+    private Chunk readSpilled(SpilledChunk spilled) throws IOException {
+        byte[] bytes = new byte[spilled.rows * ROW_BYTES];
+        spill_access.seek(spilled.offset);
+        spill_access.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Chunk chunk = new Chunk(spilled.id);
+        int rows = spilled.rows;
+        buffer.asIntBuffer().get(chunk.frame, 0, rows);
+        buffer.position(rows * 4);
+        getFloats(buffer, chunk.x_px, rows);
+        getFloats(buffer, chunk.y_px, rows);
+        getFloats(buffer, chunk.z_nm, rows);
+        getFloats(buffer, chunk.intensity, rows);
+        getFloats(buffer, chunk.width_px, rows);
+        getFloats(buffer, chunk.height_px, rows);
+        chunk.size = rows;
+        return chunk;
+    }
+
+    private static void getFloats(ByteBuffer buffer, float[] values, int rows) {
+        buffer.asFloatBuffer().get(values, 0, rows);
+        buffer.position(buffer.position() + rows * 4);
+    }
+
+    /**
+     * Visits all rows: first the spilled ones, then full chunks in memory,
+     * then the rows in the buffers of the appending threads.
+     * @param visitor receives the rows
+     */
+    public void forEachRow(RowVisitor visitor) {
+        // current chunks are read first; a chunk which fills up meanwhile
+        // is then also found among the full or spilled chunks, and is
+        // skipped there by its id
+        List<Chunk> current = new ArrayList<Chunk>();
+        for (Appender appender: appenders) {
+            current.add(appender.current);
+        }
+        Set<Long> visited = new HashSet<Long>();
+        synchronized(spill_lock) {
+            try {
+                for (SpilledChunk spilled: spilled_chunks) {
+                    visitChunk(readSpilled(spilled), visitor, visited);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Unable to read spilled particles.", ex);
+            }
+            // full chunks are removed only after they are spilled, so
+            // holding the lock here guarantees none is missed
+            for (Chunk chunk: full_chunks) {
+                visitChunk(chunk, visitor, visited);
+            }
+        }
+        for (Chunk chunk: current) {
+            visitChunk(chunk, visitor, visited);
+        }
+    }
+
+    private static void visitChunk(Chunk chunk, RowVisitor visitor, Set<Long> visited) {
+        if (!visited.add(chunk.id))
+            return;
+        int rows = chunk.size;
+        for (int i = 0; i < rows; i++) {
+            visitor.visit(chunk.frame[i], chunk.x_px[i], chunk.y_px[i],
+                    chunk.z_nm[i], chunk.intensity[i], chunk.width_px[i],
+                    chunk.height_px[i]);
+        }
+    }
+
+    /**
+     *
+     * @return number of rows in the table
+     */
+    public long size() {
+        List<Chunk> current = new ArrayList<Chunk>();
+        for (Appender appender: appenders) {
+            current.add(appender.current);
+        }
+        Set<Long> visited = new HashSet<Long>();
+        long count;
+        synchronized(spill_lock) {
+            for (SpilledChunk spilled: spilled_chunks) {
+                visited.add(spilled.id);
+            }
+            count = spilled_rows;
+            for (Chunk chunk: full_chunks) {
+                if (visited.add(chunk.id))
+                    count += chunk.size;
+            }
+        }
+        for (Chunk chunk: current) {
+            if (visited.add(chunk.id))
+                count += chunk.size;
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return number of rows which were spilled to disk
+     */
+    public long getSpilledRowCount() {
+        return spilled_rows;
+    }
+
+    /**
+     * Removes all rows. Must not be called while other threads append.
+     */
+    public void reset() {
+        synchronized(spill_lock) {
+            for (Appender appender: appenders) {
+                appender.current = new Chunk(next_chunk_id.getAndIncrement());
+            }
+            full_chunks.clear();
+            chunks_in_memory.set(0);
+            spilled_chunks.clear();
+            spilled_rows = 0;
+            if (spill_access != null) {
+                try {
+                    spill_access.setLength(0);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Unable to truncate spill file.", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the spill file. The table must not be used afterwards.
+     */
+    public void close() {
+        synchronized(spill_lock) {
+            if (spill_access != null) {
+                try {
+                    spill_access.close();
+                } catch (IOException ex) {
+                    throw new RuntimeException("Unable to close spill file.", ex);
+                }
+                spill_access = null;
+            }
+        }
+    }
+
+    /**
+     * Copies the table into an ImageJ ResultsTable for display.
+     * @return new ResultsTable with one row per particle
+     */
+    public ResultsTable toResultsTable() {
+        final ResultsTable table = new ResultsTable();
+        table.setPrecision(3);
+        forEachRow(new RowVisitor() {
+            @Override
+            public void visit(int frame, float x_px, float y_px, float z_nm,
+                    float intensity, float width_px, float height_px) {
+                table.incrementCounter();
+                table.addValue("Intensity", intensity);
+                table.addValue("X (px)", x_px);
+                table.addValue("Y (px)", y_px);
+                table.addValue("Z (nm)", z_nm);
+                table.addValue("Width (px)", width_px);
+                table.addValue("Height (px)", height_px);
+                table.addValue("Frame Number", frame);
+            }
+        });
+        return table;
+    }
+
+    /**
+     * Columns of up to CHUNK_ROWS rows, written only by the owning thread.
+     */
+    private static class Chunk {
+        final long id;
+        final int[] frame = new int[CHUNK_ROWS];
+        final float[] x_px = new float[CHUNK_ROWS];
+        final float[] y_px = new float[CHUNK_ROWS];
+        final float[] z_nm = new float[CHUNK_ROWS];
+        final float[] intensity = new float[CHUNK_ROWS];
+        final float[] width_px = new float[CHUNK_ROWS];
+        final float[] height_px = new float[CHUNK_ROWS];
+        volatile int size = 0;
+
+        Chunk(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Append buffer of one thread.
+     */
+    private class Appender {
+        volatile Chunk current = new Chunk(next_chunk_id.getAndIncrement());
+    }
+
+    /**
+     * Location of a chunk in the spill file.
+     */
+    private static class SpilledChunk {
+        final long id;
+        final long offset;
+        final int rows;
+
+        SpilledChunk(long id, long offset, int rows) {
+            this.id = id;
+            this.offset = offset;
+            this.rows = rows;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package ch.epfl.leb.alica.analyzers.quickpalm;
 
 import ch.epfl.leb.alica.Analyzer;
 import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
+import ch.epfl.leb.alica.analyzers.LocalizationWriter;
 import ij.gui.Roi;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
@@ -53,7 +54,24 @@ public class QuickPalm implements Analyzer {
      * @param live_view if true, live view of particle positions is shown
      */
     public QuickPalm(boolean live_view) {
-        core = new QuickPalmCore(live_view);
+        this(new QuickPalmCore(live_view));
+    }
+    
+    /**
+     * Initializes QuickPALM with the given parameters, without asking for
+     * them in a dialog.
+     * @param live_view if true, live view of particle positions is shown
+     * @param min_snr minimum signal to noise ratio of a particle
+     * @param max_fwhm maximum FWHM of a particle in pixels
+     * @param pixel_size_nm image plane pixel size in nm
+     */
+    public QuickPalm(boolean live_view, int min_snr, double max_fwhm,
+            double pixel_size_nm) {
+        this(new QuickPalmCore(live_view, min_snr, max_fwhm, pixel_size_nm));
+    }
+    
+    private QuickPalm(QuickPalmCore core) {
+        this.core = core;
         intermittent_outputs = new ArrayList<Double>();
     }
     
@@ -119,6 +137,23 @@ public class QuickPalm implements Analyzer {
         core.dispose();
     }
 
+    /**
+     * 
+     * @return table of all particles detected so far
+     */
+    public ParticleTable getParticleTable() {
+        return core.getParticleTable();
+    }
+
+    /**
+     * Saves the particles of each following frame to a localization file.
+     * The writer is closed when the analyzer is disposed.
+     * @param writer writer of the localization file, null to stop saving
+     */
+    public void setLocalizationWriter(LocalizationWriter writer) {
+        core.setLocalizationWriter(writer);
+    }
+
     @Override
     public AnalyzerStatusPanel getStatusPanel() {
         return null;
@@ -19,6 +19,7 @@
  */
 package ch.epfl.leb.alica.analyzers.quickpalm;
 
+import ch.epfl.leb.alica.analyzers.LocalizationWriter;
 import ij.process.ImageProcessor;
 import java.util.ArrayList;
 
@@ -45,6 +46,22 @@ public class QuickPalmCore {
         if (!dg.analyseParticles(f))
             throw new RuntimeException("Error in analysis setup.");
     }
+    
+    /**
+     * Initializes the core with the given parameters, without a dialog.
+     * @param live_view if true, live view of particle positions will be shown
+     * @param min_snr minimum signal to noise ratio of a particle
+     * @param max_fwhm maximum FWHM of a particle in pixels
+     * @param pixel_size_nm image plane pixel size in nm
+     */
+    public QuickPalmCore(boolean live_view, int min_snr, double max_fwhm,
+            double pixel_size_nm) {
+        dg = new MyDialogs();
+        dg.setParameters(min_snr, max_fwhm, pixel_size_nm, false);
+        f = new MyFunctions(live_view);
+        
+        f.ptable.reset(); // erase particle table
+    }
         
     /**
      * Counts particles in the image.
@@ -60,6 +77,23 @@ public class QuickPalmCore {
         return this.f.detectParticles(ip, this.dg, frame);
     }
     
+    /**
+     * 
+     * @return table of all particles detected so far
+     */
+    public ParticleTable getParticleTable() {
+        return f.ptable;
+    }
+    
+    /**
+     * Saves the particles of each following frame to a localization file.
+     * The writer is closed when the core is disposed.
+     * @param writer writer of the localization file, null to stop saving
+     */
+    public void setLocalizationWriter(LocalizationWriter writer) {
+        f.lwriter = writer;
+    }
+    
     /**
      * Close preview window if opened.
      */
@@ -25,6 +25,12 @@ import ij.process.ImageProcessor;
 import ij.plugin.filter.GaussianBlur;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 
@@ -105,14 +111,221 @@ public class FindLocalMaxima {
            FilterType filterType) {
       
       Polygon maxima = new Polygon();
-      Rectangle roi_rect;
+      FindMax(iProc, roi, n, threshold, filterType, maxima);
+      return maxima;
+   }
+   
+   /**
+    * Same as FindMax, but the maxima are stored into a Polygon supplied by
+    * the caller. The Polygon is reset first, and its coordinate arrays are
+    * reused, so repeated calls do not allocate once the arrays are large
+    * enough.
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param roi - region of interest to which the analysis is constrained
+    * @param n - minimum distance to other local maximum
+    * @param threshold - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+    * @param maxima - Polygon into which the maxima are stored
+    */
+   public static void FindMax(
+           ImageProcessor iProc,
+           Roi roi,
+           int n, 
+           int threshold, 
+           FilterType filterType,
+           Polygon maxima) {
+      
+      maxima.reset();
+      Rectangle roi_rect = getAnalyzedBounds(iProc, roi);
+      
+      // Prefilter if needed
+      iProc = prefilter(iProc, filterType);
+
+      // divide the image up in blocks of size n and find local maxima
+      findMaxInBlockColumns(iProc, roi_rect, n, threshold, 0,
+              countBlockColumns(roi_rect, n), maxima);
+   }
+   
+   /**
+    * Same as FindMax, but the ROI is split into vertical stripes which are
+    * scanned in parallel. The stripes read the pixels of their neighbours as
+    * a halo, and the maxima are merged in stripe order, so the result is
+    * identical to the one of FindMax.
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param roi - region of interest to which the analysis is constrained
+    * @param n - minimum distance to other local maximum
+    * @param threshold - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+    * @param executor - executor on which the stripes are scanned
+    * @param n_stripes - number of stripes to split the ROI into
+    * @return Polygon with maxima 
+    */
+   public static Polygon FindMaxTiled(
+           ImageProcessor iProc,
+           Roi roi,
+           final int n,
+           final int threshold,
+           FilterType filterType,
+           ExecutorService executor,
+           int n_stripes) {
+      Polygon maxima = new Polygon();
+      FindMaxTiled(iProc, roi, n, threshold, filterType, executor, n_stripes, maxima);
+      return maxima;
+   }
+   
+   /**
+    * Same as FindMaxTiled, but the maxima are stored into a Polygon supplied
+    * by the caller, which is reset first.
+    * 
+    * @param iProc - ImageProcessor object in which to look for local maxima
+    * @param roi - region of interest to which the analysis is constrained
+    * @param n - minimum distance to other local maximum
+    * @param threshold - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+    * @param executor - executor on which the stripes are scanned
+    * @param n_stripes - number of stripes to split the ROI into
+    * @param maxima - Polygon into which the maxima are stored
+    */
+   public static void FindMaxTiled(
+           ImageProcessor iProc,
+           Roi roi,
+           final int n,
+           final int threshold,
+           FilterType filterType,
+           ExecutorService executor,
+           int n_stripes,
+           Polygon maxima) {
+      
+      new TiledScanner(executor, Math.max(1, n_stripes)).findMax(
+              iProc, roi, n, threshold, filterType, maxima);
+   }
+   
+   /**
+    * Scans the ROI in vertical stripes in parallel, like FindMaxTiled, but
+    * keeps its stripe tasks and their Polygons between calls, so that
+    * repeated scans only allocate the futures of the executor.
+    * A scanner must only be used by one thread at a time.
+    */
+   public static class TiledScanner {
+      private final ExecutorService executor;
+      private final List<StripeTask> tasks;
+      
+      /**
+       * @param executor - executor on which the stripes are scanned
+       * @param n_stripes - maximum number of stripes to split the ROI into
+       */
+      public TiledScanner(ExecutorService executor, int n_stripes) {
+         if (executor == null)
+            throw new NullPointerException("You need to set an executor!");
+         if (n_stripes < 1)
+            throw new IllegalArgumentException("Number of stripes must be at least 1!");
+         this.executor = executor;
+         this.tasks = new ArrayList<StripeTask>(n_stripes);
+         for (int s = 0; s < n_stripes; s++) {
+            tasks.add(new StripeTask());
+         }
+      }
+      
+      /**
+       * Same as FindMaxTiled with the executor and number of stripes of
+       * the scanner.
+       * 
+       * @param iProc - ImageProcessor object in which to look for local maxima
+       * @param roi - region of interest to which the analysis is constrained
+       * @param n - minimum distance to other local maximum
+       * @param threshold - value below which a maximum will be rejected
+       * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+       * @param maxima - Polygon into which the maxima are stored
+       */
+      public void findMax(
+              ImageProcessor iProc,
+              Roi roi,
+              int n,
+              int threshold,
+              FilterType filterType,
+              Polygon maxima) {
+         
+         maxima.reset();
+         Rectangle roi_rect = getAnalyzedBounds(iProc, roi);
+         ImageProcessor filtered = prefilter(iProc, filterType);
+         
+         int n_columns = countBlockColumns(roi_rect, n);
+         int n_stripes = Math.min(tasks.size(), n_columns);
+         if (n_stripes <= 1) {
+            findMaxInBlockColumns(filtered, roi_rect, n, threshold, 0, n_columns, maxima);
+            return;
+         }
+         
+         // distribute block columns evenly among stripes
+         for (int s = 0; s < n_stripes; s++) {
+            tasks.get(s).set(filtered, roi_rect, n, threshold,
+                    (int) ((long) n_columns * s / n_stripes),
+                    (int) ((long) n_columns * (s + 1) / n_stripes));
+         }
+         List<StripeTask> active = (n_stripes == tasks.size()) ?
+                 tasks : tasks.subList(0, n_stripes);
+         
+         // merge the stripes in order
+         try {
+            for (Future<Polygon> f: executor.invokeAll(active)) {
+               Polygon stripe_maxima = f.get();
+               for (int i = 0; i < stripe_maxima.npoints; i++) {
+                  maxima.addPoint(stripe_maxima.xpoints[i], stripe_maxima.ypoints[i]);
+               }
+            }
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while finding local maxima.", ex);
+         } catch (ExecutionException ex) {
+            throw new RuntimeException("Error in finding local maxima.", ex.getCause());
+         } finally {
+            // do not keep the image alive between frames
+            for (int s = 0; s < n_stripes; s++) {
+               tasks.get(s).set(null, null, 0, 0, 0, 0);
+            }
+         }
+      }
+   }
+   
+   /**
+    * Scans one stripe of block columns into its own Polygon.
+    */
+   private static class StripeTask implements Callable<Polygon> {
+      private final Polygon stripe_maxima = new Polygon();
+      private ImageProcessor iProc;
+      private Rectangle roi_rect;
+      private int n, threshold, first_column, last_column;
+      
+      void set(ImageProcessor iProc, Rectangle roi_rect, int n, int threshold,
+              int first_column, int last_column) {
+         this.iProc = iProc;
+         this.roi_rect = roi_rect;
+         this.n = n;
+         this.threshold = threshold;
+         this.first_column = first_column;
+         this.last_column = last_column;
+      }
+      
+      @Override
+      public Polygon call() {
+         stripe_maxima.reset();
+         findMaxInBlockColumns(iProc, roi_rect, n, threshold,
+                 first_column, last_column, stripe_maxima);
+         return stripe_maxima;
+      }
+   }
+   
+   private static Rectangle getAnalyzedBounds(ImageProcessor iProc, Roi roi) {
       if (roi!=null) {
-        roi_rect = roi.getBounds();
+        return roi.getBounds();
       } else {
-        roi_rect = iProc.getRoi();
+        return iProc.getRoi();
       }
-      
-      // Prefilter if needed
+   }
+   
+   private static ImageProcessor prefilter(ImageProcessor iProc, FilterType filterType) {
       switch (filterType) {
          case GAUSSIAN1_5 : 
             // TODO: if there is an ROI, we only need to filter_ in the ROI
@@ -123,20 +336,60 @@ public class FindLocalMaxima {
             ImagePlus p1 = new ImagePlus("G1", iProcG1);
             ImagePlus p5 = new ImagePlus("G5", iProcG5);
             IC.run("subtract", p1, p5);
-            iProc = p1.getProcessor();
-                      
-            break;
+            return p1.getProcessor();
+         default:
+            return iProc;
       }
+   }
 
 
-      // divide the image up in blocks of size n and find local maxima
+   /**
+    * Number of columns of n2 x n2 blocks which FindMax scans in the ROI.
+    * 
+    * @param roi_rect - bounds of the analyzed region
+    * @param n - minimum distance to other local maximum
+    * @return number of block columns
+    */
+   static int countBlockColumns(Rectangle roi_rect, int n) {
+      int n2 = 2*n + 1;
+      int xStart = roi_rect.x + n/2;
+      int xEnd = roi_rect.x + roi_rect.width - n;
+      if (xEnd <= xStart) {
+         return 0;
+      }
+      return (xEnd - xStart + n2 - 1) / n2;
+   }
+   
+   /**
+    * Finds local maxima in a vertical stripe of block columns of the ROI, 
+    * and appends them to maxima. The pixels around the stripe are read from
+    * the whole image, so maxima on stripe edges are checked against their
+    * full neighbourhood. Each block contributes at most one maximum, so
+    * stripes never report the same point twice.
+    * 
+    * @param iProc - image in which to look for local maxima, only read
+    * @param roi_rect - bounds of the analyzed region
+    * @param n - minimum distance to other local maximum
+    * @param threshold - value below which a maximum will be rejected
+    * @param first_column - index of first block column of the stripe
+    * @param last_column - index after the last block column of the stripe
+    * @param maxima - Polygon to which found maxima are added
+    */
+   private static void findMaxInBlockColumns(
+           ImageProcessor iProc,
+           Rectangle roi_rect,
+           int n,
+           int threshold,
+           int first_column,
+           int last_column,
+           Polygon maxima) {
       int n2 = 2*n + 1;
       // calculate borders once
       int xRealEnd = roi_rect.x + roi_rect.width;
-      int xEnd = xRealEnd - n;
       int yRealEnd = roi_rect.y + roi_rect.height;
       int yEnd = yRealEnd - n;
-      for (int i=roi_rect.x + n/2; i < xEnd; i+=n2) {
+      for (int k = first_column; k < last_column; k++) {
+         int i = roi_rect.x + n/2 + k*n2;
          for (int j=roi_rect.y + n/2; j < yEnd; j+=n2) {
             int mi = i;
             int mj = j;
@@ -198,9 +451,6 @@ public class FindLocalMaxima {
                maxima.addPoint(mi, mj);
          }
       }
-
-
-      return maxima;
    }
 
 
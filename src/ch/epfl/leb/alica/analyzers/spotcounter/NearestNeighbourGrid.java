@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.spotcounter;
+
+import java.util.Arrays;
+
+/**
+ * Computes the distance of each point to its nearest neighbour using a
+ * uniform grid of square cells, which holds about one point per cell.
+ * Neighbours are searched in growing rings of cells around the cell of the
+ * point, until no closer neighbour can exist in the next ring. For spots
+ * spread over the image this takes near-linear time instead of O(n^2).
+ *
+ * Buffers are reused between calls, so an instance is not thread-safe.
+ * @author Marcel Stefko
+ */
+public class NearestNeighbourGrid {
+    /**
+     * Squared distance reported for a point which has no neighbour.
+     */
+    public static final double NO_NEIGHBOUR_DIST2 = 1000000000.0;
+
+    // start index of each cell in cell_points, one extra entry at the end
+    private int[] cell_start = new int[0];
+    // point indices sorted by cell
+    private int[] cell_points = new int[0];
+    // cell index of each point
+    private int[] point_cell = new int[0];
+
+    /**
+     * Computes the nearest neighbour distance of each point.
+     * @param xs x-coordinates of the points
+     * @param ys y-coordinates of the points
+     * @param n number of points
+     * @param distances output array of length at least n, receives the
+     *  distance of each point to its nearest neighbour, or
+     *  sqrt(NO_NEIGHBOUR_DIST2) if it has none
+     */
+    public void computeDistances(int[] xs, int[] ys, int n, double[] distances) {
+        if (n == 0)
+            return;
+        int min_x = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE;
+        int min_y = Integer.MAX_VALUE, max_y = Integer.MIN_VALUE;
+        for (int i=0; i<n; i++) {
+            if (xs[i] < min_x) min_x = xs[i];
+            if (xs[i] > max_x) max_x = xs[i];
+            if (ys[i] < min_y) min_y = ys[i];
+            if (ys[i] > max_y) max_y = ys[i];
+        }
+        long span_x = (long) max_x - min_x + 1;
+        long span_y = (long) max_y - min_y + 1;
+        // about one point per cell
+        long cell_size = (long) Math.ceil(Math.sqrt((double) span_x * span_y / n));
+        if (cell_size < 1)
+            cell_size = 1;
+        final int grid_w = (int) ((span_x + cell_size - 1) / cell_size);
+        final int grid_h = (int) ((span_y + cell_size - 1) / cell_size);
+        final int n_cells = grid_w * grid_h;
+
+        if (cell_start.length < n_cells + 1)
+            cell_start = new int[Math.max(n_cells + 1, 2 * cell_start.length)];
+        if (cell_points.length < n) {
+            cell_points = new int[Math.max(n, 2 * cell_points.length)];
+            point_cell = new int[cell_points.length];
+        }
+
+        // counting sort of points by cell
+        Arrays.fill(cell_start, 0, n_cells + 1, 0);
+        for (int i=0; i<n; i++) {
+            int cx = (int) ((xs[i] - min_x) / cell_size);
+            int cy = (int) ((ys[i] - min_y) / cell_size);
+            point_cell[i] = cy * grid_w + cx;
+            cell_start[point_cell[i] + 1]++;
+        }
+        for (int c=0; c<n_cells; c++) {
+            cell_start[c + 1] += cell_start[c];
+        }
+        for (int i=0; i<n; i++) {
+            // cell_start[c] is used as insertion cursor, and restored below
+            cell_points[cell_start[point_cell[i]]++] = i;
+        }
+        for (int c=n_cells; c>0; c--) {
+            cell_start[c] = cell_start[c - 1];
+        }
+        cell_start[0] = 0;
+
+        final int max_ring = Math.max(grid_w, grid_h);
+        for (int i=0; i<n; i++) {
+            final int x = xs[i];
+            final int y = ys[i];
+            final int cx = point_cell[i] % grid_w;
+            final int cy = point_cell[i] / grid_w;
+            double best = NO_NEIGHBOUR_DIST2;
+            for (int r=0; r<=max_ring; r++) {
+                int y0 = cy - r, y1 = cy + r;
+                int x0 = cx - r, x1 = cx + r;
+                for (int gy = Math.max(y0, 0); gy <= Math.min(y1, grid_h - 1); gy++) {
+                    // inner rows of the ring only have their two edge cells
+                    boolean edge_row = (gy == y0 || gy == y1);
+                    int step = edge_row ? 1 : 2 * r;
+                    for (int gx = x0; gx <= x1; gx += step) {
+                        if (gx < 0 || gx >= grid_w)
+                            continue;
+                        int c = gy * grid_w + gx;
+                        for (int k = cell_start[c]; k < cell_start[c + 1]; k++) {
+                            int j = cell_points[k];
+                            if (j == i)
+                                continue;
+                            double dx = x - xs[j];
+                            double dy = y - ys[j];
+                            double dist2 = dx*dx + dy*dy;
+                            if (dist2 < best)
+                                best = dist2;
+                        }
+                    }
+                }
+                // every cell of the next ring is at least r cells away
+                double reach = (double) r * cell_size;
+                if (best <= reach * reach)
+                    break;
+            }
+            distances[i] = Math.sqrt(best);
+        }
+    }
+
+    /**
+     * Computes the nearest neighbour distance of each point by comparing
+     * all pairs of points. Reference for the grid search.
+     * @param xs x-coordinates of the points
+     * @param ys y-coordinates of the points
+     * @param n number of points
+     * @param distances output array of length at least n
+     */
+    public static void computeDistancesBruteForce(int[] xs, int[] ys, int n, double[] distances) {
+        for (int i=0; i<n; i++) {
+            double min_dist2 = NO_NEIGHBOUR_DIST2;
+            for (int j=0; j<n; j++) {
+                if (i==j)
+                    continue;
+                double dx = xs[i] - xs[j];
+                double dy = ys[i] - ys[j];
+                double dist2 = dx*dx + dy*dy;
+                if (dist2<min_dist2)
+                    min_dist2 = dist2;
+            }
+            distances[i] = Math.sqrt(min_dist2);
+        }
+    }
+}
@@ -21,11 +21,10 @@ package ch.epfl.leb.alica.analyzers.spotcounter;
 
 import ch.epfl.leb.alica.Analyzer;
 import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
+import ch.epfl.leb.alica.analyzers.LocalizationWriter;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.ShortProcessor;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  *
@@ -43,7 +42,12 @@ public class SpotCounter implements Analyzer {
     private final SpotCounterCore core;
     private final SpotCounterStatusPanel status_panel;
     
-    private final ArrayList<Double> intermittent_outputs;
+    // running sum of outputs since last batch output query
+    private double intermittent_output_sum = 0.0;
+    private int intermittent_output_count = 0;
+    
+    // wraps the pixels of the current image, reused between frames
+    private ShortProcessor image_processor = null;
     
     private Roi roi;
     private double intermittent_output = 0.0;
@@ -55,12 +59,32 @@ public class SpotCounter implements Analyzer {
      * @param live_view if true, live preview is shown
      */
     public SpotCounter(int noise_tolerance, int box_size, boolean live_view) {
-        intermittent_outputs = new ArrayList<Double>();
-        this.core = new SpotCounterCore(noise_tolerance, box_size, live_view);
+        this(noise_tolerance, box_size, live_view, 1);
+    }
+    
+    /**
+     * Initialize the analyzer
+     * @param noise_tolerance required height of peak around surroundings
+     * @param box_size size of the scanning box in pixels
+     * @param live_view if true, live preview is shown
+     * @param n_threads number of threads which scan stripes of the image in
+     *  parallel, 1 for serial analysis
+     */
+    public SpotCounter(int noise_tolerance, int box_size, boolean live_view, int n_threads) {
+        this.core = new SpotCounterCore(noise_tolerance, box_size, live_view, n_threads);
         this.status_panel = new SpotCounterStatusPanel(core);
     }
     
 
+    /**
+     * Saves the spots of each following frame to a localization file. The
+     * writer is closed when the analyzer is disposed.
+     * @param writer writer of the localization file, null to stop saving
+     */
+    public void setLocalizationWriter(LocalizationWriter writer) {
+        core.setLocalizationWriter(writer);
+    }
+
     @Override
     public double getIntermittentOutput() {
         return intermittent_output;
@@ -89,28 +113,31 @@ public class SpotCounter implements Analyzer {
                        roi.getBounds().getWidth() * roi.getBounds().getHeight();
         }
         
-        ShortProcessor sp = new ShortProcessor(image_width, image_height);
-        sp.setPixels(image);
+        // the core only reads the pixels, so no copy of the image is needed
+        if (image_processor == null || 
+                image_processor.getWidth() != image_width ||
+                image_processor.getHeight() != image_height) {
+            image_processor = new ShortProcessor(image_width, image_height);
+        }
+        image_processor.setPixels(image);
         
-        HashMap<String,Double> results = core.analyze(sp.duplicate());
+        SpotFrameStats stats = core.analyzeFrame(image_processor);
         synchronized(this) {
-            intermittent_output = results.get("spot-count") /
+            intermittent_output = stats.spot_count /
                                   fov_area * SCALEFACTOR;
-            intermittent_outputs.add(intermittent_output);
+            intermittent_output_sum += intermittent_output;
+            intermittent_output_count++;
         }
     }
 
     @Override
-    public double getBatchOutput() {
-        if (intermittent_outputs.size() == 0)
+    public synchronized double getBatchOutput() {
+        if (intermittent_output_count == 0)
             return Double.NaN;
-        double mean_output = 0.0;
-        for (double d: intermittent_outputs) {
-            mean_output += d;
-        }
-        mean_output /= intermittent_outputs.size();
+        double mean_output = intermittent_output_sum / intermittent_output_count;
         
-        intermittent_outputs.clear();
+        intermittent_output_sum = 0.0;
+        intermittent_output_count = 0;
         return mean_output;
     }
     
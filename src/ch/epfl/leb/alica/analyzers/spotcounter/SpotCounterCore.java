@@ -20,6 +20,7 @@ package ch.epfl.leb.alica.analyzers.spotcounter;
 
 ///////////////////////////////////////////////////////////////////////////////
 
+import ch.epfl.leb.alica.analyzers.LocalizationWriter;
 import ij.ImagePlus;
 import ij.gui.Overlay;
 import ij.gui.Roi;
@@ -27,13 +28,12 @@ import ij.measure.ResultsTable;
 import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Polygon;
-import java.awt.Rectangle;
-import static java.lang.Math.ceil;
+import java.io.IOException;
 import static java.lang.Math.floor;
-import static java.lang.Math.sqrt;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Core of the SpotCounter algorithm
@@ -54,6 +54,21 @@ public class SpotCounterCore {
     private int boxSize_;
     private int noiseTolerance_;
     private Roi roi;
+    // scans image stripes in parallel, null if the analysis is serial
+    private final ExecutorService stripe_executor;
+    private final FindLocalMaxima.TiledScanner stripe_scanner;
+    private final int n_threads;
+    
+    // reused for every frame, so that the analysis does not allocate
+    private final Polygon spots = new Polygon();
+    private final SpotFrameStats frame_stats = new SpotFrameStats();
+    private double[] nn_distances = new double[0];
+    private final NearestNeighbourGrid nn_grid = new NearestNeighbourGrid();
+    
+    // receives the spots of each frame, null if they are not saved
+    private LocalizationWriter localization_writer = null;
+    // number of the last analyzed frame, frames are numbered from 1
+    private int frame_number = 0;
     
     /**
      *
@@ -62,9 +77,38 @@ public class SpotCounterCore {
      * @param live_mode if true, live preview is shown
      */
     public SpotCounterCore(int noiseTolerance, int boxSize, boolean live_mode) {
+        this(noiseTolerance, boxSize, live_mode, 1);
+    }
+    
+    /**
+     *
+     * @param noiseTolerance minimum peak value
+     * @param boxSize size of scanning box
+     * @param live_mode if true, live preview is shown
+     * @param n_threads number of threads which scan stripes of the image in
+     *  parallel, 1 for serial analysis
+     */
+    public SpotCounterCore(int noiseTolerance, int boxSize, boolean live_mode, int n_threads) {
+        if (n_threads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1!");
         boxSize_ = boxSize;
         noiseTolerance_ = noiseTolerance;
         this.live_mode = live_mode;
+        this.n_threads = n_threads;
+        if (n_threads > 1) {
+            this.stripe_executor = Executors.newFixedThreadPool(n_threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SpotCounter stripe worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.stripe_scanner = new FindLocalMaxima.TiledScanner(stripe_executor, n_threads);
+        } else {
+            this.stripe_executor = null;
+            this.stripe_scanner = null;
+        }
         
         this.live_view = new ImagePlus("SpotCounter live view");
         if (live_mode) {
@@ -79,6 +123,16 @@ public class SpotCounterCore {
         if (this.live_view != null) {
             this.live_view.hide();
         }
+        if (this.stripe_executor != null) {
+            this.stripe_executor.shutdownNow();
+        }
+        if (localization_writer != null) {
+            try {
+                localization_writer.close();
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to close the localization file!", ex);
+            }
+        }
     }
     
     /**
@@ -98,6 +152,23 @@ public class SpotCounterCore {
     public int getBoxSize() {
         return boxSize_;
     }
+    
+    /**
+     * 
+     * @return number of threads which scan the image in parallel
+     */
+    public int getThreadCount() {
+        return n_threads;
+    }
+    
+    /**
+     * Saves the spots of each following frame to a localization file. The
+     * writer is closed when the core is disposed.
+     * @param writer writer of the localization file, null to stop saving
+     */
+    public void setLocalizationWriter(LocalizationWriter writer) {
+        this.localization_writer = writer;
+    }
 
     /**
      * Analyzes the image and returns information about current state.
@@ -106,90 +177,161 @@ public class SpotCounterCore {
      * @return ResultsTable which contains information about analysis results.
      */
     public HashMap<String,Double> analyze(ImageProcessor ip) {
-        Overlay ov = getSpotOverlay(ip);
+        return analyzeFrame(ip).toMap();
+    }
+    
+    /**
+     * Analyzes the image without allocating per-spot objects. Spot positions
+     * are kept in a reusable Polygon, and the Overlay is only built if the
+     * live view is on. The image is only read, and is copied for the live
+     * view, so the caller can reuse its pixel buffer.
+     *
+     * @param ip - image to be analyzed
+     * @return reused statistics object, valid until the next call
+     */
+    public SpotFrameStats analyzeFrame(ImageProcessor ip) {
+        findSpots(ip);
+        writeLocalizations(ip);
         synchronized(live_view) {
             if (live_mode) {
-                live_view.setProcessor(ip);
-                live_view.setOverlay(ov);
+                live_view.setProcessor(ip.duplicate());
+                live_view.setOverlay(getSpotOverlay());
                 live_view.updateAndDraw();
                 if (!live_view.isVisible()) {
                     live_view.show();
                 }
             }
         }
-        return getFrameStats(ov);
-
+        computeFrameStats();
+        return frame_stats;
     }
     
     /**
-     * Analyzes the overlay and returns statistics about spot positions.
+     * Finds local maxima and stores them in the spots Polygon.
      *
-     * @param ov - Overlay which contains spot position information
-     * @return HashMap with spot position statistics.
+     * @param ip - ImageProcessor to be analyzed
      */
-    private HashMap<String, Double> getFrameStats(Overlay ov) {
-        HashMap<String, Double> map = new LinkedHashMap<String, Double>();
-        
-        double dist2;
-        double[] min_distances = new double[ov.size()];
-        for (int i=0; i<ov.size(); i++) {
-            Rectangle rect_i = ov.get(i).getBounds();
-            double min_dist2 = 1000000000.0;
-            for (int j=0; j<ov.size(); j++) {
-                if (i==j)
-                    continue;
-                Rectangle rect_j = ov.get(j).getBounds();
-                dist2 = ((rect_i.getCenterX() - rect_j.getCenterX())* 
-                         (rect_i.getCenterX() - rect_j.getCenterX()) ) +
-                        ((rect_i.getCenterY() - rect_j.getCenterY())* 
-                         (rect_i.getCenterY() - rect_j.getCenterY()) );
-                if (dist2<min_dist2)
-                    min_dist2 = dist2;
+    private void findSpots(ImageProcessor ip) {
+        if (stripe_executor == null) {
+            FindLocalMaxima.FindMax(
+                ip, roi, boxSize_, noiseTolerance_, filter_, spots);
+        } else {
+            stripe_scanner.findMax(
+                ip, roi, boxSize_, noiseTolerance_, filter_, spots);
+        }
+    }
+    
+    /**
+     * Appends the last found spots to the localization file, with their
+     * pixel value as intensity.
+     *
+     * @param ip - image in which the spots were found
+     */
+    private void writeLocalizations(ImageProcessor ip) {
+        final int frame = ++frame_number;
+        if (localization_writer == null)
+            return;
+        try {
+            localization_writer.beginFrame(frame);
+            for (int i = 0; i < spots.npoints; i++) {
+                int x = spots.xpoints[i];
+                int y = spots.ypoints[i];
+                localization_writer.add(x, y, 0.0f, ip.get(x, y));
             }
-            min_distances[i] = sqrt(min_dist2);
+            localization_writer.endFrame();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to write the localization file!", ex);
+        }
+    }
+    
+    /**
+     * Computes statistics about positions of the last found spots and stores
+     * them into frame_stats.
+     */
+    private void computeFrameStats() {
+        final int n = spots.npoints;
+        final int[] xs = spots.xpoints;
+        final int[] ys = spots.ypoints;
+        if (nn_distances.length < n) {
+            nn_distances = new double[Math.max(n, 2 * nn_distances.length)];
         }
         
-        Arrays.sort(min_distances);
+        nn_grid.computeDistances(xs, ys, n, nn_distances);
         double mean = 0.0;
-        for (double val: min_distances)
-            mean += val;
-        mean /= ov.size();
+        double min = Double.POSITIVE_INFINITY;
+        for (int i=0; i<n; i++) {
+            mean += nn_distances[i];
+            if (nn_distances[i] < min)
+                min = nn_distances[i];
+        }
+        mean /= n;
         
+        frame_stats.spot_count = n;
+        frame_stats.mean_distance = mean;
         // if no spots found
-        if (min_distances.length == 0) {
-            min_distances = new double[1];
-            min_distances[0] = 0.0;
+        if (n == 0) {
+            frame_stats.min_distance = 0.0;
+            frame_stats.p10_distance = 0.0;
+        } else {
+            frame_stats.min_distance = min;
+            frame_stats.p10_distance = selectKth(nn_distances, n, (int) floor((double) n / 10.0));
         }
-        
-        map.put("min-distance", min_distances[0]);
-        map.put("mean-distance", mean);
-        int p10 = (int) floor((double) ov.size() / 10.0);
-        map.put("p10-distance", min_distances[p10]);
-        map.put("spot-count", (double)ov.size());
-        return map;
+    }
+    
+    /**
+     * Finds the k-th smallest of the first n values of the array by
+     * partitioning it in place.
+     * 
+     * @param a values, reordered by the call
+     * @param n number of valid values
+     * @param k rank of the requested value, 0 for the smallest
+     * @return k-th smallest value
+     */
+    static double selectKth(double[] a, int n, int k) {
+        int left = 0;
+        int right = n - 1;
+        while (right > left) {
+            // median of three pivot
+            int mid = (left + right) >>> 1;
+            double pivot = Math.max(Math.min(a[left], a[mid]), 
+                    Math.min(Math.max(a[left], a[mid]), a[right]));
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    double tmp = a[i]; a[i] = a[j]; a[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return a[k];
+            }
+        }
+        return a[k];
     }
     
     
     /**
-     * Finds local maxima and returns them as an collection of Rois (an overlay)
+     * Builds an overlay of boxes around the last found spots.
      *
-     * @param ip - ImageProcessor to be analyzed
      * @return overlay with local maxima
      */
-    private Overlay getSpotOverlay(ImageProcessor ip) {
-        Polygon pol = FindLocalMaxima.FindMax(
-                ip, roi, boxSize_, noiseTolerance_, filter_);
+    private Overlay getSpotOverlay() {
         int halfSize = boxSize_ / 2;
         Overlay ov = new Overlay();
-        for (int i = 0; i < pol.npoints; i++) {
-            int x = pol.xpoints[i];
-            int y = pol.ypoints[i];
-            boolean use = true;
-            if (use) {
-                Roi roi = new Roi(x - halfSize, y - halfSize, boxSize_, boxSize_);
-                roi.setStrokeColor(Color.RED);
-                ov.add(roi);
-            }
+        for (int i = 0; i < spots.npoints; i++) {
+            int x = spots.xpoints[i];
+            int y = spots.ypoints[i];
+            Roi roi = new Roi(x - halfSize, y - halfSize, boxSize_, boxSize_);
+            roi.setStrokeColor(Color.RED);
+            ov.add(roi);
         }
         return ov;
     }
@@ -40,7 +40,9 @@ public class SpotCounterSetupPanel extends AnalyzerSetupPanel {
     public Analyzer initAnalyzer() {
         int noise_tolerance = Integer.parseInt(e_noise_tolerance.getText());
         int box_size = Integer.parseInt(e_box_size.getText());
-        return new SpotCounter(noise_tolerance, box_size, false);
+        // the image is scanned in stripes on all available cores
+        return new SpotCounter(noise_tolerance, box_size, false,
+                Runtime.getRuntime().availableProcessors());
     }
     
     /**
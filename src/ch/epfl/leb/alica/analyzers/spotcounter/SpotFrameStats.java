@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.spotcounter;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Statistics of spot positions in one frame. A single instance is reused by
+ * the SpotCounterCore for every frame, so its values are only valid until the
+ * next frame is analyzed.
+ * @author Marcel Stefko
+ */
+public class SpotFrameStats {
+    /**
+     * Number of detected spots.
+     */
+    public int spot_count = 0;
+
+    /**
+     * Smallest distance between two spots in pixels.
+     */
+    public double min_distance = 0.0;
+
+    /**
+     * Mean distance of a spot to its nearest neighbour in pixels.
+     */
+    public double mean_distance = 0.0;
+
+    /**
+     * 10th percentile of the nearest neighbour distances in pixels.
+     */
+    public double p10_distance = 0.0;
+
+    /**
+     * Copy the statistics into a map with the keys used by
+     * SpotCounterCore.analyze().
+     * @return map of statistics
+     */
+    public HashMap<String,Double> toMap() {
+        HashMap<String, Double> map = new LinkedHashMap<String, Double>();
+        map.put("min-distance", min_distance);
+        map.put("mean-distance", mean_distance);
+        map.put("p10-distance", p10_distance);
+        map.put("spot-count", (double) spot_count);
+        return map;
+    }
+}
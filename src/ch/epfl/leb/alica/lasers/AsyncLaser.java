@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.lasers;
+
+import ch.epfl.leb.alica.Laser;
+import ch.epfl.leb.alica.workers.LatencyHistogram;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps any Laser, and applies its power settings on a dedicated I/O
+ * thread, so that a slow device does not stall the caller.
+ * 
+ * setLaserPower() only stores the desired power and returns. If the I/O
+ * thread is still busy with the previous setting, a newer setting replaces
+ * the waiting one (last write wins), so the device is never behind by more
+ * than one setting. The time from a setting's submission until the wrapped
+ * laser returned is recorded in a histogram. An error of the wrapped laser
+ * is thrown by the next call of setLaserPower().
+ * @author Marcel Stefko
+ */
+public class AsyncLaser implements Laser {
+    private final Laser laser;
+    private final Thread thread;
+    
+    // calls of the wrapped laser are serialized
+    private final Object device_lock = new Object();
+    
+    private final Object lock = new Object();
+    // guarded by lock
+    private boolean has_pending = false;
+    private double pending_power = 0.0;
+    private long pending_time_ns = 0;
+    private boolean applying = false;
+    private boolean closed = false;
+    private Exception last_error = null;
+    
+    private volatile double applied_power;
+    
+    private final LatencyHistogram latency_histogram = new LatencyHistogram();
+    private final AtomicLong submitted_count = new AtomicLong(0);
+    private final AtomicLong applied_count = new AtomicLong(0);
+    private final AtomicLong coalesced_count = new AtomicLong(0);
+    private final AtomicLong failed_count = new AtomicLong(0);
+    
+    /**
+     * Wraps the laser and starts the I/O thread.
+     * @param laser laser whose power settings are applied asynchronously
+     */
+    public AsyncLaser(Laser laser) {
+        if (laser == null)
+            throw new NullPointerException("You need to set a laser!");
+        this.laser = laser;
+        this.applied_power = laser.getLaserPowerCached();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                applyLoop();
+            }
+        }, "ALICA laser actuator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private void applyLoop() {
+        while (true) {
+            double power;
+            long time_ns;
+            synchronized (lock) {
+                while (!has_pending && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                // a pending setting is applied even after close()
+                if (!has_pending)
+                    return;
+                power = pending_power;
+                time_ns = pending_time_ns;
+                has_pending = false;
+                applying = true;
+            }
+            try {
+                synchronized (device_lock) {
+                    applied_power = laser.setLaserPower(power);
+                }
+                applied_count.incrementAndGet();
+                latency_histogram.record(System.nanoTime() - time_ns);
+            } catch (Exception ex) {
+                failed_count.incrementAndGet();
+                synchronized (lock) {
+                    last_error = ex;
+                }
+            } finally {
+                synchronized (lock) {
+                    applying = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Submits the desired power to the I/O thread, replacing a submitted
+     * power which was not applied yet.
+     * @param desired_power desired laser power value, NaN is ignored
+     * @return desired power constrained to the allowed range
+     * @throws Exception error of the wrapped laser in applying a previous
+     *  setting; the new setting was submitted nonetheless
+     */
+    @Override
+    public double setLaserPower(double desired_power) throws Exception {
+        if (Double.isNaN(desired_power))
+            return applied_power;
+        Exception error;
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("The laser was closed!");
+            if (has_pending)
+                coalesced_count.incrementAndGet();
+            pending_power = desired_power;
+            pending_time_ns = System.nanoTime();
+            has_pending = true;
+            error = last_error;
+            last_error = null;
+            lock.notifyAll();
+        }
+        submitted_count.incrementAndGet();
+        if (error != null)
+            throw error;
+        return Math.max(laser.getMinPower(), Math.min(laser.getMaxPower(), desired_power));
+    }
+    
+    /**
+     * Waits until all submitted settings were applied.
+     * @param timeout_ms maximum time to wait
+     * @return true if all settings were applied, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeout_ms) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        synchronized (lock) {
+            while (has_pending || applying) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !thread.isAlive())
+                    return false;
+                lock.wait(remaining);
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Applies the last submitted setting and stops the I/O thread. Further
+     * calls of setLaserPower() throw an IllegalStateException.
+     * @param timeout_ms maximum time to wait for the I/O thread
+     * @return true if the I/O thread stopped in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean close(long timeout_ms) throws InterruptedException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        thread.join(timeout_ms);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Queries the wrapped laser, waiting for a setting which is being
+     * applied.
+     * @return actual laser power value
+     * @throws Exception if error occurred during communication with hardware
+     */
+    @Override
+    public double getLaserPower() throws Exception {
+        synchronized (device_lock) {
+            return laser.getLaserPower();
+        }
+    }
+
+    /**
+     *
+     * @return last laser power applied by the wrapped laser
+     */
+    @Override
+    public double getLaserPowerCached() {
+        return applied_power;
+    }
+
+    @Override
+    public double getMaxPower() {
+        return laser.getMaxPower();
+    }
+
+    @Override
+    public double getMinPower() {
+        return laser.getMinPower();
+    }
+
+    @Override
+    public String getDeviceName() {
+        return laser.getDeviceName();
+    }
+
+    @Override
+    public String getPropertyName() {
+        return laser.getPropertyName();
+    }
+    
+    /**
+     *
+     * @return laser whose power settings are applied asynchronously
+     */
+    public Laser getWrappedLaser() {
+        return laser;
+    }
+    
+    /**
+     *
+     * @return histogram of the times from submission to application of
+     *  settings
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency_histogram;
+    }
+    
+    /**
+     *
+     * @return number of settings submitted by setLaserPower()
+     */
+    public long getSubmittedCount() {
+        return submitted_count.get();
+    }
+    
+    /**
+     *
+     * @return number of settings applied by the wrapped laser
+     */
+    public long getAppliedCount() {
+        return applied_count.get();
+    }
+    
+    /**
+     *
+     * @return number of settings replaced by a newer one before they were
+     *  applied
+     */
+    public long getCoalescedCount() {
+        return coalesced_count.get();
+    }
+    
+    /**
+     *
+     * @return number of settings for which the wrapped laser threw an error
+     */
+    public long getFailedCount() {
+        return failed_count.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "submitted " + getSubmittedCount() + ", applied " + 
+                getAppliedCount() + ", coalesced " + getCoalescedCount() + 
+                ", failed " + getFailedCount() + ", latency " + latency_histogram;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.lasers;
+
+import ch.epfl.leb.alica.Laser;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps any Laser, and suppresses or limits power settings which would
+ * change the power by too little, too quickly or too often, to spare a slow
+ * device bus. For each setting, in this order:
+ * <ul>
+ * <li>a change within the deadband (the larger of the absolute deadband and
+ *  the relative deadband times the current power) is suppressed,</li>
+ * <li>a change against the direction of the last issued change is
+ *  suppressed unless it exceeds the deadband by the hysteresis,</li>
+ * <li>a setting less than 1/max_update_rate after the last issued one is
+ *  suppressed,</li>
+ * <li>the change is limited to the slew rate times the time since the last
+ *  issued setting.</li>
+ * </ul>
+ * All limits are disabled by default. A setting of the minimum power turns
+ * the laser off, and is always issued. The filter counts issued and
+ * suppressed settings.
+ * @author Marcel Stefko
+ */
+public class FilteredLaser implements Laser {
+    private final Laser laser;
+    
+    private double absolute_deadband = 0.0;
+    private double relative_deadband = 0.0;
+    private double hysteresis = 0.0;
+    private double max_slew_rate = 0.0;
+    private long min_update_interval_ns = 0;
+    
+    private double last_power;
+    private int last_direction = 0;
+    private long last_update_ns = 0;
+    private boolean updated = false;
+    
+    private final AtomicLong issued_count = new AtomicLong(0);
+    private final AtomicLong deadband_count = new AtomicLong(0);
+    private final AtomicLong hysteresis_count = new AtomicLong(0);
+    private final AtomicLong rate_count = new AtomicLong(0);
+    private final AtomicLong slew_limited_count = new AtomicLong(0);
+    
+    /**
+     * Wraps the laser, with all limits disabled.
+     * @param laser laser whose power settings are filtered
+     */
+    public FilteredLaser(Laser laser) {
+        if (laser == null)
+            throw new NullPointerException("You need to set a laser!");
+        this.laser = laser;
+        this.last_power = laser.getLaserPowerCached();
+    }
+    
+    /**
+     * Sets the deadbands. A change is suppressed if it is not larger than
+     * both deadbands.
+     * @param absolute_deadband smallest change of power which is issued
+     * @param relative_deadband smallest change relative to the current
+     *  power which is issued (NOT in percent)
+     */
+    public synchronized void setDeadband(double absolute_deadband, double relative_deadband) {
+        if (absolute_deadband < 0.0 || relative_deadband < 0.0)
+            throw new IllegalArgumentException("Deadbands must be non-negative!");
+        this.absolute_deadband = absolute_deadband;
+        this.relative_deadband = relative_deadband;
+    }
+    
+    /**
+     * 
+     * @param hysteresis additional change required to reverse the direction
+     *  of the last issued change
+     */
+    public synchronized void setHysteresis(double hysteresis) {
+        if (hysteresis < 0.0)
+            throw new IllegalArgumentException("Hysteresis must be non-negative!");
+        this.hysteresis = hysteresis;
+    }
+    
+    /**
+     * 
+     * @param max_slew_rate largest change of power per second, 0 for no limit
+     */
+    public synchronized void setMaxSlewRate(double max_slew_rate) {
+        if (max_slew_rate < 0.0)
+            throw new IllegalArgumentException("Slew rate must be non-negative!");
+        this.max_slew_rate = max_slew_rate;
+    }
+    
+    /**
+     * 
+     * @param max_update_rate largest number of issued settings per second, 0
+     *  for no limit
+     */
+    public synchronized void setMaxUpdateRate(double max_update_rate) {
+        if (max_update_rate < 0.0)
+            throw new IllegalArgumentException("Update rate must be non-negative!");
+        this.min_update_interval_ns = (max_update_rate == 0.0) ? 0 :
+                (long) (1e9 / max_update_rate);
+    }
+
+    @Override
+    public double setLaserPower(double desired_power) throws Exception {
+        return setLaserPower(desired_power, System.nanoTime());
+    }
+    
+    /**
+     * Filters the setting at the given time.
+     * @param desired_power desired laser power value, NaN is ignored
+     * @param now_ns current time in nanoseconds
+     * @return laser power after the setting
+     * @throws Exception if error occurred during communication with hardware
+     */
+    synchronized double setLaserPower(double desired_power, long now_ns) throws Exception {
+        if (Double.isNaN(desired_power))
+            return last_power;
+        // constrain the input value
+        double target = Math.max(laser.getMinPower(), 
+                Math.min(laser.getMaxPower(), desired_power));
+        double change = target - last_power;
+        if (change == 0.0) {
+            deadband_count.incrementAndGet();
+            return last_power;
+        }
+        int direction = (change > 0.0) ? 1 : -1;
+        // turning the laser off is never held back
+        if (target != laser.getMinPower()) {
+            double deadband = Math.max(absolute_deadband, 
+                    relative_deadband * Math.abs(last_power));
+            if (Math.abs(change) <= deadband) {
+                deadband_count.incrementAndGet();
+                return last_power;
+            }
+            if (direction != last_direction && last_direction != 0 &&
+                    Math.abs(change) <= deadband + hysteresis) {
+                hysteresis_count.incrementAndGet();
+                return last_power;
+            }
+            if (updated) {
+                long elapsed_ns = now_ns - last_update_ns;
+                if (elapsed_ns < min_update_interval_ns) {
+                    rate_count.incrementAndGet();
+                    return last_power;
+                }
+                if (max_slew_rate > 0.0) {
+                    double max_change = max_slew_rate * elapsed_ns / 1e9;
+                    if (Math.abs(change) > max_change) {
+                        target = last_power + direction * max_change;
+                        slew_limited_count.incrementAndGet();
+                    }
+                }
+            }
+        }
+        last_power = laser.setLaserPower(target);
+        last_direction = direction;
+        last_update_ns = now_ns;
+        updated = true;
+        issued_count.incrementAndGet();
+        return last_power;
+    }
+
+    /**
+     *
+     * @return laser whose power settings are filtered
+     */
+    public Laser getWrappedLaser() {
+        return laser;
+    }
+
+    @Override
+    public double getLaserPower() throws Exception {
+        return laser.getLaserPower();
+    }
+
+    @Override
+    public double getLaserPowerCached() {
+        return laser.getLaserPowerCached();
+    }
+
+    @Override
+    public double getMaxPower() {
+        return laser.getMaxPower();
+    }
+
+    @Override
+    public double getMinPower() {
+        return laser.getMinPower();
+    }
+
+    @Override
+    public String getDeviceName() {
+        return laser.getDeviceName();
+    }
+
+    @Override
+    public String getPropertyName() {
+        return laser.getPropertyName();
+    }
+    
+    /**
+     *
+     * @return number of settings passed on to the wrapped laser
+     */
+    public long getIssuedCount() {
+        return issued_count.get();
+    }
+    
+    /**
+     *
+     * @return number of settings suppressed by the deadbands
+     */
+    public long getDeadbandSuppressedCount() {
+        return deadband_count.get();
+    }
+    
+    /**
+     *
+     * @return number of settings suppressed by the hysteresis
+     */
+    public long getHysteresisSuppressedCount() {
+        return hysteresis_count.get();
+    }
+    
+    /**
+     *
+     * @return number of settings suppressed by the maximum update rate
+     */
+    public long getRateSuppressedCount() {
+        return rate_count.get();
+    }
+    
+    /**
+     *
+     * @return number of issued settings whose change was limited by the
+     *  slew rate
+     */
+    public long getSlewLimitedCount() {
+        return slew_limited_count.get();
+    }
+    
+    /**
+     *
+     * @return total number of suppressed settings
+     */
+    public long getSuppressedCount() {
+        return getDeadbandSuppressedCount() + getHysteresisSuppressedCount() + 
+                getRateSuppressedCount();
+    }
+    
+    @Override
+    public String toString() {
+        return "issued " + getIssuedCount() + " (slew-limited " + 
+                getSlewLimitedCount() + "), suppressed by deadband " + 
+                getDeadbandSuppressedCount() + ", by hysteresis " + 
+                getHysteresisSuppressedCount() + ", by update rate " + 
+                getRateSuppressedCount();
+    }
+}
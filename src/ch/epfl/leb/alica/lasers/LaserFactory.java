@@ -34,6 +34,12 @@ public final class LaserFactory {
     private boolean is_laser_virtual;
     private double max_laser_power;
     private double laser_power_deadzone = 0.0;
+    private boolean is_laser_asynchronous = true;
+    private double absolute_deadband = 0.0;
+    private double relative_deadband = 0.0;
+    private double hysteresis = 0.0;
+    private double max_slew_rate = 0.0;
+    private double max_update_rate = 0.0;
 
     /**
      * Initialize the factory with the MM studio
@@ -113,14 +119,57 @@ public final class LaserFactory {
         this.laser_power_deadzone = laser_power_deadzone;
     }
     
+    /**
+     * If true, the power settings of a MMLaser are applied on a separate
+     * thread by an AsyncLaser, so that the caller does not wait for the
+     * hardware.
+     * @param is_laser_asynchronous
+     */
+    public void setLaserAsynchronous(boolean is_laser_asynchronous) {
+        this.is_laser_asynchronous = is_laser_asynchronous;
+    }
+    
+    /**
+     * Sets the limits of a FilteredLaser wrapped around the built laser. If
+     * all limits are 0, no filter is used.
+     * @param absolute_deadband smallest change of power which is issued
+     * @param relative_deadband smallest change relative to the current power
+     *  which is issued (NOT in percent)
+     * @param hysteresis additional change required to reverse the direction
+     *  of the last change
+     * @param max_slew_rate largest change of power per second
+     * @param max_update_rate largest number of power settings per second
+     */
+    public void setActuationFilter(double absolute_deadband, double relative_deadband,
+            double hysteresis, double max_slew_rate, double max_update_rate) {
+        this.absolute_deadband = absolute_deadband;
+        this.relative_deadband = relative_deadband;
+        this.hysteresis = hysteresis;
+        this.max_slew_rate = max_slew_rate;
+        this.max_update_rate = max_update_rate;
+    }
+    
     /**
      * Build the laser using the current state
      * @return initialized Laser
      */
     public Laser build() {
-        if (this.is_laser_virtual)
-            return new VirtualLaser(studio, selected_name, selected_property, 0.0, max_laser_power);
-        else
-            return new MMLaser(studio, selected_name, selected_property, 0.0, max_laser_power, laser_power_deadzone);
+        Laser laser;
+        if (this.is_laser_virtual) {
+            laser = new VirtualLaser(studio, selected_name, selected_property, 0.0, max_laser_power);
+        } else {
+            laser = new MMLaser(studio, selected_name, selected_property, 0.0, max_laser_power, laser_power_deadzone);
+            if (this.is_laser_asynchronous)
+                laser = new AsyncLaser(laser);
+        }
+        if (absolute_deadband == 0.0 && relative_deadband == 0.0 && 
+                hysteresis == 0.0 && max_slew_rate == 0.0 && max_update_rate == 0.0)
+            return laser;
+        FilteredLaser filtered_laser = new FilteredLaser(laser);
+        filtered_laser.setDeadband(absolute_deadband, relative_deadband);
+        filtered_laser.setHysteresis(hysteresis);
+        filtered_laser.setMaxSlewRate(max_slew_rate);
+        filtered_laser.setMaxUpdateRate(max_update_rate);
+        return filtered_laser;
     }
 }
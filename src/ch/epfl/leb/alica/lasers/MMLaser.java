@@ -62,8 +62,9 @@ public class MMLaser implements Laser {
         if (Double.isNaN(desired_power))
             return current_power_cached;
         
-        // if power change is within deadzone, do nothing
-        if (abs(current_power_cached-desired_power)/current_power_cached < laser_power_deadzone) {
+        // if power change is within deadzone, do nothing (any change from
+        // zero power is outside of it)
+        if (abs(current_power_cached-desired_power) < laser_power_deadzone*abs(current_power_cached)) {
             return current_power_cached;
         }
         // constrain the input value
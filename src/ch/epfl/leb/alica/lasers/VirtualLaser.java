@@ -19,12 +19,14 @@
  */
 package ch.epfl.leb.alica.lasers;
 
+import ch.epfl.leb.alica.AlicaLogger;
 import ch.epfl.leb.alica.Laser;
 import org.micromanager.Studio;
 
 /**
  * A virtual laser which does not actually output the values to the laser,
- * only to the GUI and the debug MM log.
+ * only to the GUI and the debug MM log. Without a Studio, it logs to the
+ * AlicaLogger and can be used for replays without Micro-Manager.
  * @author Marcel Stefko
  */
 public class VirtualLaser implements Laser {
@@ -34,11 +36,12 @@ public class VirtualLaser implements Laser {
     private final String property_name;
     private final double min_power;
     private final double max_power;
-    private double current_power_cached = 0.0;
+    // read by a simulated sample on the analysis thread
+    private volatile double current_power_cached = 0.0;
     
     /**
      * Initialize the virtual laser
-     * @param studio MMStudio
+     * @param studio MMStudio, or null
      * @param device_name MM identifier of the device
      * @param property_name MM identifier of the property to be controlled
      * @param min_power minimal allowed property value
@@ -71,12 +74,19 @@ public class VirtualLaser implements Laser {
         }
         
         current_power_cached = actual_power;
-        studio.logs().logMessage(String.format("Virtual: Setting power to: %8.4f", actual_power));
+        String message = String.format("Virtual: Setting power to: %8.4f", actual_power);
+        if (studio != null) {
+            studio.logs().logMessage(message);
+        } else {
+            AlicaLogger.getInstance().logDebugMessage(message);
+        }
         return actual_power;
     }
 
     @Override
     public double getLaserPower() throws Exception {
+        if (studio == null)
+            return current_power_cached;
         current_power_cached = Double.parseDouble(studio.core().getProperty(device_name, property_name));
         return current_power_cached;
     }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Dictionary of log channels. Each channel name is assigned an id, in the
+ * order in which the channels were added, and the log stores only the ids.
+ * @author Marcel Stefko
+ */
+public class ChannelTable {
+    private final HashMap<String,Integer> ids = new HashMap<String,Integer>();
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<Boolean> text_flags = new ArrayList<Boolean>();
+
+    /**
+     *
+     * @param name name of the channel
+     * @return id of the channel, -1 if it is not in the table
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Adds a channel to the table.
+     * @param name name of the channel
+     * @param is_text true if the channel holds ids of text values, false if
+     *  it holds numbers
+     * @return id of the new channel
+     */
+    public int add(String name, boolean is_text) {
+        if (name == null)
+            throw new NullPointerException("You need to set a channel name!");
+        if (ids.containsKey(name))
+            throw new IllegalArgumentException("Channel " + name + " already exists!");
+        int id = names.size();
+        ids.put(name, id);
+        names.add(name);
+        text_flags.add(is_text);
+        return id;
+    }
+
+    /**
+     *
+     * @param id id of the channel
+     * @return name of the channel
+     */
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     *
+     * @param id id of the channel
+     * @return true if the channel holds ids of text values
+     */
+    public boolean isText(int id) {
+        return text_flags.get(id);
+    }
+
+    /**
+     *
+     * @return number of channels
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Removes all channels.
+     */
+    public void clear() {
+        ids.clear();
+        names.clear();
+        text_flags.clear();
+    }
+}
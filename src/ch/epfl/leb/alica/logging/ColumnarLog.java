@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Binary log which keeps one column of primitive (frame, value) pairs per
+ * channel, and streams full chunks of the columns to a file during the run.
+ * Only the last, partially filled chunk of each channel is held in memory.
+ *
+ * The file is a header (magic and version) followed by records, each
+ * starting with its type byte:
+ * <ul>
+ * <li>RECORD_CHANNEL: int id, byte 1 for text channels, UTF-8 name</li>
+ * <li>RECORD_STRING: int id, UTF-8 text value</li>
+ * <li>RECORD_CHUNK: int channel id, int count, count int frames, count
+ *  double values</li>
+ * </ul>
+ * Channel names and text values are dictionary-encoded; text channels store
+ * the id of the value. A dictionary record is always written before the
+ * chunks which refer to it, so the file can be read by read(File,
+ * LogVisitor) at any time after flush(). While the log is still written, 
+ * read(File, long, LogVisitor) reads only the records which were complete
+ * when getFileLength() was called.
+ * @author Marcel Stefko
+ */
+public class ColumnarLog {
+    /**
+     * Magic bytes at the start of the file.
+     */
+    public static final long MAGIC = 0x414c4943414c4f47L; // "ALICALOG"
+    /**
+     * Version of the file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Number of values of a channel which are buffered before they are
+     * written to the file.
+     */
+    public static final int CHUNK_EVENTS = 4096;
+
+    static final byte RECORD_CHANNEL = 1;
+    static final byte RECORD_STRING = 2;
+    static final byte RECORD_CHUNK = 3;
+
+    private final File file;
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    // holds one record before it is written, large enough for a full chunk
+    private final ByteBuffer buffer = ByteBuffer.allocate(9 + CHUNK_EVENTS * 12);
+
+    private final ChannelTable channels = new ChannelTable();
+    private final ArrayList<Column> columns = new ArrayList<Column>();
+    private final HashMap<String,Integer> string_ids = new HashMap<String,Integer>();
+
+    private long event_count = 0;
+    private int max_frame = Integer.MIN_VALUE;
+
+    /**
+     * Callbacks for the content of a log file, in the order of the file.
+     */
+    public interface LogVisitor {
+        /**
+         * Called for each new channel.
+         * @param channel id of the channel
+         * @param name name of the channel
+         * @param is_text true if the channel holds ids of text values
+         */
+        public void visitChannel(int channel, String name, boolean is_text);
+
+        /**
+         * Called for each new text value.
+         * @param id id of the text value
+         * @param value text value
+         */
+        public void visitString(int id, String value);
+
+        /**
+         * Called for each chunk of a channel. The arrays are reused for the
+         * following chunks.
+         * @param channel id of the channel
+         * @param frames frame numbers of the values
+         * @param values values, or ids of text values
+         * @param count number of valid entries in the arrays
+         */
+        public void visitChunk(int channel, int[] frames, double[] values, int count);
+    }
+
+    /**
+     * Creates the log file, and overwrites it if it exists.
+     * @param file file to which the log is streamed
+     * @throws IOException if the file can not be created
+     */
+    public ColumnarLog(File file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("You need to set a file!");
+        this.file = file;
+        this.access = new RandomAccessFile(file, "rw");
+        this.channel = access.getChannel();
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        access.setLength(0);
+        channel.position(0);
+        buffer.clear();
+        buffer.putLong(MAGIC);
+        buffer.putInt(VERSION);
+        writeBuffer();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void writeDictionaryRecord(byte type, int id, byte flag, String text)
+            throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        ByteBuffer record = buffer;
+        if (bytes.length + 11 > buffer.capacity()) {
+            record = ByteBuffer.allocate(bytes.length + 11);
+        }
+        record.clear();
+        record.put(type);
+        record.putInt(id);
+        if (type == RECORD_CHANNEL) {
+            record.put(flag);
+        }
+        record.putInt(bytes.length);
+        record.put(bytes);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the id of a channel, and adds the channel if it does not exist.
+     * @param name name of the channel
+     * @param is_text true if the channel holds text values
+     * @return id of the channel
+     * @throws IOException if the channel can not be written to the file
+     */
+    public synchronized int getChannelId(String name, boolean is_text)
+            throws IOException {
+        int id = channels.getId(name);
+        if (id >= 0) {
+            if (channels.isText(id) != is_text)
+                throw new IllegalArgumentException("Channel " + name + " holds " +
+                        (is_text ? "numbers" : "text") + "!");
+            return id;
+        }
+        id = channels.add(name, is_text);
+        columns.add(new Column());
+        writeDictionaryRecord(RECORD_CHANNEL, id, (byte) (is_text ? 1 : 0), name);
+        return id;
+    }
+
+    /**
+     * Adds a value to a channel.
+     * @param frame frame number
+     * @param channel_id id of the channel, from getChannelId()
+     * @param value value, or id of a text value for text channels
+     * @throws IOException if a full chunk can not be written to the file
+     */
+    public synchronized void append(int frame, int channel_id, double value)
+            throws IOException {
+        Column column = columns.get(channel_id);
+        column.frames[column.count] = frame;
+        column.values[column.count] = value;
+        column.count++;
+        event_count++;
+        if (frame > max_frame)
+            max_frame = frame;
+        if (column.count == CHUNK_EVENTS) {
+            writeChunk(channel_id, column);
+        }
+    }
+
+    /**
+     * Adds a number to a channel, and adds the channel if it does not exist.
+     * @param frame frame number
+     * @param name name of the channel
+     * @param value value
+     * @throws IOException if the value can not be written to the file
+     */
+    public synchronized void append(int frame, String name, double value)
+            throws IOException {
+        append(frame, getChannelId(name, false), value);
+    }
+
+    /**
+     * Adds a text value to a channel, and adds the channel if it does not
+     * exist.
+     * @param frame frame number
+     * @param name name of the channel
+     * @param value text value, encoded by a dictionary
+     * @throws IOException if the value can not be written to the file
+     */
+    public synchronized void append(int frame, String name, String value)
+            throws IOException {
+        if (value == null)
+            throw new NullPointerException("You need to set a value!");
+        int channel_id = getChannelId(name, true);
+        Integer string_id = string_ids.get(value);
+        if (string_id == null) {
+            string_id = string_ids.size();
+            string_ids.put(value, string_id);
+            writeDictionaryRecord(RECORD_STRING, string_id, (byte) 0, value);
+        }
+        append(frame, channel_id, string_id);
+    }
+
+    private void writeChunk(int channel_id, Column column) throws IOException {
+        buffer.clear();
+        buffer.put(RECORD_CHUNK);
+        buffer.putInt(channel_id);
+        buffer.putInt(column.count);
+        for (int i = 0; i < column.count; i++) {
+            buffer.putInt(column.frames[i]);
+        }
+        for (int i = 0; i < column.count; i++) {
+            buffer.putDouble(column.values[i]);
+        }
+        writeBuffer();
+        column.count = 0;
+    }
+
+    /**
+     * Writes the partially filled chunks of all channels to the file.
+     * @throws IOException if the chunks can not be written
+     */
+    public synchronized void flush() throws IOException {
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            if (column.count > 0) {
+                writeChunk(i, column);
+            }
+        }
+    }
+
+    /**
+     * Flushes the log and reads it from the file.
+     * @param visitor receives the content of the log
+     * @throws IOException if the file can not be read
+     */
+    public synchronized void read(LogVisitor visitor) throws IOException {
+        flush();
+        read(file, visitor);
+    }
+
+    /**
+     * Reads a log file.
+     * @param file log file
+     * @param visitor receives the content of the log
+     * @throws IOException if the file can not be read, or is not a log file
+     */
+    public static void read(File file, LogVisitor visitor) throws IOException {
+        read(file, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Reads the beginning of a log file, which can still be written to.
+     * @param file log file
+     * @param length number of bytes to read, as returned by getFileLength()
+     * @param visitor receives the content of the log
+     * @throws IOException if the file can not be read, or is not a log file
+     */
+    public static void read(File file, long length, LogVisitor visitor)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new LimitedInputStream(new FileInputStream(file), length), 1 << 16));
+        try {
+            if (in.readLong() != MAGIC)
+                throw new IOException("Not an ALICA log file!");
+            if (in.readInt() != VERSION)
+                throw new IOException("Unsupported log file version!");
+            int[] frames = new int[CHUNK_EVENTS];
+            double[] values = new double[CHUNK_EVENTS];
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                if (type == RECORD_CHANNEL) {
+                    int id = in.readInt();
+                    boolean is_text = in.readByte() != 0;
+                    visitor.visitChannel(id, readText(in), is_text);
+                } else if (type == RECORD_STRING) {
+                    int id = in.readInt();
+                    visitor.visitString(id, readText(in));
+                } else if (type == RECORD_CHUNK) {
+                    int channel_id = in.readInt();
+                    int count = in.readInt();
+                    if (count < 0 || count > CHUNK_EVENTS)
+                        throw new IOException("Corrupted log file!");
+                    for (int i = 0; i < count; i++) {
+                        frames[i] = in.readInt();
+                    }
+                    for (int i = 0; i < count; i++) {
+                        values[i] = in.readDouble();
+                    }
+                    visitor.visitChunk(channel_id, frames, values, count);
+                } else {
+                    throw new IOException("Corrupted log file!");
+                }
+            }
+        } catch (EOFException ex) {
+            throw new IOException("Log file is truncated!", ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Corrupted log file!");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     *
+     * @return number of values added since the last reset
+     */
+    public synchronized long getEventCount() {
+        return event_count;
+    }
+
+    /**
+     *
+     * @return largest frame number added since the last reset,
+     *  Integer.MIN_VALUE if the log is empty
+     */
+    public synchronized int getMaxFrame() {
+        return max_frame;
+    }
+
+    /**
+     *
+     * @return number of channels
+     */
+    public synchronized int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * Records written later are appended after this length, so the log
+     * can be read up to it while it is still written.
+     * @return length of the written records in bytes, without the unwritten
+     *  chunks
+     * @throws IOException if the length can not be determined
+     */
+    public synchronized long getFileLength() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     *
+     * @return file to which the log is streamed
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Removes all channels and values, and truncates the file.
+     * @throws IOException if the file can not be truncated
+     */
+    public synchronized void reset() throws IOException {
+        channels.clear();
+        columns.clear();
+        string_ids.clear();
+        event_count = 0;
+        max_frame = Integer.MIN_VALUE;
+        writeHeader();
+    }
+
+    /**
+     * Flushes the log and closes the file.
+     * @throws IOException if the file can not be written
+     */
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+            access.close();
+        }
+    }
+
+    /**
+     * Unwritten values of a channel.
+     */
+    private static class Column {
+        final int[] frames = new int[CHUNK_EVENTS];
+        final double[] values = new double[CHUNK_EVENTS];
+        int count = 0;
+    }
+
+    /**
+     * Stream which ends after a given number of bytes.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int count = in.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0)
+                remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = in.skip(Math.min(n, remaining));
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts a ColumnarLog file into a csv table.
+ *
+ * In the WIDE format, the table has one row per frame and one column per
+ * channel. Frames in which a channel has no value repeat its previous
+ * value, starting from 0.0; if a channel has several values in one frame,
+ * the last one is used. All values are loaded before the table is written.
+ *
+ * In the SPARSE format, the table has one (frame, channel, value) row per
+ * logged value, and is written while the log file is read, chunk by chunk.
+ * The rows of each chunk are sorted by frame.
+ * @author Marcel Stefko
+ */
+public class CsvLogExporter implements ColumnarLog.LogVisitor {
+
+    /**
+     * Layout of the csv table.
+     */
+    public enum Format {
+        /**
+         * One row per frame, one column per channel, with forward filling.
+         */
+        WIDE,
+
+        /**
+         * One row per logged value, without filling.
+         */
+        SPARSE
+    }
+
+    /**
+     * Receives the progress of an export.
+     */
+    public interface ProgressListener {
+        /**
+         * Called from the exporting thread as the export advances.
+         * @param fraction fraction of the export which is done, from 0 to 1
+         */
+        public void progressChanged(double fraction);
+    }
+
+    // frames of the wide table between progress reports
+    private static final int PROGRESS_FRAMES = 4096;
+
+    private final Format format;
+    private ProgressListener progress_listener = null;
+
+    private final ChannelTable channels = new ChannelTable();
+    private final ArrayList<String> strings = new ArrayList<String>();
+    private final ArrayList<ChannelValues> columns = new ArrayList<ChannelValues>();
+    private int max_frame = 0;
+
+    // state of the export which is in progress
+    private Writer sparse_writer = null;
+    private IOException write_error = null;
+    private final StringBuilder line = new StringBuilder();
+    private long bytes_read = 0;
+    private long file_length = 1;
+    private double last_reported = 0.0;
+    private long[] sort_keys = new long[0];
+    private double[] sort_values = new double[0];
+
+    /**
+     * Creates an exporter to the WIDE format.
+     */
+    public CsvLogExporter() {
+        this(Format.WIDE);
+    }
+
+    /**
+     * Creates an exporter.
+     * @param format layout of the csv table
+     */
+    public CsvLogExporter(Format format) {
+        if (format == null)
+            throw new NullPointerException("You need to set a format!");
+        this.format = format;
+    }
+
+    /**
+     *
+     * @param listener receives the progress of exports, null for none
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.progress_listener = listener;
+    }
+
+    /**
+     * Converts a log file into an uncompressed csv file in the WIDE format.
+     * @param log_file file written by ColumnarLog
+     * @param csv_file output csv file
+     * @throws IOException if a file can not be read or written
+     */
+    public static void export(File log_file, File csv_file) throws IOException {
+        new CsvLogExporter().export(log_file, csv_file, false);
+    }
+
+    /**
+     * Converts a log file into a csv file. An exporter can only be used
+     * once.
+     * @param log_file file written by ColumnarLog
+     * @param csv_file output csv file
+     * @param compressed if true, the csv file is compressed by gzip
+     * @throws IOException if a file can not be read or written
+     */
+    public void export(File log_file, File csv_file, boolean compressed)
+            throws IOException {
+        export(log_file, log_file.length(), csv_file, compressed);
+    }
+
+    /**
+     * Converts the beginning of a log file, which can still be written to,
+     * into a csv file. An exporter can only be used once.
+     * @param log_file file written by ColumnarLog
+     * @param log_length number of bytes of the log file to convert, as
+     *  returned by ColumnarLog.getFileLength()
+     * @param csv_file output csv file
+     * @param compressed if true, the csv file is compressed by gzip
+     * @throws IOException if a file can not be read or written
+     */
+    public void export(File log_file, long log_length, File csv_file,
+            boolean compressed) throws IOException {
+        file_length = Math.max(1, log_length);
+        FileOutputStream file_stream = new FileOutputStream(csv_file);
+        OutputStream out = Channels.newOutputStream(file_stream.getChannel());
+        Writer writer;
+        try {
+            if (compressed) {
+                out = new GZIPOutputStream(out, 1 << 16);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+        } catch (IOException ex) {
+            file_stream.close();
+            throw ex;
+        }
+        try {
+            if (format == Format.SPARSE) {
+                writer.write("#frame_no,parameter,value\n");
+                sparse_writer = writer;
+                ColumnarLog.read(log_file, log_length, this);
+                if (write_error != null)
+                    throw write_error;
+            } else {
+                ColumnarLog.read(log_file, log_length, this);
+                write(writer);
+            }
+            reportProgress(1.0);
+        } finally {
+            sparse_writer = null;
+            writer.close();
+        }
+    }
+
+    @Override
+    public void visitChannel(int channel, String name, boolean is_text) {
+        channels.add(name, is_text);
+        columns.add(new ChannelValues());
+        // type, id, flag, length and name
+        bytes_read += 10 + name.length();
+    }
+
+    @Override
+    public void visitString(int id, String value) {
+        strings.add(value);
+        bytes_read += 9 + value.length();
+    }
+
+    @Override
+    public void visitChunk(int channel, int[] frames, double[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            if (frames[i] > max_frame)
+                max_frame = frames[i];
+        }
+        if (sparse_writer != null) {
+            if (write_error == null) {
+                try {
+                    writeSparseChunk(channel, frames, values, count);
+                } catch (IOException ex) {
+                    write_error = ex;
+                }
+            }
+        } else {
+            ChannelValues column = columns.get(channel);
+            column.ensureCapacity(column.count + count);
+            System.arraycopy(frames, 0, column.frames, column.count, count);
+            System.arraycopy(values, 0, column.values, column.count, count);
+            column.count += count;
+        }
+        bytes_read += 9 + 12L * count;
+        double fraction = (double) bytes_read / file_length;
+        reportProgress((format == Format.SPARSE) ? fraction : 0.5 * fraction);
+    }
+
+    private void writeSparseChunk(int channel, int[] frames, double[] values, int count)
+            throws IOException {
+        if (!isSortedByFrame(frames, count)) {
+            if (sort_keys.length < count) {
+                sort_keys = new long[count];
+                sort_values = new double[count];
+            }
+            sortByFrame(frames, values, count, sort_keys, sort_values);
+        }
+        final String name = channels.getName(channel);
+        final boolean is_text = channels.isText(channel);
+        for (int i = 0; i < count; i++) {
+            line.setLength(0);
+            line.append(frames[i]).append(',').append(name).append(',');
+            if (is_text) {
+                line.append(strings.get((int) values[i]));
+            } else {
+                line.append(values[i]);
+            }
+            line.append('\n');
+            sparse_writer.write(line.toString());
+        }
+    }
+
+    private void reportProgress(double fraction) {
+        // reported in steps of 1%
+        if (progress_listener != null &&
+                (fraction - last_reported >= 0.01 || fraction == 1.0)) {
+            last_reported = fraction;
+            progress_listener.progressChanged(fraction);
+        }
+    }
+
+    /**
+     * Writes the visited log as a csv table in the WIDE format, for frames 1
+     * to the largest frame number.
+     * @param writer receives the table
+     * @throws IOException if the table can not be written
+     */
+    public void write(Writer writer) throws IOException {
+        final int n_channels = channels.size();
+        line.setLength(0);
+        line.append("#frame_no");
+        for (int c = 0; c < n_channels; c++) {
+            line.append(',').append(channels.getName(c));
+        }
+        line.append('\n');
+        writer.write(line.toString());
+
+        int[] positions = new int[n_channels];
+        String[] cache = new String[n_channels];
+        for (int c = 0; c < n_channels; c++) {
+            ChannelValues column = columns.get(c);
+            column.sortByFrame();
+            // values before the first frame are not exported
+            while (positions[c] < column.count && column.frames[positions[c]] < 1) {
+                positions[c]++;
+            }
+            cache[c] = "0.0";
+        }
+
+        for (int frame = 1; frame <= max_frame; frame++) {
+            line.setLength(0);
+            line.append(frame);
+            for (int c = 0; c < n_channels; c++) {
+                ChannelValues column = columns.get(c);
+                int p = positions[c];
+                if (p < column.count && column.frames[p] == frame) {
+                    // last value of this frame
+                    while (p + 1 < column.count && column.frames[p + 1] == frame) {
+                        p++;
+                    }
+                    cache[c] = channels.isText(c) ?
+                            strings.get((int) column.values[p]) :
+                            Double.toString(column.values[p]);
+                    positions[c] = p + 1;
+                }
+                line.append(',').append(cache[c]);
+            }
+            line.append('\n');
+            writer.write(line.toString());
+            if (frame % PROGRESS_FRAMES == 0) {
+                reportProgress(0.5 + 0.5 * frame / max_frame);
+            }
+        }
+    }
+
+    private static boolean isSortedByFrame(int[] frames, int count) {
+        for (int i = 1; i < count; i++) {
+            if (frames[i - 1] > frames[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sorts values by frame number, keeping the order in which they were
+     * added for equal frame numbers.
+     * @param frames frame numbers, sorted in place
+     * @param values values, sorted in place
+     * @param count number of valid entries
+     * @param keys buffer of at least count entries
+     * @param sorted_values buffer of at least count entries
+     */
+    private static void sortByFrame(int[] frames, double[] values, int count,
+            long[] keys, double[] sorted_values) {
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) frames[i] << 32) | i;
+        }
+        Arrays.sort(keys, 0, count);
+        for (int i = 0; i < count; i++) {
+            frames[i] = (int) (keys[i] >> 32);
+            sorted_values[i] = values[(int) keys[i]];
+        }
+        System.arraycopy(sorted_values, 0, values, 0, count);
+    }
+
+    /**
+     * All values of a channel.
+     */
+    private static class ChannelValues {
+        int[] frames = new int[0];
+        double[] values = new double[0];
+        int count = 0;
+
+        void ensureCapacity(int capacity) {
+            if (capacity > frames.length) {
+                int length = Math.max(capacity, 2 * frames.length);
+                frames = Arrays.copyOf(frames, length);
+                values = Arrays.copyOf(values, length);
+            }
+        }
+
+        void sortByFrame() {
+            if (!isSortedByFrame(frames, count)) {
+                CsvLogExporter.sortByFrame(frames, values, count,
+                        new long[count], new double[count]);
+            }
+        }
+    }
+}
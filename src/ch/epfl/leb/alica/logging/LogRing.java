@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring of log events (frame, channel id, value) with many producers
+ * and a single consumer. The events are stored in primitive arrays, so
+ * neither offering nor draining allocates.
+ *
+ * Producers claim a slot with a compare-and-set on the tail, which only
+ * fails if another producer claimed the slot first, and never wait for the
+ * consumer: if the ring is full, the event is dropped and counted. Each
+ * slot has a sequence number, which tells the consumer that the event in
+ * it is complete, and the producers that it was consumed.
+ * @author Marcel Stefko
+ */
+public class LogRing {
+    private final int mask;
+    private final int[] frames;
+    private final int[] channels;
+    private final double[] values;
+    // sequence == position: slot free for the producer of this position,
+    // sequence == position + 1: event of this position is complete
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    // only accessed by the consumer
+    private long head = 0;
+
+    /**
+     * Receives the drained events.
+     */
+    public interface EventHandler {
+        /**
+         * Called for each event, in the order in which the slots were
+         * claimed.
+         * @param frame frame number
+         * @param channel channel id
+         * @param value value
+         */
+        public void onEvent(int frame, int channel, double value);
+    }
+
+    /**
+     * Creates an empty ring.
+     * @param capacity maximum number of events, a power of two
+     */
+    public LogRing(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two!");
+        mask = capacity - 1;
+        frames = new int[capacity];
+        channels = new int[capacity];
+        values = new double[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an event, can be called from any thread.
+     * @param frame frame number
+     * @param channel channel id
+     * @param value value
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean offer(int frame, int channel, double value) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            } else if (difference < 0) {
+                // slot still holds an event of the previous lap
+                dropped.incrementAndGet();
+                return false;
+            }
+            // another producer claimed the slot, try the next one
+        }
+        frames[index] = frame;
+        channels[index] = channel;
+        values[index] = value;
+        // publishes the event fields to the consumer
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Passes the complete events to the handler and frees their slots. Must
+     * only be called by one thread at a time.
+     * @param handler receives the events
+     * @param max_events maximum number of events to drain
+     * @return number of drained events
+     */
+    public int drain(EventHandler handler, int max_events) {
+        int count = 0;
+        while (count < max_events) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                break;
+            handler.onEvent(frames[index], channels[index], values[index]);
+            // frees the slot for the producer of the next lap
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Must only be called by the consumer.
+     * @return true if no event is waiting to be drained
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     *
+     * @return number of events dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     *
+     * @return maximum number of events in the ring
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.sources;
+
+import ch.epfl.leb.alica.ImageSource;
+import ch.epfl.leb.alica.lasers.VirtualLaser;
+import java.util.Random;
+
+/**
+ * Simulated single-molecule sample and camera, for testing controllers in
+ * closed loop without a microscope.
+ * 
+ * Fixed emitters at random positions switch between an off, an on and a
+ * bleached state once per frame. The activation, deactivation and
+ * bleaching rates depend linearly on the power of a VirtualLaser, which is
+ * read at the start of each frame, so the controller driving the laser
+ * acts on the simulated sample. On emitters are rendered as Gaussian spots
+ * with shot noise on top of a camera background with Poisson and read
+ * noise.
+ * 
+ * For speed, the background noise is taken from a precomputed noise image
+ * at a random offset, and only the on emitters are visited in each frame.
+ * Combined with a FrameTrigger and a frame interval of 0, a controller can
+ * be run over thousands of frames per second. Each returned image is a new
+ * short[] array. The settings must not be changed while the images are
+ * being requested.
+ * @author Marcel Stefko
+ */
+public class BlinkingSimulator implements ImageSource {
+    // length of the table of standard normal samples, a power of two
+    private static final int GAUSSIAN_TABLE_LENGTH = 1 << 16;
+    
+    private final int width;
+    private final int height;
+    private final VirtualLaser laser;
+    private final Random random;
+    private long rng_state;
+    
+    // emitter positions in pixels
+    private final float[] emitter_x;
+    private final float[] emitter_y;
+    // emitter ids: [0, n_on) are on, [n_on, n_alive) are off, the rest are
+    // bleached
+    private final int[] order;
+    private int n_on = 0;
+    private int n_alive;
+    
+    // rates per frame, rate = base + per_power * laser power
+    private double on_rate = 1e-5;
+    private double on_rate_per_power = 1e-4;
+    private double off_rate = 0.5;
+    private double off_rate_per_power = 0.0;
+    private double bleach_rate = 0.02;
+    private double bleach_rate_per_power = 0.0;
+    
+    private double emitter_photons = 1000.0;
+    private double background_photons = 20.0;
+    private double baseline = 100.0;
+    private double gain = 1.0;
+    private double read_noise = 2.0;
+    private double psf_sigma = 1.3;
+    
+    private short[] noise_image = null;
+    private final float[] gaussians = new float[GAUSSIAN_TABLE_LENGTH];
+    private float[] weights_x = new float[0];
+    private float[] weights_y = new float[0];
+    
+    private double pixel_size_um = 0.1;
+    private long frame_interval_ns = 0;
+    private long max_frames = 0;
+    
+    private long next_image = 0;
+    private volatile long last_image_number = -1;
+    private volatile int last_on_count = 0;
+    private volatile int last_bleached_count = 0;
+    private long start_ns = 0;
+    
+    /**
+     * Initialize the simulator with all emitters off.
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param n_emitters number of emitters in the field of view
+     * @param laser laser whose power drives the photophysics
+     * @param seed seed of the random generator
+     */
+    public BlinkingSimulator(int width, int height, int n_emitters,
+            VirtualLaser laser, long seed) {
+        if (laser == null)
+            throw new NullPointerException("You need to set a laser!");
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image size must be positive!");
+        if (n_emitters < 0)
+            throw new IllegalArgumentException("Number of emitters must be non-negative!");
+        this.width = width;
+        this.height = height;
+        this.laser = laser;
+        this.random = new Random(seed);
+        this.rng_state = random.nextLong() | 1L;
+        emitter_x = new float[n_emitters];
+        emitter_y = new float[n_emitters];
+        order = new int[n_emitters];
+        for (int i = 0; i < n_emitters; i++) {
+            emitter_x[i] = (float) (random.nextDouble() * width);
+            emitter_y[i] = (float) (random.nextDouble() * height);
+            order[i] = i;
+        }
+        n_alive = n_emitters;
+        for (int i = 0; i < GAUSSIAN_TABLE_LENGTH; i++) {
+            gaussians[i] = (float) random.nextGaussian();
+        }
+    }
+    
+    /**
+     * Sets the rate at which off emitters switch on.
+     * @param rate rate per frame without laser power
+     * @param rate_per_power increase of the rate per unit of laser power
+     */
+    public void setOnRate(double rate, double rate_per_power) {
+        checkRate(rate, rate_per_power);
+        this.on_rate = rate;
+        this.on_rate_per_power = rate_per_power;
+    }
+    
+    /**
+     * Sets the rate at which on emitters switch off.
+     * @param rate rate per frame without laser power
+     * @param rate_per_power increase of the rate per unit of laser power
+     */
+    public void setOffRate(double rate, double rate_per_power) {
+        checkRate(rate, rate_per_power);
+        this.off_rate = rate;
+        this.off_rate_per_power = rate_per_power;
+    }
+    
+    /**
+     * Sets the rate at which on emitters bleach, after which they never
+     * switch on again.
+     * @param rate rate per frame without laser power
+     * @param rate_per_power increase of the rate per unit of laser power
+     */
+    public void setBleachRate(double rate, double rate_per_power) {
+        checkRate(rate, rate_per_power);
+        this.bleach_rate = rate;
+        this.bleach_rate_per_power = rate_per_power;
+    }
+    
+    private static void checkRate(double rate, double rate_per_power) {
+        if (!(rate >= 0.0) || !(rate_per_power >= 0.0))
+            throw new IllegalArgumentException("Rates must be non-negative!");
+    }
+    
+    /**
+     * Sets the brightness of the emitters.
+     * @param photons mean number of photons of an on emitter per frame
+     * @param psf_sigma standard deviation of the spot in pixels
+     */
+    public void setEmitterPhotons(double photons, double psf_sigma) {
+        if (!(photons >= 0.0))
+            throw new IllegalArgumentException("Number of photons must be non-negative!");
+        if (!(psf_sigma > 0.0))
+            throw new IllegalArgumentException("Spot size must be positive!");
+        this.emitter_photons = photons;
+        this.psf_sigma = psf_sigma;
+    }
+    
+    /**
+     * Sets the camera noise model. A pixel value is baseline + gain *
+     * (photons with shot noise) + read noise.
+     * @param background_photons mean number of background photons per pixel
+     *  and frame
+     * @param baseline offset of the pixel values
+     * @param gain pixel value per photon
+     * @param read_noise standard deviation of the read noise in pixel values
+     */
+    public void setCamera(double background_photons, double baseline,
+            double gain, double read_noise) {
+        if (!(background_photons >= 0.0) || !(baseline >= 0.0) ||
+                !(gain > 0.0) || !(read_noise >= 0.0))
+            throw new IllegalArgumentException("Invalid camera parameters!");
+        this.background_photons = background_photons;
+        this.baseline = baseline;
+        this.gain = gain;
+        this.read_noise = read_noise;
+        noise_image = null;
+    }
+    
+    /**
+     * Sets the rate at which images are provided.
+     * @param frame_interval_ms time between images in milliseconds, 0 to
+     *  provide them as fast as they are requested
+     */
+    public void setFrameInterval(double frame_interval_ms) {
+        if (frame_interval_ms < 0.0 || Double.isNaN(frame_interval_ms))
+            throw new IllegalArgumentException("Frame interval must be non-negative!");
+        this.frame_interval_ns = (long) (frame_interval_ms * 1e6);
+    }
+    
+    /**
+     * 
+     * @param max_frames number of images after which the source is
+     *  exhausted, 0 for no limit
+     */
+    public void setFrameCount(long max_frames) {
+        if (max_frames < 0)
+            throw new IllegalArgumentException("Frame count must be non-negative!");
+        this.max_frames = max_frames;
+    }
+    
+    /**
+     * 
+     * @param pixel_size_um length of one pixel side in micrometers
+     */
+    public void setPixelSizeUm(double pixel_size_um) {
+        this.pixel_size_um = pixel_size_um;
+    }
+    
+    @Override
+    public Object waitForNewImage(long timeout_ns) throws InterruptedException {
+        if (isExhausted())
+            return null;
+        if (frame_interval_ns > 0) {
+            long now = System.nanoTime();
+            if (next_image == 0)
+                start_ns = now;
+            long due = start_ns + next_image * frame_interval_ns;
+            if (due - now > timeout_ns) {
+                FileImageSource.sleepNanos(timeout_ns);
+                return null;
+            }
+            FileImageSource.waitUntil(due);
+        } else if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return nextFrame();
+    }
+    
+    /**
+     * Advances the sample by one frame and renders it, without pacing.
+     * @return pixels of the new image
+     */
+    public short[] nextFrame() {
+        updateEmitters(laser.getLaserPowerCached());
+        short[] pixels = render();
+        last_on_count = n_on;
+        last_bleached_count = order.length - n_alive;
+        last_image_number = next_image;
+        next_image++;
+        return pixels;
+    }
+    
+    private void updateEmitters(double power) {
+        double off = off_rate + off_rate_per_power * power;
+        double bleach = bleach_rate + bleach_rate_per_power * power;
+        double p_leave = 1.0 - Math.exp(-(off + bleach));
+        double p_bleach = (off + bleach > 0.0) ? p_leave * bleach / (off + bleach) : 0.0;
+        int n_activated = binomial(n_alive - n_on,
+                1.0 - Math.exp(-(on_rate + on_rate_per_power * power)));
+        
+        // on emitters, visited from the end so that the swapped ones were
+        // already visited
+        for (int i = n_on - 1; i >= 0; i--) {
+            double u = nextDouble();
+            if (u >= p_leave)
+                continue;
+            int id = order[i];
+            n_on--;
+            order[i] = order[n_on];
+            order[n_on] = id;
+            if (u < p_bleach) {
+                n_alive--;
+                order[n_on] = order[n_alive];
+                order[n_alive] = id;
+            }
+        }
+        
+        // emitters switched on are drawn from the off emitters before the
+        // on emitters were updated
+        n_activated = Math.min(n_activated, n_alive - n_on);
+        for (int k = 0; k < n_activated; k++) {
+            int j = n_on + nextInt(n_alive - n_on);
+            int id = order[j];
+            order[j] = order[n_on];
+            order[n_on] = id;
+            n_on++;
+        }
+    }
+    
+    private short[] render() {
+        int n_pixels = width * height;
+        if (noise_image == null)
+            noise_image = createNoiseImage(n_pixels);
+        short[] pixels = new short[n_pixels];
+        int offset = nextInt(noise_image.length - n_pixels + 1);
+        System.arraycopy(noise_image, offset, pixels, 0, n_pixels);
+        
+        int radius = (int) Math.ceil(3 * psf_sigma);
+        if (weights_x.length != 2 * radius + 1) {
+            weights_x = new float[2 * radius + 1];
+            weights_y = new float[2 * radius + 1];
+        }
+        double norm = Math.sqrt(emitter_photons) / (Math.sqrt(2 * Math.PI) * psf_sigma);
+        double inv_2s2 = 1.0 / (2 * psf_sigma * psf_sigma);
+        for (int i = 0; i < n_on; i++) {
+            int id = order[i];
+            float cx = emitter_x[id];
+            float cy = emitter_y[id];
+            int x0 = (int) cx - radius;
+            int y0 = (int) cy - radius;
+            // separable spot, each axis carries the square root of the photons
+            for (int k = 0; k <= 2 * radius; k++) {
+                double dx = x0 + k + 0.5 - cx;
+                double dy = y0 + k + 0.5 - cy;
+                weights_x[k] = (float) (norm * Math.exp(-dx * dx * inv_2s2));
+                weights_y[k] = (float) (norm * Math.exp(-dy * dy * inv_2s2));
+            }
+            for (int ky = 0; ky <= 2 * radius; ky++) {
+                int y = y0 + ky;
+                if (y < 0 || y >= height)
+                    continue;
+                int row = y * width;
+                for (int kx = 0; kx <= 2 * radius; kx++) {
+                    int x = x0 + kx;
+                    if (x < 0 || x >= width)
+                        continue;
+                    double mean = weights_x[kx] * weights_y[ky];
+                    // shot noise, approximated by a normal distribution
+                    double photons = mean + Math.sqrt(mean) * nextGaussian();
+                    if (photons <= 0.0)
+                        continue;
+                    int value = (pixels[row + x] & 0xffff) + (int) (gain * photons + 0.5);
+                    pixels[row + x] = (short) Math.min(value, 65535);
+                }
+            }
+        }
+        return pixels;
+    }
+    
+    /**
+     * Creates a background noise image which is longer than one frame, so
+     * that frames can be copied from it at random offsets.
+     */
+    private short[] createNoiseImage(int n_pixels) {
+        short[] image = new short[n_pixels + Math.max(n_pixels, GAUSSIAN_TABLE_LENGTH)];
+        for (int i = 0; i < image.length; i++) {
+            double value = baseline + gain * poisson(background_photons) +
+                    read_noise * random.nextGaussian();
+            image[i] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+        }
+        return image;
+    }
+    
+    private int poisson(double mean) {
+        if (mean > 30.0)
+            return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int k = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            k++;
+        }
+        return k;
+    }
+    
+    private int binomial(int n, double p) {
+        double mean = n * p;
+        if (n == 0 || p <= 0.0)
+            return 0;
+        if (mean > 30.0) {
+            double value = mean + Math.sqrt(mean * (1.0 - p)) * nextGaussian();
+            return (int) Math.max(0, Math.min(n, Math.round(value)));
+        }
+        // Poisson approximation of rare events
+        double limit = Math.exp(-mean);
+        double product = nextDouble();
+        int k = 0;
+        while (product > limit && k < n) {
+            product *= nextDouble();
+            k++;
+        }
+        return k;
+    }
+    
+    // xorshift64* generator, faster than java.util.Random in the frame loop
+    private long nextLong() {
+        rng_state ^= rng_state >>> 12;
+        rng_state ^= rng_state << 25;
+        rng_state ^= rng_state >>> 27;
+        return rng_state * 2685821657736338717L;
+    }
+    
+    private double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+    
+    private int nextInt(int bound) {
+        return (int) (nextDouble() * bound);
+    }
+    
+    private double nextGaussian() {
+        return gaussians[(int) (nextLong() >>> 48) & (GAUSSIAN_TABLE_LENGTH - 1)];
+    }
+    
+    /**
+     *
+     * @return number of emitters which were on in the last image
+     */
+    public int getOnCount() {
+        return last_on_count;
+    }
+    
+    /**
+     *
+     * @return number of emitters bleached up to the last image
+     */
+    public int getBleachedCount() {
+        return last_bleached_count;
+    }
+    
+    /**
+     *
+     * @return number of emitters in the field of view
+     */
+    public int getEmitterCount() {
+        return order.length;
+    }
+
+    @Override
+    public int getImageWidth() {
+        return width;
+    }
+
+    @Override
+    public int getImageHeight() {
+        return height;
+    }
+
+    @Override
+    public double getPixelSizeUm() {
+        return pixel_size_um;
+    }
+
+    @Override
+    public long getLastImageNumber() {
+        return last_image_number;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return max_frames > 0 && next_image >= max_frames;
+    }
+
+    @Override
+    public void close() {
+        noise_image = null;
+    }
+}
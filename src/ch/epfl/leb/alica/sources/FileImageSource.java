@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.sources;
+
+import ch.epfl.leb.alica.ImageSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recorded stack of images from a memory-mapped file, for running
+ * analyzers and controllers without Micro-Manager hardware.
+ * 
+ * Uncompressed grayscale TIFF stacks (8 or 16 bits per pixel, one image per
+ * IFD, as saved by Micro-Manager or ImageJ) and headerless raw stacks are
+ * supported. Images are replayed at a fixed frame interval, which for
+ * ImageJ stacks is taken from the recorded "finterval" by default, or as
+ * fast as they are requested if the interval is 0. Each returned image is a
+ * new short[] (16 bits) or byte[] (8 bits) array.
+ * @author Marcel Stefko
+ */
+public class FileImageSource implements ImageSource {
+    // files are mapped in regions of this size, plus the largest strip
+    private static final long REGION_BYTES = 1L << 30;
+    // how long before its due time an image is waited for by yielding
+    private static final long SPIN_NS = 200000;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long file_length;
+    private final ByteOrder byte_order;
+    private final int width;
+    private final int height;
+    private final int bytes_per_pixel;
+    // strips of each image: file offsets and byte counts
+    private final long[][] strip_offsets;
+    private final int[][] strip_counts;
+    private final int max_strip_bytes;
+    private final MappedByteBuffer[] regions;
+    
+    private double pixel_size_um = 1.0;
+    private long frame_interval_ns;
+    private boolean looping = false;
+    
+    private long next_image = 0;
+    private long last_image_number = -1;
+    private long start_ns = 0;
+    
+    /**
+     * Open a headerless raw stack of images stored one after another.
+     * @param file raw stack file
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param bits_per_pixel 8 or 16
+     * @param byte_order byte order of 16-bit pixels
+     * @param header_bytes number of bytes before the first image
+     * @return the image source
+     * @throws IOException if the file can not be opened
+     */
+    public static FileImageSource openRaw(File file, int width, int height,
+            int bits_per_pixel, ByteOrder byte_order, long header_bytes)
+            throws IOException {
+        if (file == null)
+            throw new NullPointerException("You need to set a file!");
+        if (byte_order == null)
+            throw new NullPointerException("You need to set a byte order!");
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image size must be positive!");
+        checkBitsPerPixel(bits_per_pixel);
+        long image_bytes = (long) width * height * (bits_per_pixel / 8);
+        long n_images = (file.length() - header_bytes) / image_bytes;
+        if (header_bytes < 0 || n_images < 1)
+            throw new IOException("File contains no complete image!");
+        if (n_images > Integer.MAX_VALUE)
+            throw new IOException("File contains too many images!");
+        long[][] offsets = new long[(int) n_images][];
+        int[][] counts = new int[(int) n_images][];
+        for (int i = 0; i < n_images; i++) {
+            offsets[i] = new long[] {header_bytes + i * image_bytes};
+            counts[i] = new int[] {(int) image_bytes};
+        }
+        return new FileImageSource(file, byte_order, width, height,
+                bits_per_pixel / 8, offsets, counts, 0);
+    }
+    
+    /**
+     * Open an uncompressed grayscale TIFF stack.
+     * @param file TIFF file
+     * @return the image source
+     * @throws IOException if the file can not be read, or is not a
+     *  supported TIFF file
+     */
+    public static FileImageSource openTiff(File file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("You need to set a file!");
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            return TiffLayout.read(access.getChannel()).open(file);
+        } finally {
+            access.close();
+        }
+    }
+    
+    private static void checkBitsPerPixel(int bits_per_pixel) {
+        if (bits_per_pixel != 8 && bits_per_pixel != 16)
+            throw new IllegalArgumentException("Only 8 and 16 bits per pixel are supported!");
+    }
+    
+    FileImageSource(File file, ByteOrder byte_order, int width, int height,
+            int bytes_per_pixel, long[][] strip_offsets, int[][] strip_counts,
+            long frame_interval_ns) throws IOException {
+        this.byte_order = byte_order;
+        this.width = width;
+        this.height = height;
+        this.bytes_per_pixel = bytes_per_pixel;
+        this.strip_offsets = strip_offsets;
+        this.strip_counts = strip_counts;
+        this.frame_interval_ns = frame_interval_ns;
+        int max_strip = 0;
+        for (int i = 0; i < strip_counts.length; i++) {
+            for (int s = 0; s < strip_counts[i].length; s++) {
+                max_strip = Math.max(max_strip, strip_counts[i][s]);
+            }
+        }
+        this.max_strip_bytes = max_strip;
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.file_length = channel.size();
+        for (int i = 0; i < strip_offsets.length; i++) {
+            if (imageEnd(i) > file_length) {
+                this.file.close();
+                throw new IOException("Image " + i + " extends past the end of the file!");
+            }
+        }
+        this.regions = new MappedByteBuffer[(int) (file_length / REGION_BYTES) + 1];
+    }
+    
+    private long imageEnd(int image) {
+        long end = 0;
+        for (int s = 0; s < strip_offsets[image].length; s++) {
+            end = Math.max(end, strip_offsets[image][s] + strip_counts[image][s]);
+        }
+        return end;
+    }
+    
+    /**
+     * Sets the replay rate.
+     * @param frame_interval_ms time between images in milliseconds, 0 to
+     *  replay as fast as images are requested
+     */
+    public void setFrameInterval(double frame_interval_ms) {
+        if (frame_interval_ms < 0.0 || Double.isNaN(frame_interval_ms))
+            throw new IllegalArgumentException("Frame interval must be non-negative!");
+        this.frame_interval_ns = (long) (frame_interval_ms * 1e6);
+    }
+    
+    /**
+     *
+     * @return time between images in milliseconds, 0 if replayed as fast as
+     *  requested
+     */
+    public double getFrameInterval() {
+        return frame_interval_ns / 1e6;
+    }
+    
+    /**
+     * 
+     * @param looping if true, the stack is replayed from the start after
+     *  its last image
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+    
+    /**
+     * 
+     * @param pixel_size_um length of one pixel side in micrometers
+     */
+    public void setPixelSizeUm(double pixel_size_um) {
+        this.pixel_size_um = pixel_size_um;
+    }
+    
+    /**
+     *
+     * @return number of images in the stack
+     */
+    public int getImageCount() {
+        return strip_offsets.length;
+    }
+    
+    @Override
+    public Object waitForNewImage(long timeout_ns) throws InterruptedException {
+        if (isExhausted())
+            return null;
+        if (frame_interval_ns > 0) {
+            long now = System.nanoTime();
+            if (next_image == 0)
+                start_ns = now;
+            long due = start_ns + next_image * frame_interval_ns;
+            if (due - now > timeout_ns) {
+                sleepNanos(timeout_ns);
+                return null;
+            }
+            waitUntil(due);
+        } else if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        int image = (int) (next_image % strip_offsets.length);
+        Object pixels;
+        try {
+            pixels = readImage(image);
+        } catch (IOException ex) {
+            throw new RuntimeException("Image " + image + " can not be read.", ex);
+        }
+        last_image_number = next_image;
+        next_image++;
+        return pixels;
+    }
+    
+    static void sleepNanos(long duration_ns) throws InterruptedException {
+        waitUntil(System.nanoTime() + duration_ns);
+    }
+    
+    static void waitUntil(long deadline) throws InterruptedException {
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return;
+            if (remaining > SPIN_NS) {
+                LockSupport.parkNanos(remaining - SPIN_NS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+    
+    /**
+     * Read an image of the stack.
+     * @param image index of the image
+     * @return pixels as short[] or byte[]
+     * @throws IOException if the file can not be mapped
+     */
+    public Object readImage(int image) throws IOException {
+        if (image < 0 || image >= strip_offsets.length)
+            throw new IndexOutOfBoundsException("Image " + image + " is not in the stack!");
+        int n_pixels = width * height;
+        short[] shorts = (bytes_per_pixel == 2) ? new short[n_pixels] : null;
+        byte[] bytes = (bytes_per_pixel == 1) ? new byte[n_pixels] : null;
+        int pixel = 0;
+        for (int s = 0; s < strip_offsets[image].length && pixel < n_pixels; s++) {
+            long offset = strip_offsets[image][s];
+            int count = Math.min(strip_counts[image][s] / bytes_per_pixel, n_pixels - pixel);
+            ByteBuffer strip = region(offset).duplicate();
+            strip.order(byte_order);
+            strip.position((int) (offset % REGION_BYTES));
+            if (shorts != null) {
+                strip.asShortBuffer().get(shorts, pixel, count);
+            } else {
+                strip.get(bytes, pixel, count);
+            }
+            pixel += count;
+        }
+        if (pixel < n_pixels)
+            throw new IOException("Image " + image + " is incomplete!");
+        return (shorts != null) ? shorts : bytes;
+    }
+    
+    /**
+     * Maps the region of the file in which a strip starts. Regions overlap
+     * by the largest strip, so a whole strip fits into its region.
+     */
+    private synchronized MappedByteBuffer region(long offset) throws IOException {
+        int index = (int) (offset / REGION_BYTES);
+        if (regions[index] == null) {
+            long start = index * REGION_BYTES;
+            long length = Math.min(file_length - start, REGION_BYTES + max_strip_bytes);
+            regions[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        return regions[index];
+    }
+
+    @Override
+    public int getImageWidth() {
+        return width;
+    }
+
+    @Override
+    public int getImageHeight() {
+        return height;
+    }
+
+    @Override
+    public double getPixelSizeUm() {
+        return pixel_size_um;
+    }
+
+    @Override
+    public long getLastImageNumber() {
+        return last_image_number;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return !looping && next_image >= strip_offsets.length;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < regions.length; i++) {
+            regions[i] = null;
+        }
+        try {
+            file.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("Image file can not be closed.", ex);
+        }
+    }
+}
+
+/**
+ * Locations of the images of a TIFF stack, read from its IFDs.
+ * @author Marcel Stefko
+ */
+class TiffLayout {
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_IMAGE_DESCRIPTION = 270;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    
+    ByteOrder byte_order;
+    int width = -1;
+    int height = -1;
+    int bits_per_pixel = 0;
+    long frame_interval_ns = 0;
+    final ArrayList<long[]> strip_offsets = new ArrayList<long[]>();
+    final ArrayList<int[]> strip_counts = new ArrayList<int[]>();
+    
+    /**
+     * Reads the IFDs of all images of the file.
+     * @param channel channel of the TIFF file
+     * @return the layout of the images
+     * @throws IOException if the file is not a supported TIFF file
+     */
+    static TiffLayout read(FileChannel channel) throws IOException {
+        TiffLayout layout = new TiffLayout();
+        ByteBuffer header = readAt(channel, 0, 8, ByteOrder.LITTLE_ENDIAN);
+        if (header.get(0) == 'I' && header.get(1) == 'I') {
+            layout.byte_order = ByteOrder.LITTLE_ENDIAN;
+        } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+            layout.byte_order = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Not a TIFF file!");
+        }
+        header.order(layout.byte_order);
+        if (header.getShort(2) != 42)
+            throw new IOException("Not a classic TIFF file!");
+        long ifd_offset = header.getInt(4) & 0xffffffffL;
+        while (ifd_offset != 0) {
+            ifd_offset = layout.readIfd(channel, ifd_offset);
+            if (layout.strip_offsets.size() > Integer.MAX_VALUE - 1)
+                throw new IOException("File contains too many images!");
+        }
+        if (layout.strip_offsets.isEmpty())
+            throw new IOException("TIFF file contains no image!");
+        return layout;
+    }
+    
+    /**
+     * Reads one IFD.
+     * @return offset of the next IFD, 0 if this is the last one
+     */
+    private long readIfd(FileChannel channel, long offset) throws IOException {
+        ByteBuffer count_buffer = readAt(channel, offset, 2, byte_order);
+        int n_entries = count_buffer.getShort(0) & 0xffff;
+        ByteBuffer ifd = readAt(channel, offset + 2, n_entries * 12 + 4, byte_order);
+        int image_width = -1, image_height = -1, bits = 8, samples = 1, compression = 1;
+        long[] offsets = null;
+        long[] counts = null;
+        for (int e = 0; e < n_entries; e++) {
+            int entry = e * 12;
+            int tag = ifd.getShort(entry) & 0xffff;
+            int type = ifd.getShort(entry + 2) & 0xffff;
+            long count = ifd.getInt(entry + 4) & 0xffffffffL;
+            switch (tag) {
+                case TAG_IMAGE_WIDTH:
+                    image_width = (int) readValues(channel, ifd, entry, type, 1)[0];
+                    break;
+                case TAG_IMAGE_LENGTH:
+                    image_height = (int) readValues(channel, ifd, entry, type, 1)[0];
+                    break;
+                case TAG_BITS_PER_SAMPLE:
+                    bits = (int) readValues(channel, ifd, entry, type, 1)[0];
+                    break;
+                case TAG_SAMPLES_PER_PIXEL:
+                    samples = (int) readValues(channel, ifd, entry, type, 1)[0];
+                    break;
+                case TAG_COMPRESSION:
+                    compression = (int) readValues(channel, ifd, entry, type, 1)[0];
+                    break;
+                case TAG_STRIP_OFFSETS:
+                    offsets = readValues(channel, ifd, entry, type, count);
+                    break;
+                case TAG_STRIP_BYTE_COUNTS:
+                    counts = readValues(channel, ifd, entry, type, count);
+                    break;
+                case TAG_IMAGE_DESCRIPTION:
+                    if (strip_offsets.isEmpty())
+                        readDescription(channel, ifd, entry, count);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (compression != 1)
+            throw new IOException("Compressed TIFF files are not supported!");
+        if (samples != 1 || (bits != 8 && bits != 16))
+            throw new IOException("Only 8-bit and 16-bit grayscale TIFF files are supported!");
+        if (image_width <= 0 || image_height <= 0 || offsets == null || 
+                counts == null || offsets.length != counts.length)
+            throw new IOException("TIFF image has no valid strips!");
+        if (strip_offsets.isEmpty()) {
+            width = image_width;
+            height = image_height;
+            bits_per_pixel = bits;
+        } else if (image_width != width || image_height != height || bits != bits_per_pixel) {
+            throw new IOException("Images of the TIFF stack differ in size!");
+        }
+        int[] int_counts = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            int_counts[i] = (int) counts[i];
+        }
+        strip_offsets.add(offsets);
+        strip_counts.add(int_counts);
+        return ifd.getInt(n_entries * 12) & 0xffffffffL;
+    }
+    
+    private long[] readValues(FileChannel channel, ByteBuffer ifd, int entry,
+            int type, long count) throws IOException {
+        if (type != TYPE_SHORT && type != TYPE_LONG)
+            throw new IOException("Unsupported TIFF field type " + type + "!");
+        int size = (type == TYPE_SHORT) ? 2 : 4;
+        if (count > Integer.MAX_VALUE / size)
+            throw new IOException("TIFF field is too large!");
+        ByteBuffer values;
+        int position;
+        if (count * size <= 4) {
+            // values fit into the entry
+            values = ifd;
+            position = entry + 8;
+        } else {
+            values = readAt(channel, ifd.getInt(entry + 8) & 0xffffffffL,
+                    (int) count * size, byte_order);
+            position = 0;
+        }
+        long[] result = new long[(int) count];
+        for (int i = 0; i < count; i++) {
+            result[i] = (type == TYPE_SHORT) ?
+                    values.getShort(position + 2 * i) & 0xffff :
+                    values.getInt(position + 4 * i) & 0xffffffffL;
+        }
+        return result;
+    }
+    
+    /**
+     * Takes the frame interval from an ImageJ description.
+     */
+    private void readDescription(FileChannel channel, ByteBuffer ifd, int entry,
+            long count) throws IOException {
+        if (count <= 4 || count > 65536)
+            return;
+        ByteBuffer text = readAt(channel, ifd.getInt(entry + 8) & 0xffffffffL,
+                (int) count, byte_order);
+        byte[] bytes = new byte[(int) count];
+        text.get(bytes);
+        String description = new String(bytes, "ISO-8859-1");
+        for (String line : description.split("\n")) {
+            if (line.startsWith("finterval=")) {
+                try {
+                    double interval_s = Double.parseDouble(line.substring(10).trim());
+                    if (interval_s > 0.0)
+                        frame_interval_ns = (long) (interval_s * 1e9);
+                } catch (NumberFormatException ex) {
+                    // keep replaying as fast as requested
+                }
+            }
+        }
+    }
+    
+    private static ByteBuffer readAt(FileChannel channel, long position, int length,
+            ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("TIFF file is truncated!");
+        }
+        buffer.flip();
+        buffer.order(order);
+        return buffer;
+    }
+    
+    /**
+     * Opens the described file as an image source.
+     */
+    FileImageSource open(File file) throws IOException {
+        int n = strip_offsets.size();
+        return new FileImageSource(file, byte_order, width, height,
+                bits_per_pixel / 8, strip_offsets.toArray(new long[n][]),
+                strip_counts.toArray(new int[n][]), frame_interval_ns);
+    }
+}
@@ -21,12 +21,18 @@ package ch.epfl.leb.alica.workers;
 
 import ch.epfl.leb.alica.AlicaLogger;
 import ch.epfl.leb.alica.Analyzer;
+import ch.epfl.leb.alica.ImageSource;
 import ch.epfl.leb.alica.ImagingMode;
+import ch.epfl.leb.alica.analyzers.VectorBatchOutput;
 import com.google.common.eventbus.Subscribe;
 import ij.gui.Roi;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import mmcorej.CMMCore;
+import mmcorej.Metadata;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -42,8 +48,12 @@ import org.micromanager.events.LiveModeEvent;
 /**
  * This thread continuously queries either the MMCore, or the processing pipeline
  * of the live mode for new images, and calls the analyzer's processImage() method
- * on them as fast as it can. Always the latest image is taken for analysis, so
- * it is possible for images to be skipped. It also gathers some statistics for
+ * on them as fast as it can. When grabbing from the core, always the latest
+ * image is taken for analysis, so it is possible for images to be skipped.
+ * Images from the pipeline are passed through a bounded FrameQueue, whose
+ * overflow policy decides which images are skipped if the analysis can not
+ * keep up. In the IMAGE_SOURCE mode, images are taken from an ImageSource
+ * instead, and no Studio is needed. It also gathers some statistics for
  * display by the GUI.
  * @author Marcel Stefko
  */
@@ -55,13 +65,29 @@ public class AnalysisWorker extends Thread {
     private final Analyzer analyzer;
     private final ImagingMode imaging_mode;
     
-    // recieves signals from the live view Datastore, and passes the latest
-    // Coords to last_live_image_coords
+    /**
+     * Default number of images which can wait in the queue for analysis.
+     */
+    public static final int DEFAULT_FRAME_QUEUE_CAPACITY = 32;
+    
+    /**
+     * Default policy for handling images which do not fit into the queue.
+     */
+    public static final FrameQueue.OverflowPolicy DEFAULT_OVERFLOW_POLICY = 
+            FrameQueue.OverflowPolicy.DROP_OLDEST;
+    
+    // how long to wait for a new image before checking the stop flag
+    private static final long FRAME_POLL_TIMEOUT_MS = 100;
+    
+    // recieves signals from the live view Datastore, and passes the
+    // Coords of new images into the frame_queue
     private final NewImageWatcher new_image_watcher;
-    private Coords last_live_image_coords = null;
+    private final FrameQueue<Coords> frame_queue;
     // for comparison with newly acquired images, to see if the image has
     // changed
     private JSONObject last_core_image_tag = null;
+    // provides new images in GRAB_FROM_CORE_ADAPTIVE and IMAGE_SOURCE modes
+    private ImageSource image_source;
     
     // for GUI output
     private long last_analysis_time_ms = 0;
@@ -69,31 +95,66 @@ public class AnalysisWorker extends Thread {
     
     // for logging
     private int image_counter = 0;
+    private volatile long analyzed_frame_count = 0;
+    
+    // runs the controller after analyzed frames in frame-synchronous mode
+    private volatile ControlWorker frame_control_worker = null;
     
     /**
-     * Initialize the worker.
+     * Initialize the worker with default frame queue settings.
      * @param coordinator parent Coordinator
      * @param studio for logging and image queries
      * @param analyzer this Analyzer's processImage() method is called on gathered images
      * @param imaging_mode
      */
     public AnalysisWorker(Coordinator coordinator, Studio studio, Analyzer analyzer, ImagingMode imaging_mode) {
+        this(coordinator, studio, analyzer, imaging_mode,
+                DEFAULT_FRAME_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+    }
+    
+    /**
+     * Initialize the worker.
+     * @param coordinator parent Coordinator
+     * @param studio for logging and image queries
+     * @param analyzer this Analyzer's processImage() method is called on gathered images
+     * @param imaging_mode
+     * @param frame_queue_capacity max. number of pipeline images waiting for analysis
+     * @param overflow_policy what to do with images that do not fit into the queue
+     */
+    public AnalysisWorker(Coordinator coordinator, Studio studio, Analyzer analyzer, 
+            ImagingMode imaging_mode, int frame_queue_capacity,
+            FrameQueue.OverflowPolicy overflow_policy) {
+        this(coordinator, studio, analyzer, imaging_mode, frame_queue_capacity,
+                overflow_policy, null);
+    }
+    
+    /**
+     * Initialize the worker.
+     * @param coordinator parent Coordinator
+     * @param studio for logging and image queries, can be null in the
+     *  IMAGE_SOURCE mode
+     * @param analyzer this Analyzer's processImage() method is called on gathered images
+     * @param imaging_mode
+     * @param frame_queue_capacity max. number of pipeline images waiting for analysis
+     * @param overflow_policy what to do with images that do not fit into the queue
+     * @param image_source source of images in the IMAGE_SOURCE mode, it is
+     *  closed when the worker finishes
+     */
+    public AnalysisWorker(Coordinator coordinator, Studio studio, Analyzer analyzer, 
+            ImagingMode imaging_mode, int frame_queue_capacity,
+            FrameQueue.OverflowPolicy overflow_policy, ImageSource image_source) {
+        if (imaging_mode == ImagingMode.IMAGE_SOURCE && image_source == null)
+            throw new NullPointerException("You need to set an image source!");
         this.setName("Analysis Worker");
+        this.image_source = image_source;
         
         this.coordinator = coordinator;
         this.studio = studio;
         this.analyzer = analyzer;
         this.imaging_mode = imaging_mode;
         
-        this.new_image_watcher = new NewImageWatcher(this.analyzer, this);
-    }
-    
-    /**
-     * Called by the NewImageWatcher to update last coords
-     * @param coords new Coords
-     */
-    void setLastImageCoords(Coords coords) {
-        this.last_live_image_coords = coords;
+        this.frame_queue = new FrameQueue<Coords>(frame_queue_capacity, overflow_policy);
+        this.new_image_watcher = new NewImageWatcher(this.frame_queue);
     }
     
     /**
@@ -106,6 +167,7 @@ public class AnalysisWorker extends Thread {
         if (evt.getIsOn() && imaging_mode.equals(ImagingMode.LIVE)) {
             studio.logs().logDebugMessage("Live mode start detected. Alica analyzer thread will now begin analyzing images from pipeline.");
             this.new_image_watcher.setLatestDatastore(this.studio.live().getDisplay().getDatastore());
+            this.frame_queue.clear();
             this.image_counter = 0;
             AlicaLogger.getInstance().clear();
         }
@@ -120,6 +182,7 @@ public class AnalysisWorker extends Thread {
         if (imaging_mode.equals(ImagingMode.NEXT_ACQUISITION)) {
             studio.logs().logDebugMessage("Acquisition start detected. Alica analyzer thread will now begin analyzing images from pipeline.");
             this.new_image_watcher.setLatestDatastore(evt.getDatastore());
+            this.frame_queue.clear();
             this.image_counter = 0;
             AlicaLogger.getInstance().clear();
         }
@@ -141,6 +204,16 @@ public class AnalysisWorker extends Thread {
         AlicaLogger.getInstance().addToLog(image_counter, "Acquisition_in_progress", 0.0);
     }
     
+    /**
+     * Run the control task of the ControlWorker on this thread after
+     * analyzed frames. Called by ControlWorker.synchronizeToFrames().
+     * @param control_worker worker whose frameAnalyzed() is called after
+     *  each analyzed frame
+     */
+    void setFrameSynchronousControl(ControlWorker control_worker) {
+        this.frame_control_worker = control_worker;
+    }
+    
     /**
      * Set the ROI for Analyzer
      * @param roi ROI to be set
@@ -161,20 +234,34 @@ public class AnalysisWorker extends Thread {
         // loop while asked to stop
         while (!this.stop_flag) {
             // either draw from core or live mode datastore
+            boolean analyzed;
             try {
                 if (imaging_mode.equals(ImagingMode.GRAB_FROM_CORE))
-                    getNewImageFromCoreAndAnalyze();
+                    analyzed = getNewImageFromCoreAndAnalyze();
+                else if (imaging_mode.equals(ImagingMode.GRAB_FROM_CORE_ADAPTIVE))
+                    analyzed = getNewImageFromCoreAdaptivelyAndAnalyze();
+                else if (imaging_mode.equals(ImagingMode.IMAGE_SOURCE))
+                    analyzed = getNewImageFromSourceAndAnalyze();
                 else
-                    getNewImageFromWatcherAndAnalyze();
+                    analyzed = getNewImageFromWatcherAndAnalyze();
             } catch (InterruptedException ex) {
-                studio.logs().logMessage("Analysis Worker was interrupted.");
+                AlicaLogger.getInstance().logMessage("Analysis Worker was interrupted.");
                 break;
             }
-            // increment fps counter after each image
-            fps_count++;
-            image_counter++;
-            // log the intermittent output
-            AlicaLogger.getInstance().addIntermittentOutput(image_counter, this.queryAnalyzerForIntermittentOutput());
+            if (analyzed) {
+                // increment fps counter after each image
+                fps_count++;
+                image_counter++;
+                analyzed_frame_count++;
+                // log the intermittent output
+                double intermittent_output = this.queryAnalyzerForIntermittentOutput();
+                AlicaLogger.getInstance().addIntermittentOutput(image_counter, intermittent_output);
+                // in frame-synchronous mode, the controller might run now
+                ControlWorker control_worker = frame_control_worker;
+                if (control_worker != null) {
+                    control_worker.frameAnalyzed(intermittent_output);
+                }
+            }
             
             // if a second has passed, store value and reset FPS counters
             if ((coordinator.getTimeMillis() - fps_time) > 1000) {
@@ -182,24 +269,32 @@ public class AnalysisWorker extends Thread {
                 fps_count = 0;
                 fps_time = coordinator.getTimeMillis();
             }
+            
+            // a replayed stack has ended
+            if (imaging_mode.equals(ImagingMode.IMAGE_SOURCE) && image_source.isExhausted()) {
+                AlicaLogger.getInstance().logDebugMessage("Image source is exhausted. Alica worker threads will now terminate.");
+                coordinator.requestStop();
+            }
         }
         // after finishing analysis, dispose of analyzer resources
         analyzer.dispose();
+        if (imaging_mode.equals(ImagingMode.IMAGE_SOURCE)) {
+            image_source.close();
+        }
     }
     
     /**
-     * Grabs new images from the Datastore associated with the NewImageWatcher, analyzes
-     * it.
+     * Takes the oldest queued image from the Datastore associated with the
+     * NewImageWatcher, and analyzes it.
+     * @return true if an image was analyzed, false if none arrived in time
      * @throws java.lang.InterruptedException
      */
-    public void getNewImageFromWatcherAndAnalyze() throws InterruptedException {
-        Coords current_coords;
+    public boolean getNewImageFromWatcherAndAnalyze() throws InterruptedException {
         // wait for image acquisition by NewImageWatcher
-        synchronized(analyzer) {
-            if (this.last_live_image_coords==null) {
-                analyzer.wait();
-            }
-            current_coords = this.last_live_image_coords;
+        Coords current_coords = frame_queue.poll(FRAME_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (current_coords == null) {
+            // give the caller a chance to check the stop flag
+            return false;
         }
         long image_acquisition_time = coordinator.getTimeMillis();
         try {
@@ -209,18 +304,18 @@ public class AnalysisWorker extends Thread {
             studio.logs().logError(ex, "Error in image retrieval from datastore or processing by analyzer.");
         }
         // log coords of the image, offset by 1 because counter was not yet incremented
-        AlicaLogger.getInstance().addToLog(image_counter+1, "coords_time", Integer.toString(current_coords.getTime()));
-        // clear last image coords pointer
-        this.last_live_image_coords = null;
+        AlicaLogger.getInstance().addToLog(image_counter+1, "coords_time", current_coords.getTime());
 
         last_analysis_time_ms = coordinator.getTimeMillis() - image_acquisition_time;
+        return true;
     }
     
     /**
      * Acquire the new image directly from MMCore and send for analysis.
+     * @return always true, since the method waits until an image is analyzed
      * @throws java.lang.InterruptedException if waiting is interrupted
      */
-    public void getNewImageFromCoreAndAnalyze() throws InterruptedException {
+    public boolean getNewImageFromCoreAndAnalyze() throws InterruptedException {
         long image_acquisition_time = coordinator.getTimeMillis();
         TaggedImage new_tagged_image = null;
         Object new_image = null;
@@ -254,6 +349,40 @@ public class AnalysisWorker extends Thread {
         } catch (JSONException ex) {
             studio.logs().logError(ex, "Failed to extract tagged image data.");
         }
+        return true;
+    }
+    
+    /**
+     * Wait for a new image in the MMCore circular buffer using the adaptive
+     * poller, and send it for analysis.
+     * @return true if an image was analyzed, false if none arrived in time
+     * @throws java.lang.InterruptedException if waiting is interrupted
+     */
+    public boolean getNewImageFromCoreAdaptivelyAndAnalyze() throws InterruptedException {
+        if (image_source == null) {
+            image_source = new AdaptiveCorePoller(studio.core());
+        }
+        return getNewImageFromSourceAndAnalyze();
+    }
+    
+    /**
+     * Wait for a new image from the ImageSource, and send it for analysis.
+     * @return true if an image was analyzed, false if none arrived in time
+     * @throws java.lang.InterruptedException if waiting is interrupted
+     */
+    public boolean getNewImageFromSourceAndAnalyze() throws InterruptedException {
+        Object new_image = image_source.waitForNewImage(
+                TimeUnit.MILLISECONDS.toNanos(FRAME_POLL_TIMEOUT_MS));
+        if (new_image == null) {
+            // give the caller a chance to check the stop flag
+            return false;
+        }
+        long image_acquisition_time = coordinator.getTimeMillis();
+        analyzer.processImage(new_image, image_source.getImageWidth(), image_source.getImageHeight(), image_source.getPixelSizeUm(), image_acquisition_time);
+        this.last_analysis_time_ms = coordinator.getTimeMillis() - image_acquisition_time;
+        // log the image number
+        AlicaLogger.getInstance().addToLog(image_counter+1, "tag_frame_index", image_source.getLastImageNumber());
+        return true;
     }
     
     /**
@@ -298,6 +427,16 @@ public class AnalysisWorker extends Thread {
         synchronized(this.analyzer) {
             double out = this.analyzer.getBatchOutput();
             AlicaLogger.getInstance().addBatchedOutput(image_counter, out);
+            if (this.analyzer instanceof VectorBatchOutput) {
+                // log all components of the output
+                VectorBatchOutput vector = (VectorBatchOutput) this.analyzer;
+                String[] names = vector.getBatchOutputNames();
+                double[] outputs = vector.getLastBatchOutputs();
+                for (int i = 0; i < names.length; i++) {
+                    AlicaLogger.getInstance().addToLog(image_counter, 
+                            "analyzer_" + names[i], outputs[i]);
+                }
+            }
             return out;
         }
     }
@@ -327,6 +466,30 @@ public class AnalysisWorker extends Thread {
         return this.image_counter;
     }
     
+    /**
+     * 
+     * @return total number of images accepted into the frame queue
+     */
+    public long getEnqueuedFrameCount() {
+        return frame_queue.getEnqueuedCount();
+    }
+    
+    /**
+     * 
+     * @return total number of images dropped because the frame queue was full
+     */
+    public long getDroppedFrameCount() {
+        return frame_queue.getDroppedCount();
+    }
+    
+    /**
+     * 
+     * @return total number of images processed by the analyzer
+     */
+    public long getAnalyzedFrameCount() {
+        return analyzed_frame_count;
+    }
+    
     /**
      * Stops the analyzer after finalizing the current analysis.
      */
@@ -337,17 +500,15 @@ public class AnalysisWorker extends Thread {
 
 /**
  * The watcher is subscribed to a Datastore by the AnalysisWorker, and then it
- * informs the AnalysisWorker of any new images in the Datastore.
+ * passes the coords of any new images in the Datastore into the frame queue.
  * @author Marcel Stefko
  */
 class NewImageWatcher {
-    private final Object object_to_lock;
-    private final AnalysisWorker thread_to_notify;
-    private Datastore latest_datastore;
+    private final FrameQueue<Coords> frame_queue;
+    private volatile Datastore latest_datastore;
     
-    public NewImageWatcher(Object object_to_lock, AnalysisWorker thread_to_notify) {
-        this.object_to_lock = object_to_lock;
-        this.thread_to_notify = thread_to_notify;
+    public NewImageWatcher(FrameQueue<Coords> frame_queue) {
+        this.frame_queue = frame_queue;
         this.latest_datastore = null;
     }
     
@@ -376,17 +537,178 @@ class NewImageWatcher {
     }
     
     /**
-     * Notify the thread that new image is available and send it the coords.
+     * Pass the coords of the new image to the analysis thread.
      * @param evt event containing coords
      */
     @Subscribe
     public void newImageAcquired(NewImageEvent evt) {
-        synchronized(object_to_lock) {
-            // notify thread that it can wake up
-            object_to_lock.notify();
-            // store the last image coords
-            thread_to_notify.setLastImageCoords(evt.getCoords());
+        try {
+            frame_queue.offer(evt.getCoords());
+        } catch (InterruptedException ex) {
+            // restore the flag for the event dispatching thread
+            Thread.currentThread().interrupt();
         }
     }
 }
 
+/**
+ * Waits for new images in the MMCore circular buffer without polling at a
+ * fixed rate.
+ * 
+ * The interval between images is measured, and the poller sleeps until
+ * shortly before the next image is expected. Then it polls a few times in
+ * quick succession, and if the image is late, it backs off exponentially.
+ * Image identity is taken from the ImageNumber metadata tag and cached as a
+ * long, so no JSON tags are built or compared.
+ * @author Marcel Stefko
+ */
+class AdaptiveCorePoller implements ImageSource {
+    private static final String IMAGE_NUMBER_TAG = "ImageNumber";
+    // number of immediate polls before backing off
+    private static final int SPIN_POLLS = 10;
+    private static final long MIN_BACKOFF_NS = 50000;
+    private static final long MAX_BACKOFF_NS = 1000000;
+    // the poller wakes up after this fraction of the predicted interval
+    private static final double PREDICTION_LEAD = 0.75;
+    // weight of the newest interval in the running average
+    private static final double INTERVAL_SMOOTHING = 0.1;
+    
+    private final CMMCore core;
+    private final Metadata metadata;
+    
+    private long last_image_number = -1;
+    private long last_arrival_ns = 0;
+    private double mean_interval_ns = 0.0;
+    
+    public AdaptiveCorePoller(CMMCore core) {
+        this.core = core;
+        this.metadata = new Metadata();
+    }
+    
+    /**
+     * Wait until an image which has not been returned yet appears in the
+     * circular buffer.
+     * @param timeout_ns maximal waiting time in nanoseconds
+     * @return pixels of the new image, or null if none arrived in time
+     * @throws InterruptedException if waiting is interrupted
+     */
+    @Override
+    public Object waitForNewImage(long timeout_ns) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout_ns;
+        // sleep through most of the predicted inter-frame interval
+        if (mean_interval_ns > 0.0) {
+            long delay = last_arrival_ns + (long) (PREDICTION_LEAD * mean_interval_ns)
+                    - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(this, Math.min(delay, timeout_ns));
+            }
+        }
+        int polls = 0;
+        long backoff_ns = MIN_BACKOFF_NS;
+        while (true) {
+            Object image = pollNewImage();
+            if (image != null) {
+                return image;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (polls < SPIN_POLLS) {
+                polls++;
+                Thread.yield();
+                continue;
+            }
+            LockSupport.parkNanos(this, Math.min(backoff_ns, remaining));
+            backoff_ns = Math.min(2 * backoff_ns, MAX_BACKOFF_NS);
+        }
+    }
+    
+    /**
+     * Query the core once for the last image.
+     * @return pixels of the last image, or null if it was already returned
+     */
+    private Object pollNewImage() {
+        final Object image;
+        final long image_number;
+        try {
+            metadata.Clear();
+            image = core.getLastImageMD(metadata);
+            image_number = Long.parseLong(
+                    metadata.GetSingleTag(IMAGE_NUMBER_TAG).GetValue());
+        } catch (Exception ex) {
+            // circular buffer is empty or the image is not tagged
+            return null;
+        }
+        if (image == null || image_number == last_image_number) {
+            return null;
+        }
+        final long now = System.nanoTime();
+        if (last_image_number >= 0 && image_number > last_image_number) {
+            // skipped images still count towards the interval estimate
+            double interval = (double) (now - last_arrival_ns) /
+                    (image_number - last_image_number);
+            if (mean_interval_ns == 0.0) {
+                mean_interval_ns = interval;
+            } else {
+                mean_interval_ns += INTERVAL_SMOOTHING * (interval - mean_interval_ns);
+            }
+        } else {
+            // first image, or a new sequence restarted the numbering
+            mean_interval_ns = 0.0;
+        }
+        last_image_number = image_number;
+        last_arrival_ns = now;
+        return image;
+    }
+    
+    /**
+     * 
+     * @return ImageNumber of the last returned image, or -1 if none
+     */
+    @Override
+    public long getLastImageNumber() {
+        return last_image_number;
+    }
+    
+    @Override
+    public int getImageWidth() {
+        return (int) core.getImageWidth();
+    }
+    
+    @Override
+    public int getImageHeight() {
+        return (int) core.getImageHeight();
+    }
+    
+    @Override
+    public double getPixelSizeUm() {
+        return core.getPixelSizeUm();
+    }
+    
+    /**
+     * 
+     * @return false, the core keeps acquiring images
+     */
+    @Override
+    public boolean isExhausted() {
+        return false;
+    }
+    
+    @Override
+    public void close() {
+        // the core is owned by Micro-Manager
+    }
+    
+    /**
+     * 
+     * @return running average of the interval between images in nanoseconds,
+     *  or 0 if not yet known
+     */
+    public double getMeanFrameIntervalNs() {
+        return mean_interval_ns;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import ch.epfl.leb.alica.AlicaLogger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task periodically on a dedicated thread, with nanosecond deadlines.
+ * 
+ * The thread parks until shortly before each deadline and yields for the
+ * rest, so that the start of a tick is not delayed by the coarse wake-up of
+ * the park. Deadlines are fixed multiples of the period after the start. If
+ * a tick finishes after the next deadline, the missed ticks are skipped
+ * instead of being run in a burst. The delay of each tick start after its
+ * deadline (jitter) and the time by which overrunning ticks finished after
+ * the next deadline are recorded in histograms.
+ * @author Marcel Stefko
+ */
+public class ControlScheduler {
+    // the thread yields instead of parking this close to the deadline
+    static final long SPIN_NS = 200000;
+
+    private final Runnable task;
+    private final String name;
+    private Thread thread = null;
+    private volatile boolean cancelled = false;
+
+    private final LatencyHistogram jitter_histogram = new LatencyHistogram();
+    private final LatencyHistogram overrun_histogram = new LatencyHistogram();
+    private final AtomicLong tick_count = new AtomicLong(0);
+    private final AtomicLong skipped_tick_count = new AtomicLong(0);
+
+    /**
+     * Creates a scheduler, which is not running yet.
+     * @param task task to be run periodically
+     * @param name name of the thread
+     */
+    public ControlScheduler(Runnable task, String name) {
+        if (task == null)
+            throw new NullPointerException("You need to set a task!");
+        this.task = task;
+        this.name = name;
+    }
+
+    /**
+     * Starts running the task.
+     * @param delay_ns delay before the first tick
+     * @param period_ns period of the ticks
+     */
+    public synchronized void start(final long delay_ns, final long period_ns) {
+        if (period_ns <= 0)
+            throw new IllegalArgumentException("Period must be positive!");
+        if (thread != null)
+            throw new IllegalStateException("Scheduler was already started!");
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop(System.nanoTime() + delay_ns, period_ns);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    private void runLoop(long deadline, long period_ns) {
+        while (!cancelled) {
+            waitUntil(deadline);
+            if (cancelled)
+                break;
+            long start = System.nanoTime();
+            jitter_histogram.record(start - deadline);
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                AlicaLogger.getInstance().logError(ex, "Error in scheduled task of " + name + ".");
+            }
+            tick_count.incrementAndGet();
+            deadline += period_ns;
+            long end = System.nanoTime();
+            if (end > deadline) {
+                // skip to the first deadline which is still ahead
+                overrun_histogram.record(end - deadline);
+                long missed = (end - deadline) / period_ns + 1;
+                skipped_tick_count.addAndGet(missed);
+                deadline += missed * period_ns;
+            }
+        }
+    }
+
+    private void waitUntil(long deadline) {
+        while (!cancelled) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return;
+            if (remaining > SPIN_NS) {
+                LockSupport.parkNanos(this, remaining - SPIN_NS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduler, and waits until a tick which is running has
+     * finished, so that the task does not run after this returns. The wait
+     * is bounded, as the task can be blocked, for example by a device. When
+     * called from the task itself, it returns without waiting.
+     * @param timeout_ms maximum time to wait for a running tick
+     * @return true if no tick is running anymore, false if the running tick
+     *  did not finish within the timeout or the wait was interrupted
+     */
+    public boolean cancel(long timeout_ms) {
+        Thread running;
+        synchronized (this) {
+            cancelled = true;
+            running = thread;
+        }
+        if (running == null)
+            return true;
+        LockSupport.unpark(running);
+        if (running == Thread.currentThread())
+            return true;
+        try {
+            running.join(timeout_ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return !running.isAlive();
+    }
+
+    /**
+     *
+     * @return histogram of the delays of tick starts after their deadlines
+     */
+    public LatencyHistogram getJitterHistogram() {
+        return jitter_histogram;
+    }
+
+    /**
+     *
+     * @return histogram of the times by which ticks finished after the
+     *  deadline of the next tick
+     */
+    public LatencyHistogram getOverrunHistogram() {
+        return overrun_histogram;
+    }
+
+    /**
+     *
+     * @return number of ticks which were run
+     */
+    public long getTickCount() {
+        return tick_count.get();
+    }
+
+    /**
+     *
+     * @return number of ticks which were skipped because of overruns
+     */
+    public long getSkippedTickCount() {
+        return skipped_tick_count.get();
+    }
+}
@@ -22,19 +22,29 @@ package ch.epfl.leb.alica.workers;
 import ch.epfl.leb.alica.AlicaLogger;
 import ch.epfl.leb.alica.Controller;
 import ch.epfl.leb.alica.Laser;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
- * A Timer which schedules a task that regularly queries the AnalysisWorker
- * for batched output, and passes it on to the controller, then gets the
- * controller's output and passes it on to the laser.
+ * Schedules a task that regularly queries the AnalysisWorker for batched
+ * output, and passes it on to the controller, then gets the controller's
+ * output and passes it on to the laser. The task either runs on a
+ * ControlScheduler, which skips missed ticks and records the tick jitter, or
+ * in the frame-synchronous mode on the AnalysisWorker thread, whenever a
+ * FrameTrigger decides that enough frames were analyzed.
  * @author Marcel Stefko
  */
 
-public class ControlWorker extends Timer {
+public class ControlWorker {
+    // maximum wait for a running tick when cancelled
+    private static final long CANCEL_TIMEOUT_MS = 1000;
     
+    private final AnalysisWorker analysis_worker;
     private final ControlTask control_task;
+    private final ControlScheduler scheduler;
+    
+    // set in the frame-synchronous mode
+    private volatile FrameTrigger frame_trigger = null;
+    private volatile boolean cancelled = false;
+    private volatile long frame_tick_count = 0;
     
     /**
      * Initialize the ControlWorker
@@ -43,9 +53,10 @@ public class ControlWorker extends Timer {
      * @param laser Laser to which output of Controller is fed
      */
     public ControlWorker(AnalysisWorker analysis_worker, Controller controller, Laser laser) {
-        super();
+        this.analysis_worker = analysis_worker;
         // initialize the task
         this.control_task = new ControlTask(analysis_worker, controller, laser);
+        this.scheduler = new ControlScheduler(control_task, "ALICA control worker");
     }
     
     /**
@@ -54,7 +65,101 @@ public class ControlWorker extends Timer {
      * @param period_ms period of the task
      */
     public void scheduleExecution(long delay_ms, long period_ms) {
-        this.scheduleAtFixedRate(control_task, delay_ms, period_ms);
+        scheduler.start(delay_ms * 1000000L, period_ms * 1000000L);
+    }
+    
+    /**
+     * The task of this worker will be executed by the AnalysisWorker thread
+     * right after a frame is analyzed, whenever the trigger decides so. The
+     * laser should then be an AsyncLaser, so that a slow device does not
+     * stall the analysis; the Coordinator wraps it if needed.
+     * @param trigger decides after which frames the task is executed
+     */
+    public void synchronizeToFrames(FrameTrigger trigger) {
+        if (trigger == null)
+            throw new NullPointerException("You need to set a frame trigger!");
+        this.frame_trigger = trigger;
+        analysis_worker.setFrameSynchronousControl(this);
+    }
+    
+    /**
+     * Called by the AnalysisWorker after each analyzed frame, executes the
+     * task if the frame trigger fires.
+     * @param intermittent_output intermittent output of the analyzer for
+     *  the frame
+     */
+    void frameAnalyzed(double intermittent_output) {
+        FrameTrigger trigger = frame_trigger;
+        if (trigger == null || cancelled)
+            return;
+        if (trigger.frameAnalyzed(intermittent_output)) {
+            // an error of one tick must not stop the analysis
+            try {
+                control_task.run();
+            } catch (RuntimeException ex) {
+                AlicaLogger.getInstance().logError(ex, "Error in frame-synchronous control task.");
+            }
+            frame_tick_count++;
+        }
+    }
+    
+    /**
+     *
+     * @return true if the task is executed after analyzed frames instead of
+     *  periodically
+     */
+    public boolean isFrameSynchronous() {
+        return frame_trigger != null;
+    }
+    
+    /**
+     * Stops the execution of the task, and logs the timing statistics. The
+     * laser is not set by the task afterwards: in the periodic mode, a tick
+     * which is running is waited for up to 1 second, and a tick which is
+     * still running after that does not set the laser anymore.
+     */
+    public void cancel() {
+        cancelled = true;
+        control_task.disableLaser();
+        if (frame_trigger != null) {
+            AlicaLogger.getInstance().logMessage("Control worker ran " + 
+                    frame_tick_count + " frame-synchronous ticks.");
+            return;
+        }
+        if (!scheduler.cancel(CANCEL_TIMEOUT_MS)) {
+            AlicaLogger.getInstance().logError(null, "Control tick is still running after " + 
+                    CANCEL_TIMEOUT_MS + " ms, it will not set the laser anymore.");
+        }
+        AlicaLogger.getInstance().logMessage("Control worker ran " + 
+                scheduler.getTickCount() + " ticks, skipped " + 
+                scheduler.getSkippedTickCount() + ". Tick jitter: " + 
+                scheduler.getJitterHistogram() + ". Overruns: " + 
+                scheduler.getOverrunHistogram() + ".");
+    }
+    
+    /**
+     *
+     * @return histogram of the delays of control ticks after their deadlines
+     */
+    public LatencyHistogram getJitterHistogram() {
+        return scheduler.getJitterHistogram();
+    }
+    
+    /**
+     *
+     * @return histogram of the times by which control ticks overran the
+     *  deadline of the next tick
+     */
+    public LatencyHistogram getOverrunHistogram() {
+        return scheduler.getOverrunHistogram();
+    }
+    
+    /**
+     *
+     * @return number of control ticks skipped because of overruns
+     */
+    public long getSkippedTickCount() {
+        return scheduler.getSkippedTickCount();
     }
     
     /**
@@ -64,13 +169,21 @@ public class ControlWorker extends Timer {
     public double getLastControllerOutput() {
         return control_task.getLastControllerOutput();
     }
+    
+    /**
+     * 
+     * @return current setpoint of the controller
+     */
+    public double getControllerSetpoint() {
+        return control_task.getControllerSetpoint();
+    }
 }
 
 /**
- * This TimerTask is run periodically by the ControlWorker
+ * This task is run periodically by the ControlWorker
  * @author Marcel Stefko
  */
-class ControlTask extends TimerTask {
+class ControlTask implements Runnable {
     private final AnalysisWorker analysis_worker;
     private final Controller controller;
     private final Laser laser;
@@ -79,6 +192,8 @@ class ControlTask extends TimerTask {
     private double last_controller_output = 0.0;
     
     private boolean laser_error_displayed = false;
+    // cleared when the worker is cancelled, also during a tick
+    private volatile boolean laser_enabled = true;
 
     /**
      * Initialize the ControlTask
@@ -87,7 +202,6 @@ class ControlTask extends TimerTask {
      * @param laser Laser to which output of Controller is fed
      */
     public ControlTask(AnalysisWorker analysis_worker, Controller controller, Laser laser) {
-        super();
         this.analysis_worker = analysis_worker;
         this.controller = controller;
         this.laser = laser;
@@ -104,7 +218,9 @@ class ControlTask extends TimerTask {
             
             AlicaLogger.getInstance().addControllerOutput(analysis_worker.getCurrentImageCount(), last_controller_output);
             
-            // adjust the laser power
+            // adjust the laser power, unless the worker was cancelled
+            if (!laser_enabled)
+                return;
             try {
                 laser.setLaserPower(last_controller_output);
             } catch (Exception ex) {
@@ -120,6 +236,14 @@ class ControlTask extends TimerTask {
         }
     }
     
+    /**
+     * The laser is not set by the following ticks, and by a running tick
+     * which has not set it yet.
+     */
+    void disableLaser() {
+        laser_enabled = false;
+    }
+    
     /**
      * 
      * @return last controller output
@@ -130,6 +254,14 @@ class ControlTask extends TimerTask {
         }
     }
     
+    /**
+     * 
+     * @return current setpoint of the controller
+     */
+    public double getControllerSetpoint() {
+        return controller.getSetpoint();
+    }
+    
     
     
 }
@@ -22,11 +22,14 @@ package ch.epfl.leb.alica.workers;
 import ch.epfl.leb.alica.AlicaLogger;
 import ch.epfl.leb.alica.Analyzer;
 import ch.epfl.leb.alica.Controller;
+import ch.epfl.leb.alica.ImageSource;
 import ch.epfl.leb.alica.ImagingMode;
 import ch.epfl.leb.alica.Laser;
 import ch.epfl.leb.alica.MainGUI;
 import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
 import ch.epfl.leb.alica.controllers.ControllerStatusPanel;
+import ch.epfl.leb.alica.lasers.AsyncLaser;
+import ch.epfl.leb.alica.lasers.FilteredLaser;
 import ij.gui.Roi;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,7 +55,7 @@ public class Coordinator {
     private final MonitorGUI gui;
     
     /**
-     * Initialize the coordinator
+     * Initialize the coordinator with default frame queue settings
      * @param studio MM studio
      * @param analyzer
      * @param controller
@@ -60,37 +63,135 @@ public class Coordinator {
      * @param imaging_mode
      * @param controller_tick_rate_ms
      * @param ROI roi for analyzer
+     * @param headless if true, no MonitorGUI is shown
      */
     public Coordinator(Studio studio, Analyzer analyzer, Controller controller, 
             Laser laser, ImagingMode imaging_mode, int controller_tick_rate_ms,
             final Roi ROI, boolean headless) {
+        this(studio, analyzer, controller, laser, imaging_mode, 
+                controller_tick_rate_ms, ROI, headless,
+                AnalysisWorker.DEFAULT_FRAME_QUEUE_CAPACITY,
+                AnalysisWorker.DEFAULT_OVERFLOW_POLICY);
+    }
+    
+    /**
+     * Initialize the coordinator
+     * @param studio MM studio
+     * @param analyzer
+     * @param controller
+     * @param laser
+     * @param imaging_mode
+     * @param controller_tick_rate_ms
+     * @param ROI roi for analyzer
+     * @param headless if true, no MonitorGUI is shown
+     * @param frame_queue_capacity max. number of pipeline images waiting for analysis
+     * @param overflow_policy what to do with images that do not fit into the queue
+     */
+    public Coordinator(Studio studio, Analyzer analyzer, Controller controller, 
+            Laser laser, ImagingMode imaging_mode, int controller_tick_rate_ms,
+            final Roi ROI, boolean headless, int frame_queue_capacity,
+            FrameQueue.OverflowPolicy overflow_policy) {
+        this(studio, analyzer, controller, laser, imaging_mode, 
+                controller_tick_rate_ms, ROI, headless, frame_queue_capacity,
+                overflow_policy, null);
+    }
+    
+    /**
+     * Initialize the coordinator
+     * @param studio MM studio
+     * @param analyzer
+     * @param controller
+     * @param laser
+     * @param imaging_mode
+     * @param controller_tick_rate_ms
+     * @param ROI roi for analyzer
+     * @param headless if true, no MonitorGUI is shown
+     * @param frame_queue_capacity max. number of pipeline images waiting for analysis
+     * @param overflow_policy what to do with images that do not fit into the queue
+     * @param frame_trigger if not null, the controller is run after analyzed
+     *  frames as decided by the trigger, instead of every controller_tick_rate_ms.
+     *  The laser is then wrapped in an AsyncLaser unless it already is one.
+     */
+    public Coordinator(Studio studio, Analyzer analyzer, Controller controller, 
+            Laser laser, ImagingMode imaging_mode, int controller_tick_rate_ms,
+            final Roi ROI, boolean headless, int frame_queue_capacity,
+            FrameQueue.OverflowPolicy overflow_policy, FrameTrigger frame_trigger) {
+        this(studio, analyzer, controller, laser, imaging_mode, 
+                controller_tick_rate_ms, ROI, headless, frame_queue_capacity,
+                overflow_policy, frame_trigger, null);
+    }
+    
+    /**
+     * Initialize a headless coordinator which analyzes images from an
+     * ImageSource, without Micro-Manager. It stops when the source is
+     * exhausted.
+     * @param image_source source of the analyzed images, it is closed when
+     *  the analysis stops
+     * @param analyzer
+     * @param controller
+     * @param laser laser which does not need a Studio, such as a VirtualLaser
+     * @param controller_tick_rate_ms
+     * @param frame_trigger if not null, the controller is run after analyzed
+     *  frames as decided by the trigger, instead of every controller_tick_rate_ms.
+     *  The laser is then wrapped in an AsyncLaser unless it already is one.
+     */
+    public Coordinator(ImageSource image_source, Analyzer analyzer, 
+            Controller controller, Laser laser, int controller_tick_rate_ms,
+            FrameTrigger frame_trigger) {
+        this(null, analyzer, controller, laser, ImagingMode.IMAGE_SOURCE,
+                controller_tick_rate_ms, null, true, 
+                AnalysisWorker.DEFAULT_FRAME_QUEUE_CAPACITY,
+                AnalysisWorker.DEFAULT_OVERFLOW_POLICY, frame_trigger, image_source);
+    }
+    
+    private Coordinator(Studio studio, Analyzer analyzer, Controller controller, 
+            Laser laser, ImagingMode imaging_mode, int controller_tick_rate_ms,
+            final Roi ROI, boolean headless, int frame_queue_capacity,
+            FrameQueue.OverflowPolicy overflow_policy, FrameTrigger frame_trigger,
+            ImageSource image_source) {
         // log the start time
         this.thread_start_time_ms = System.currentTimeMillis();
         // sanitize input
-        if (studio == null)
+        if (studio == null && image_source == null)
             throw new NullPointerException("You need to set a studio!");
+        if (image_source == null && imaging_mode == ImagingMode.IMAGE_SOURCE)
+            throw new NullPointerException("You need to set an image source!");
         if (analyzer == null)
             throw new NullPointerException("You need to set an analyzer!");
         if (controller == null)
             throw new NullPointerException("You need to set a controller!");
         if (laser == null)
             throw new NullPointerException("You need to set a laser!");
+        // in the frame-synchronous mode, the laser is set on the analysis
+        // thread, which must not wait for the device
+        if (frame_trigger != null && !isAsync(laser)) {
+            AlicaLogger.getInstance().logMessage("Laser " + laser.getDeviceName() + 
+                    " is set asynchronously in the frame-synchronous mode.");
+            laser = new AsyncLaser(laser);
+        }
         this.studio = studio;
         this.controller = controller;
         this.analyzer = analyzer;
         this.laser = laser;
         
-        studio.logs().logDebugMessage("Alica Coordinator started with imaging mode " + imaging_mode.toString());
+        AlicaLogger.getInstance().logDebugMessage("Alica Coordinator started with imaging mode " + imaging_mode.toString());
         // analysis worker is a thread which runs continuously
-        this.analysis_worker = new AnalysisWorker(this, studio, analyzer, imaging_mode);
-        studio.events().registerForEvents(this.analysis_worker);
+        this.analysis_worker = new AnalysisWorker(this, studio, analyzer, 
+                imaging_mode, frame_queue_capacity, overflow_policy, image_source);
+        if (studio != null) {
+            studio.events().registerForEvents(this.analysis_worker);
+        }
         this.analysis_worker.setROI(ROI);
         
 
         
-        // this is a Timer which executes its internal task periodically
+        // executes its internal task periodically, or after analyzed frames
         this.control_worker = new ControlWorker(analysis_worker, controller, laser);
-        this.control_worker.scheduleExecution(1000, controller_tick_rate_ms);
+        if (frame_trigger != null) {
+            this.control_worker.synchronizeToFrames(frame_trigger);
+        } else {
+            this.control_worker.scheduleExecution(1000, controller_tick_rate_ms);
+        }
         
         if (!headless) {
             // initialize the GUI
@@ -141,22 +242,27 @@ public class Coordinator {
         if (monitor_worker != null) {
             monitor_worker.cancel();
         }
+        // waits up to 1 second for a running control tick, and keeps it from
+        // setting the laser power after it is turned off below
         control_worker.cancel();
        
-        try {
-            analysis_worker.join(1000);
-        } catch (InterruptedException ex) {
-            // exit ungracefully
-            studio.logs().logError(ex, "Analysis worker shutdown was interrupted.");
-            throw new RuntimeException("Analysis worker shutdown was interrupted.");
-        }
-        // if after 3 seconds the thread hasn't died, interrupt it
-        if (analysis_worker.isAlive()) {
-            studio.logs().logError("Analysis worker is still alive after 3 seconds, interrupting.");
+        // the analysis worker itself stops when its image source is exhausted
+        if (Thread.currentThread() != analysis_worker) {
             try {
-                analysis_worker.interrupt();
-            } catch (RuntimeException ex) {
-                studio.logs().logError(ex);
+                analysis_worker.join(1000);
+            } catch (InterruptedException ex) {
+                // exit ungracefully
+                AlicaLogger.getInstance().logError(ex, "Analysis worker shutdown was interrupted.");
+                throw new RuntimeException("Analysis worker shutdown was interrupted.");
+            }
+            // if after 3 seconds the thread hasn't died, interrupt it
+            if (analysis_worker.isAlive()) {
+                AlicaLogger.getInstance().logError(null, "Analysis worker is still alive after 3 seconds, interrupting.");
+                try {
+                    analysis_worker.interrupt();
+                } catch (RuntimeException ex) {
+                    AlicaLogger.getInstance().logError(ex, "Analysis worker could not be interrupted.");
+                }
             }
         }
         
@@ -166,6 +272,26 @@ public class Coordinator {
         } catch (Exception ex) {
             Logger.getLogger(Coordinator.class.getName()).log(Level.SEVERE, null, ex);
         }
+        Laser inner_laser = laser;
+        while (inner_laser instanceof FilteredLaser || inner_laser instanceof AsyncLaser) {
+            if (inner_laser instanceof FilteredLaser) {
+                FilteredLaser filtered_laser = (FilteredLaser) inner_laser;
+                AlicaLogger.getInstance().logMessage("Laser filter: " + filtered_laser + ".");
+                inner_laser = filtered_laser.getWrappedLaser();
+                continue;
+            }
+            // wait until the laser is really turned off
+            AsyncLaser async_laser = (AsyncLaser) inner_laser;
+            try {
+                if (!async_laser.close(1000)) {
+                    AlicaLogger.getInstance().logError(null, "Laser actuator is still busy after 1 second.");
+                }
+            } catch (InterruptedException ex) {
+                AlicaLogger.getInstance().logError(ex, "Laser actuator shutdown was interrupted.");
+            }
+            AlicaLogger.getInstance().logMessage("Laser settings: " + async_laser + ".");
+            inner_laser = async_laser.getWrappedLaser();
+        }
         
         if (gui!=null) {
             javax.swing.SwingUtilities.invokeLater(new Runnable() {
@@ -190,6 +316,26 @@ public class Coordinator {
         return !stop_flag;
     }
     
+    /**
+     * Waits until the analysis has finished, for example because the image
+     * source was exhausted.
+     * @param timeout_ms maximum time to wait
+     * @return true if the analysis has finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout_ms) throws InterruptedException {
+        analysis_worker.join(timeout_ms);
+        return !analysis_worker.isAlive();
+    }
+    
+    /**
+     * 
+     * @return total number of images processed by the analyzer
+     */
+    public long getAnalyzedFrameCount() {
+        return analysis_worker.getAnalyzedFrameCount();
+    }
+    
     /**
      * Clear windows opened by analyzers and controllers.
      */
@@ -229,6 +375,8 @@ public class Coordinator {
      * @return true if ROI has been set, false if no ROI is set
      */
     public boolean setCurrentROI() {
+        if (studio == null)
+            return false;
         Roi roi = studio.displays().getCurrentWindow().getImagePlus().getRoi();
         analysis_worker.setROI(roi);
         if (roi != null) {
@@ -245,6 +393,19 @@ public class Coordinator {
     public final long getTimeMillis() {
         return System.currentTimeMillis() - thread_start_time_ms;
     }
+    
+    /**
+     *
+     * @param laser laser, possibly wrapped by filters
+     * @return true if the power settings of the laser are applied by an
+     *  AsyncLaser
+     */
+    private static boolean isAsync(Laser laser) {
+        while (laser instanceof FilteredLaser) {
+            laser = ((FilteredLaser) laser).getWrappedLaser();
+        }
+        return laser instanceof AsyncLaser;
+    }
 }
 
 
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer which passes frame references from an image
+ * source (producer) to the AnalysisWorker (consumer).
+ *
+ * The queue is meant for a single producer and a single consumer. The read
+ * index is advanced by compare-and-set, so that the producer can discard the
+ * oldest frame on overflow without taking a lock. Counters of enqueued,
+ * dropped and dequeued frames are kept for monitoring.
+ *
+ * @author Marcel Stefko
+ * @param <E> type of the frame reference
+ */
+public class FrameQueue<E> {
+    /**
+     * Behaviour of the queue when a frame is offered and the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest frame in the queue to make space for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the newly offered frame.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Block the producer until the consumer makes space.
+         */
+        BLOCK
+    }
+
+    // number of busy-wait iterations before a waiting thread is parked
+    private static final int SPIN_TRIES = 100;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final OverflowPolicy overflow_policy;
+
+    // index of the next element to be read
+    private final AtomicLong head = new AtomicLong(0);
+    // index of the next element to be written
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private final AtomicLong enqueued_count = new AtomicLong(0);
+    private final AtomicLong dropped_count = new AtomicLong(0);
+    private final AtomicLong dequeued_count = new AtomicLong(0);
+
+    // A waiting thread publishes itself here before it checks the queue
+    // once more and parks, while the other side updates the queue before
+    // it reads this field. Since both are volatile, either the waiting
+    // thread sees the update or it is unparked, so no wakeup is missed.
+    private volatile Thread waiting_consumer = null;
+    private volatile Thread waiting_producer = null;
+
+    /**
+     * Initialize an empty queue.
+     * @param capacity maximal number of frames held in the queue
+     * @param overflow_policy what to do when a frame is offered to a full queue
+     */
+    public FrameQueue(int capacity, OverflowPolicy overflow_policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Frame queue capacity must be at least 1!");
+        if (overflow_policy == null)
+            throw new NullPointerException("You need to set an overflow policy!");
+        this.capacity = capacity;
+        this.overflow_policy = overflow_policy;
+        this.buffer = new AtomicReferenceArray<E>(capacity);
+    }
+
+    /**
+     * Offer a new frame to the queue. Called by the producer.
+     * @param element frame reference, must not be null
+     * @return true if the frame was enqueued, false if it was dropped
+     * @throws InterruptedException if interrupted while blocking on a full queue
+     */
+    public boolean offer(E element) throws InterruptedException {
+        if (element == null)
+            throw new NullPointerException("Frame queue does not accept null elements.");
+        final long t = tail.get();
+        int spins = 0;
+        while (true) {
+            final long h = head.get();
+            if (t - h < capacity) {
+                break;
+            }
+            // queue is full
+            if (overflow_policy == OverflowPolicy.DROP_NEWEST) {
+                dropped_count.incrementAndGet();
+                return false;
+            } else if (overflow_policy == OverflowPolicy.DROP_OLDEST) {
+                // consumer may be reading this slot concurrently, whoever
+                // advances the head first owns it
+                if (head.compareAndSet(h, h + 1)) {
+                    dropped_count.incrementAndGet();
+                }
+            } else {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (spins < SPIN_TRIES) {
+                    spins++;
+                    continue;
+                }
+                waiting_producer = Thread.currentThread();
+                if (t - head.get() >= capacity)
+                    LockSupport.park(this);
+                waiting_producer = null;
+            }
+        }
+        buffer.set(slot(t), element);
+        tail.set(t + 1);
+        enqueued_count.incrementAndGet();
+        Thread consumer = waiting_consumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    /**
+     * Retrieve the oldest frame without waiting. Called by the consumer.
+     * @return oldest frame, or null if the queue is empty
+     */
+    public E poll() {
+        while (true) {
+            final long h = head.get();
+            if (h >= tail.get()) {
+                return null;
+            }
+            final E element = buffer.get(slot(h));
+            if (head.compareAndSet(h, h + 1)) {
+                dequeued_count.incrementAndGet();
+                Thread producer = waiting_producer;
+                if (producer != null)
+                    LockSupport.unpark(producer);
+                return element;
+            }
+            // the producer dropped this frame in the meantime, try again
+        }
+    }
+
+    /**
+     * Retrieve the oldest frame, waiting for one to arrive if necessary.
+     * The consumer spins briefly and then parks until the producer wakes it.
+     * @param timeout maximal time to wait
+     * @param unit unit of timeout
+     * @return oldest frame, or null if none arrived within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int spins = 0;
+        E element;
+        while ((element = poll()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            if (spins < SPIN_TRIES) {
+                spins++;
+                continue;
+            }
+            waiting_consumer = Thread.currentThread();
+            if (isEmpty())
+                LockSupport.parkNanos(this, remaining);
+            waiting_consumer = null;
+        }
+        return element;
+    }
+
+    /**
+     * Discard all frames currently in the queue. Discarded frames are not
+     * counted as dropped.
+     */
+    public void clear() {
+        while (true) {
+            final long h = head.get();
+            final long t = tail.get();
+            if (h >= t) {
+                return;
+            }
+            // stale references are overwritten by the producer later on
+            if (head.compareAndSet(h, t)) {
+                Thread producer = waiting_producer;
+                if (producer != null)
+                    LockSupport.unpark(producer);
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return true if there are no frames waiting in the queue
+     */
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     *
+     * @return number of frames currently waiting in the queue
+     */
+    public int size() {
+        final long h = head.get();
+        final long t = tail.get();
+        return (int) Math.max(0, t - h);
+    }
+
+    /**
+     *
+     * @return maximal number of frames held in the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *
+     * @return policy applied when a frame is offered to a full queue
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflow_policy;
+    }
+
+    /**
+     *
+     * @return total number of frames accepted into the queue
+     */
+    public long getEnqueuedCount() {
+        return enqueued_count.get();
+    }
+
+    /**
+     *
+     * @return total number of frames discarded due to overflow
+     */
+    public long getDroppedCount() {
+        return dropped_count.get();
+    }
+
+    /**
+     *
+     * @return total number of frames handed over to the consumer
+     */
+    public long getDequeuedCount() {
+        return dequeued_count.get();
+    }
+
+    private int slot(long index) {
+        return (int) (index % capacity);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+/**
+ * Decides when the controller is run in the frame-synchronous control mode.
+ * A control tick is triggered after a given number of analyzed frames, or
+ * earlier, once the intermittent outputs of the analyzer summed over the
+ * frames since the last tick reach a target (for example a number of
+ * detected spots). A tick is never triggered without an analyzed frame, so
+ * the analyzer's batch output is never empty.
+ * @author Marcel Stefko
+ */
+public class FrameTrigger {
+    private final int frames_per_tick;
+    private final double statistics_target;
+    
+    private int frame_count = 0;
+    private double statistics = 0.0;
+    
+    /**
+     * Trigger a tick after every given number of frames.
+     * @param frames_per_tick number of analyzed frames per control tick
+     */
+    public FrameTrigger(int frames_per_tick) {
+        this(frames_per_tick, 0.0);
+    }
+    
+    /**
+     * Trigger a tick after a number of frames, or once enough statistics
+     * were accumulated.
+     * @param frames_per_tick maximum number of analyzed frames per control tick
+     * @param statistics_target sum of intermittent outputs which triggers a
+     *  tick before frames_per_tick is reached, 0 to disable
+     */
+    public FrameTrigger(int frames_per_tick, double statistics_target) {
+        if (frames_per_tick < 1)
+            throw new IllegalArgumentException("At least one frame per tick is required!");
+        if (statistics_target < 0.0 || Double.isNaN(statistics_target))
+            throw new IllegalArgumentException("Statistics target must be non-negative!");
+        this.frames_per_tick = frames_per_tick;
+        this.statistics_target = statistics_target;
+    }
+    
+    /**
+     * Accounts for a newly analyzed frame.
+     * @param intermittent_output intermittent output of the analyzer for
+     *  this frame, NaN values are not accumulated
+     * @return true if a control tick should be run now
+     */
+    public synchronized boolean frameAnalyzed(double intermittent_output) {
+        frame_count++;
+        if (!Double.isNaN(intermittent_output))
+            statistics += intermittent_output;
+        if (frame_count >= frames_per_tick || 
+                (statistics_target > 0.0 && statistics >= statistics_target)) {
+            frame_count = 0;
+            statistics = 0.0;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Forgets the frames since the last tick.
+     */
+    public synchronized void reset() {
+        frame_count = 0;
+        statistics = 0.0;
+    }
+    
+    /**
+     *
+     * @return maximum number of analyzed frames per control tick
+     */
+    public int getFramesPerTick() {
+        return frames_per_tick;
+    }
+    
+    /**
+     *
+     * @return sum of intermittent outputs which triggers a tick, 0 if disabled
+     */
+    public double getStatisticsTarget() {
+        return statistics_target;
+    }
+}
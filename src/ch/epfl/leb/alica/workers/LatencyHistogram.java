@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with power-of-two buckets in microseconds: bucket
+ * i counts durations from 2^i to 2^(i+1) us, bucket 0 also those below
+ * 1 us. Recording does not allocate, and the histogram can be read from
+ * other threads while it is recorded.
+ * @author Marcel Stefko
+ */
+public class LatencyHistogram {
+    /**
+     * Number of buckets, the last one also counts all longer durations.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum_ns = new AtomicLong(0);
+    private final AtomicLong max_ns = new AtomicLong(0);
+
+    /**
+     * Adds a duration to the histogram.
+     * @param duration_ns duration in nanoseconds, negative values count as 0
+     */
+    public void record(long duration_ns) {
+        if (duration_ns < 0)
+            duration_ns = 0;
+        buckets.incrementAndGet(bucketOf(duration_ns));
+        count.incrementAndGet();
+        sum_ns.addAndGet(duration_ns);
+        long max = max_ns.get();
+        while (duration_ns > max && !max_ns.compareAndSet(max, duration_ns)) {
+            max = max_ns.get();
+        }
+    }
+
+    /**
+     *
+     * @param duration_ns duration in nanoseconds
+     * @return index of the bucket which counts the duration
+     */
+    static int bucketOf(long duration_ns) {
+        long us = duration_ns / 1000;
+        if (us <= 0)
+            return 0;
+        return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(us));
+    }
+
+    /**
+     *
+     * @param bucket index of the bucket
+     * @return longest duration counted by the bucket, in nanoseconds
+     */
+    public static long getBucketUpperBoundNs(int bucket) {
+        return (1L << (bucket + 1)) * 1000;
+    }
+
+    /**
+     *
+     * @param bucket index of the bucket
+     * @return number of durations in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     *
+     * @return number of recorded durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     *
+     * @return longest recorded duration in nanoseconds, 0 if none
+     */
+    public long getMaxNs() {
+        return max_ns.get();
+    }
+
+    /**
+     *
+     * @return mean of the recorded durations in nanoseconds, NaN if none
+     */
+    public double getMeanNs() {
+        long n = count.get();
+        return (n == 0) ? Double.NaN : (double) sum_ns.get() / n;
+    }
+
+    /**
+     * Estimates a percentile by the upper bound of the bucket which contains
+     * it, limited by the longest duration.
+     * @param fraction fraction of durations below the percentile, from 0 to 1
+     * @return percentile in nanoseconds, 0 if no durations were recorded
+     */
+    public long getPercentileNs(double fraction) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBoundNs(i), max_ns.get());
+            }
+        }
+        return max_ns.get();
+    }
+
+    /**
+     * Removes all recorded durations.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum_ns.set(0);
+        max_ns.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, mean=%.0fus, p50<=%dus, p99<=%dus, max=%dus",
+                getCount(), getMeanNs() / 1000, getPercentileNs(0.5) / 1000,
+                getPercentileNs(0.99) / 1000, getMaxNs() / 1000);
+    }
+}
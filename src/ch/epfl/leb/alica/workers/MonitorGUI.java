@@ -39,8 +39,11 @@ public class MonitorGUI extends javax.swing.JFrame {
     private double plot_max = 0.0;
     private final Coordinator coordinator;
     private final GraphPanel realtime_graph;
+    private final GraphPanel laser_power_graph;
     private final AnalyzerStatusPanel analyzer_status;
     private final ControllerStatusPanel controller_status;
+    // true while the window is shown and not minimized
+    private volatile boolean is_displayed = false;
     
     /**
      * Creates new form MonitorGUI
@@ -76,13 +79,18 @@ public class MonitorGUI extends javax.swing.JFrame {
             l_laser.setForeground(Color.red);
         }
         
-        // initialize the GraphPanel
+        // initialize the GraphPanels, analyzer output above laser power
         realtime_graph = new GraphPanel();
-        realtime_graph.setBounds(5,5,415,170);
+        realtime_graph.setBounds(5,5,415,115);
         realtime_graph.revalidate();
+        laser_power_graph = new GraphPanel();
+        laser_power_graph.setBounds(5,122,415,55);
+        laser_power_graph.setTraceStyle(false, Color.blue);
+        laser_power_graph.revalidate();
         
-        // place the GraphPanel into its container
+        // place the GraphPanels into their container
         p_realtime_plot.add(realtime_graph);
+        p_realtime_plot.add(laser_power_graph);
         
         // place analyzer and controller status panels
         analyzer_status = coordinator.getAnalyzerStatusPanel();
@@ -104,7 +112,36 @@ public class MonitorGUI extends javax.swing.JFrame {
         l_setpoint.setText(String.format("%5.2f", start_setpoint));
         e_new_setpoint.setText(l_setpoint.getText());
         
-        
+        // track whether updates of the GUI would be visible
+        addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentShown(java.awt.event.ComponentEvent evt) {
+                updateDisplayedState();
+            }
+            @Override
+            public void componentHidden(java.awt.event.ComponentEvent evt) {
+                updateDisplayedState();
+            }
+        });
+        addWindowStateListener(new java.awt.event.WindowStateListener() {
+            @Override
+            public void windowStateChanged(java.awt.event.WindowEvent evt) {
+                updateDisplayedState();
+            }
+        });
+    }
+    
+    private void updateDisplayedState() {
+        is_displayed = isShowing() && 
+                (getExtendedState() & java.awt.Frame.ICONIFIED) == 0;
+    }
+    
+    /**
+     * Can be called from any thread.
+     * @return true if the window is shown and not minimized
+     */
+    public boolean isDisplayed() {
+        return is_displayed;
     }
     
     /**
@@ -180,17 +217,45 @@ public class MonitorGUI extends javax.swing.JFrame {
      * @param data data to be plotted
      */
     public void updatePlot(GraphData data) {
+        updatePlot(data, data.getBounds().yMax);
+    }
+    
+    /**
+     * Update the plot with new data, whose points are sorted by x
+     * @param data data to be plotted
+     * @param y_max largest value of the data
+     */
+    public void updatePlot(GraphData data, double y_max) {
         // set data to the graph
         realtime_graph.setData(data);
         
         // rescale y-bounds from 0 to 10% above historical max value
-        GraphData.Bounds bounds = data.getBounds();
-        plot_max = (1.1*bounds.yMax > plot_max) ? 1.1*bounds.yMax : plot_max;
-        realtime_graph.setBounds(bounds.xMin, bounds.xMax, 0.0, plot_max);
+        plot_max = (1.1*y_max > plot_max) ? 1.1*y_max : plot_max;
+        int size = data.getSize();
+        if (size > 0) {
+            realtime_graph.setBounds(data.getPoint(0).x, 
+                    data.getPoint(size - 1).x, 0.0, plot_max);
+        }
         
         realtime_graph.repaint();
     }
     
+    /**
+     * Update the plot of the laser power with new data, whose points are
+     * sorted by x. The y-axis spans the laser power range.
+     * @param data laser power set by the controller
+     */
+    public void updateLaserPowerPlot(GraphData data) {
+        laser_power_graph.setData(data);
+        int size = data.getSize();
+        if (size > 0) {
+            laser_power_graph.setBounds(data.getPoint(0).x, 
+                    data.getPoint(size - 1).x, 0.0, 
+                    (laser_power_max > 0.0) ? laser_power_max : 1.0);
+        }
+        laser_power_graph.repaint();
+    }
+    
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -19,8 +19,11 @@
  */
 package ch.epfl.leb.alica.workers;
 
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.micromanager.internal.graph.GraphData;
 
 /**
@@ -52,6 +55,32 @@ public class MonitorWorker extends Timer {
         this.scheduleAtFixedRate(monitor_task, delay_ms, period_ms);
     }
     
+    /**
+     *
+     * @return history of the analyzer's intermittent output, one value per
+     *  monitor tick
+     */
+    public TimeSeries getAnalyzerOutputHistory() {
+        return monitor_task.getAnalyzerOutputHistory();
+    }
+    
+    /**
+     *
+     * @return history of the controller output, which is the laser power
+     *  set by the control loop, one value per monitor tick
+     */
+    public TimeSeries getControllerOutputHistory() {
+        return monitor_task.getControllerOutputHistory();
+    }
+    
+    /**
+     *
+     * @return history of the controller setpoint, one value per monitor tick
+     */
+    public TimeSeries getSetpointHistory() {
+        return monitor_task.getSetpointHistory();
+    }
+    
     @Override
     public void cancel() {
         super.cancel();
@@ -64,15 +93,36 @@ public class MonitorWorker extends Timer {
 }
 
 /**
- * This TimerTask updates GUI with recent information from other workers
+ * This TimerTask updates GUI with recent information from other workers.
+ * Only the widgets whose values changed are marked dirty, and at most one
+ * update of the GUI waits in the event queue: new values are picked up by
+ * the waiting update instead of posting another one. Nothing is posted
+ * while the GUI is hidden or minimized.
  * @author Marcel Stefko
  */
 class MonitorTask extends TimerTask {
+    // dirty flags of the widgets
+    private static final int DIRTY_LASER_POWER = 1;
+    private static final int DIRTY_FPS = 2;
+    private static final int DIRTY_ANALYSIS_TIME = 4;
+    private static final int DIRTY_PLOT = 8;
+    
     private final AnalysisWorker analysis_worker;
     private final ControlWorker control_worker;
     private final MonitorGUI gui;
     
+    private final AtomicInteger dirty_flags = new AtomicInteger(0);
+    private final AtomicBoolean update_pending = new AtomicBoolean(false);
+    private final Runnable gui_update;
+    // latest values, read by the GUI update
+    private volatile double laser_power = Double.NaN;
+    private volatile int fps = -1;
+    private volatile int last_analysis_time = -1;
+    
     private final Grapher grapher;
+    private final Grapher controller_output_grapher;
+    // at 10 ticks per second, 12 levels of 512 buckets cover years
+    private final TimeSeries setpoint_history = new TimeSeries(512, 4, 12);
     
     /**
      * Initialize new task with relevant members
@@ -85,51 +135,126 @@ class MonitorTask extends TimerTask {
         this.gui = gui;
         this.analysis_worker = analysis_worker;
         this.control_worker = control_worker;
-        this.grapher = new Grapher(100);
+        this.grapher = new Grapher(400);
+        this.controller_output_grapher = new Grapher(400);
+        this.gui_update = new Runnable() {
+            @Override
+            public void run() {
+                updateGUI();
+            }
+        };
     }
     
     @Override
     public void run() {
         // gather relevant data from workers
-        final double laser_power = control_worker.getLastControllerOutput();
-        final double analyzer_output = analysis_worker.queryAnalyzerForIntermittentOutput();
-        final int FPS = analysis_worker.getCurrentFPS();
-        final int last_analysis_time = (int) analysis_worker.getLastAnalysisTime();
+        double new_laser_power = control_worker.getLastControllerOutput();
+        double analyzer_output = analysis_worker.queryAnalyzerForIntermittentOutput();
+        int new_fps = analysis_worker.getCurrentFPS();
+        int new_analysis_time = (int) analysis_worker.getLastAnalysisTime();
         
-        // update the grapher
+        // update the graphers and histories
         grapher.addDataPoint(analyzer_output);
+        controller_output_grapher.addDataPoint(new_laser_power);
+        setpoint_history.add(control_worker.getControllerSetpoint());
         
-        // display data in MonitorGUI
-        javax.swing.SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                gui.updateLaserPowerDisplay(laser_power);
-                gui.updateFPS(FPS);
-                gui.updateLastAnalysisDuration(last_analysis_time);
-                gui.updatePlot(grapher.getGraphData());
-            }
-        });
+        // mark the widgets whose values changed
+        int dirty = DIRTY_PLOT;
+        if (Double.compare(new_laser_power, laser_power) != 0) {
+            laser_power = new_laser_power;
+            dirty |= DIRTY_LASER_POWER;
+        }
+        if (new_fps != fps) {
+            fps = new_fps;
+            dirty |= DIRTY_FPS;
+        }
+        if (new_analysis_time != last_analysis_time) {
+            last_analysis_time = new_analysis_time;
+            dirty |= DIRTY_ANALYSIS_TIME;
+        }
+        int flags;
+        do {
+            flags = dirty_flags.get();
+        } while (!dirty_flags.compareAndSet(flags, flags | dirty));
+        
+        // the flags are kept until the GUI is displayed again
+        if (!gui.isDisplayed())
+            return;
+        // display data in MonitorGUI, unless an update is already waiting
+        if (update_pending.compareAndSet(false, true)) {
+            javax.swing.SwingUtilities.invokeLater(gui_update);
+        }
+    }
+    
+    /**
+     * Updates the dirty widgets, called on the event dispatch thread.
+     */
+    private void updateGUI() {
+        // values which change from now on need another update
+        update_pending.set(false);
+        int dirty = dirty_flags.getAndSet(0);
+        if ((dirty & DIRTY_LASER_POWER) != 0)
+            gui.updateLaserPowerDisplay(laser_power);
+        if ((dirty & DIRTY_FPS) != 0)
+            gui.updateFPS(fps);
+        if ((dirty & DIRTY_ANALYSIS_TIME) != 0)
+            gui.updateLastAnalysisDuration(last_analysis_time);
+        if ((dirty & DIRTY_PLOT) != 0) {
+            gui.updatePlot(grapher.getGraphData(), grapher.getMaxValue());
+            gui.updateLaserPowerPlot(controller_output_grapher.getGraphData());
+        }
+    }
+    
+    /**
+     *
+     * @return history of the analyzer's intermittent output
+     */
+    public TimeSeries getAnalyzerOutputHistory() {
+        return grapher.getTimeSeries();
+    }
+    
+    /**
+     *
+     * @return history of the controller output
+     */
+    public TimeSeries getControllerOutputHistory() {
+        return controller_output_grapher.getTimeSeries();
+    }
+    
+    /**
+     *
+     * @return history of the controller setpoint
+     */
+    public TimeSeries getSetpointHistory() {
+        return setpoint_history;
     }
 }
 
 /** 
- * Wrapped around GraphData for easier processing
+ * Wrapped around GraphData for easier processing. The values are kept in a
+ * TimeSeries, and the whole history is plotted with a bounded number of
+ * points.
  * @author Marcel Stefko
  */
 class Grapher {
     private final GraphData graph_data;
-    private int n_max;
-    private int n_cur;
-    private double[] datapoints;    
+    private final TimeSeries series;
+    private final int n_max;
+    private final double[] x;
+    private final double[] y;
+    private double y_max = 0.0;
     
     /**
-     * Initialize a grapher with set length of point plotting
-     * @param n_points no. of points to be plotted
+     * Initialize a grapher with set number of plotted points
+     * @param n_points max. no. of points to be plotted
      */
     public Grapher(int n_points) {
         graph_data = new GraphData();
         this.n_max = n_points;
-        this.n_cur = 0;
-        datapoints = new double[n_points];
+        // at 10 points per second, 12 levels cover years
+        this.series = new TimeSeries(n_points, 4, 12);
+        x = new double[n_points];
+        y = new double[n_points];
     }
     
     /**
@@ -137,24 +262,38 @@ class Grapher {
      * @return GraphData
      */
     public GraphData getGraphData() {
+        int n_cur = series.getPoints(n_max, x, y);
+        y_max = 0.0;
+        for (int i = 0; i < n_cur; i++) {
+            if (y[i] > y_max)
+                y_max = y[i];
+        }
+        graph_data.setData(Arrays.copyOf(x, n_cur), Arrays.copyOf(y, n_cur));
         return graph_data;
     }
     
+    /**
+     * 
+     * @return largest value of the GraphData returned last, at least 0
+     */
+    public double getMaxValue() {
+        return y_max;
+    }
+    
+    /**
+     * 
+     * @return history of the added points
+     */
+    public TimeSeries getTimeSeries() {
+        return series;
+    }
+    
     /**
      * Add the next point to the grapher
      * @param value value to be added
      */
     public void addDataPoint(double value) {
-        if (n_cur < n_max) {
-            datapoints[n_cur] = value;
-            n_cur++;
-        } else {//shift everthing over one
-            for(int ii = 0;ii<n_max-1;ii++){
-                datapoints[ii]=datapoints[ii+1];
-            }
-            datapoints[n_max-1] = value;
-        }
-        graph_data.setData(datapoints);
+        series.add(value);
     }
     
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+/**
+ * History of values with a constant memory footprint, which can be drawn
+ * with a bounded number of points regardless of its length.
+ * 
+ * The history is kept at several resolutions. Level 0 holds the latest
+ * values themselves, and each following level holds (min, max) buckets of
+ * factor times more values than the previous one. Each level is a ring of
+ * the same capacity, so coarser levels reach further back. Appending a
+ * value updates the open bucket of every level, without shifting any
+ * data. For drawing, the finest level which covers the whole history with
+ * at most the requested number of points is used; since buckets keep their
+ * minimum and maximum, short spikes stay visible after decimation.
+ * @author Marcel Stefko
+ */
+public class TimeSeries {
+    private final int capacity;
+    private final int levels;
+    private final long[] spans;
+    // ring of buckets of each level, level 0 only uses mins
+    private final double[][] mins;
+    private final double[][] maxs;
+    // number of completed buckets of each level
+    private final long[] completed;
+    // open bucket of each level, NaN until a non-NaN value is added
+    private final double[] open_mins;
+    private final double[] open_maxs;
+    private long count = 0;
+    
+    /**
+     * Creates an empty history.
+     * @param capacity number of buckets kept at each level
+     * @param factor number of buckets of a level merged into one bucket of
+     *  the next level
+     * @param levels number of levels, level i covers capacity*factor^i values
+     */
+    public TimeSeries(int capacity, int factor, int levels) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive!");
+        if (factor < 2)
+            throw new IllegalArgumentException("Decimation factor must be at least 2!");
+        if (levels < 1)
+            throw new IllegalArgumentException("At least one level is required!");
+        this.capacity = capacity;
+        this.levels = levels;
+        spans = new long[levels];
+        mins = new double[levels][capacity];
+        maxs = new double[levels][];
+        completed = new long[levels];
+        open_mins = new double[levels];
+        open_maxs = new double[levels];
+        long span = 1;
+        for (int level = 0; level < levels; level++) {
+            spans[level] = span;
+            if (level > 0)
+                maxs[level] = new double[capacity];
+            open_mins[level] = Double.NaN;
+            open_maxs[level] = Double.NaN;
+            if (span > Long.MAX_VALUE / factor)
+                throw new IllegalArgumentException("Too many levels!");
+            span *= factor;
+        }
+    }
+    
+    /**
+     * Appends a value, in time independent of the length of the history.
+     * @param value value to be added, NaN values leave gaps
+     */
+    public synchronized void add(double value) {
+        count++;
+        for (int level = 0; level < levels; level++) {
+            if (!Double.isNaN(value)) {
+                if (Double.isNaN(open_mins[level])) {
+                    open_mins[level] = value;
+                    open_maxs[level] = value;
+                } else if (value < open_mins[level]) {
+                    open_mins[level] = value;
+                } else if (value > open_maxs[level]) {
+                    open_maxs[level] = value;
+                }
+            }
+            if (count % spans[level] == 0) {
+                // close the bucket
+                int index = (int) (completed[level] % capacity);
+                mins[level][index] = open_mins[level];
+                if (level > 0)
+                    maxs[level][index] = open_maxs[level];
+                completed[level]++;
+                open_mins[level] = Double.NaN;
+                open_maxs[level] = Double.NaN;
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return number of values added since creation or the last clear()
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+    
+    /**
+     * Removes all values.
+     */
+    public synchronized void clear() {
+        count = 0;
+        for (int level = 0; level < levels; level++) {
+            completed[level] = 0;
+            open_mins[level] = Double.NaN;
+            open_maxs[level] = Double.NaN;
+        }
+    }
+    
+    /**
+     * Selects the level used by getPoints().
+     * @param max_points maximum number of points
+     * @return finest level which covers the whole history in max_points, or
+     *  the coarsest level if none does
+     */
+    synchronized int selectLevel(int max_points) {
+        for (int level = 0; level < levels; level++) {
+            if (completed[level] > capacity)
+                continue;
+            long buckets = completed[level] + ((count % spans[level] != 0) ? 1 : 0);
+            if (buckets * ((level == 0) ? 1 : 2) <= max_points)
+                return level;
+        }
+        return levels - 1;
+    }
+    
+    /**
+     * Writes the points to be drawn, oldest first. A value has the x
+     * coordinate of its position in the history, starting at 0. A bucket
+     * is drawn as its minimum followed by its maximum, at the middle of the
+     * values it covers. Empty buckets are left out. If the history is too
+     * long for the coarsest level, only its most recent part is drawn.
+     * @param max_points maximum number of points, at least 2
+     * @param x receives the x coordinates, at least max_points long
+     * @param y receives the values, at least max_points long
+     * @return number of points written
+     */
+    public synchronized int getPoints(int max_points, double[] x, double[] y) {
+        if (max_points < 2)
+            throw new IllegalArgumentException("At least two points are required!");
+        int level = selectLevel(max_points);
+        int points_per_bucket = (level == 0) ? 1 : 2;
+        long span = spans[level];
+        boolean has_open = (count % span != 0);
+        // buckets which fit, including the open one
+        long available = Math.min(completed[level], capacity) + (has_open ? 1 : 0);
+        long shown = Math.min(available, max_points / points_per_bucket);
+        long first = completed[level] + (has_open ? 1 : 0) - shown;
+        int n = 0;
+        for (long bucket = first; bucket < first + shown; bucket++) {
+            double min, max;
+            if (bucket == completed[level]) {
+                min = open_mins[level];
+                max = open_maxs[level];
+            } else {
+                int index = (int) (bucket % capacity);
+                min = mins[level][index];
+                max = (level == 0) ? min : maxs[level][index];
+            }
+            if (Double.isNaN(min))
+                continue;
+            long start = bucket * span;
+            long end = Math.min(start + span, count);
+            double center = 0.5 * (start + end - 1);
+            x[n] = center;
+            y[n] = min;
+            n++;
+            if (points_per_bucket == 2) {
+                x[n] = center;
+                y[n] = max;
+                n++;
+            }
+        }
+        return n;
+    }
+}
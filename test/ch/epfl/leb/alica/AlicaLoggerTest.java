@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica;
+
+import ch.epfl.leb.alica.logging.ColumnarLog;
+import ch.epfl.leb.alica.logging.CsvLogExporter;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class AlicaLoggerTest {
+    private static final String CHANNEL = "alica_logger_test_value";
+    private AlicaLogger logger;
+    
+    /**
+     * Counts the values of the test channel in a log file.
+     */
+    private static class Counter implements ColumnarLog.LogVisitor {
+        int channel = -1;
+        long count = 0;
+
+        @Override
+        public void visitChannel(int channel, String name, boolean is_text) {
+            if (CHANNEL.equals(name))
+                this.channel = channel;
+        }
+
+        @Override
+        public void visitString(int id, String value) {
+        }
+
+        @Override
+        public void visitChunk(int channel, int[] frames, double[] values, int count) {
+            if (channel == this.channel)
+                this.count += count;
+        }
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        logger = AlicaLogger.getInstance();
+        // a fresh temporary log
+        logger.setLogFile(null);
+        for (int i = 1; i <= 1000; i++) {
+            logger.addToLog(i, CHANNEL, i);
+        }
+    }
+    
+    private long countValues(File file) throws IOException {
+        Counter counter = new Counter();
+        ColumnarLog.read(file, counter);
+        return counter.count;
+    }
+    
+    /**
+     * Test that the log is kept if the output file can not be created.
+     */
+    @Test
+    public void testExportToMissingDirectory() throws IOException {
+        File missing = new File(new File("alica_missing_directory"), "out.csv");
+        try {
+            logger.exportCsvAsync(missing, CsvLogExporter.Format.WIDE, false, null);
+            fail("Export to a missing directory did not fail.");
+        } catch (IOException ex) {
+            // expected
+        }
+        ColumnarLog log = logger.getColumnarLog();
+        log.flush();
+        assertEquals(1000, countValues(log.getFile()));
+    }
+    
+    /**
+     * Test that the values of a failed export are kept in a file.
+     */
+    @Test
+    public void testFailedExportKeepsValues() throws Exception {
+        File full = new File("/dev/full");
+        assumeTrue(full.exists());
+        File log_file = logger.getColumnarLog().getFile();
+        // the temporary log is renamed, so that it is not deleted on exit
+        File kept_file = AlicaLogger.nextLogFile(log_file);
+        Future<?> result = logger.exportCsvAsync(full, 
+                CsvLogExporter.Format.WIDE, false, null);
+        try {
+            result.get();
+            fail("Export to a full device did not fail.");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        assertFalse(log_file.exists());
+        try {
+            assertEquals(1000, countValues(kept_file));
+        } finally {
+            kept_file.delete();
+        }
+    }
+    
+    /**
+     * Test that values of the wrong kind are dropped, without stopping the
+     * writer thread.
+     */
+    @Test
+    public void testMixedChannel() throws Exception {
+        logger.addToLog(1, "alica_logger_test_mixed", 1.0);
+        logger.addToLog(2, "alica_logger_test_mixed", "text");
+        logger.getColumnarLog();
+        logger.addToLog(1, "alica_logger_test_text", "text");
+        logger.getColumnarLog();
+        logger.addToLog(2, "alica_logger_test_text", 2.0);
+        // drained by the writer thread
+        Thread.sleep(100);
+        for (int i = 1001; i <= 1010; i++) {
+            logger.addToLog(i, CHANNEL, i);
+        }
+        Thread.sleep(100);
+        boolean writer_alive = false;
+        for (Thread t: Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("ALICA log writer"))
+                writer_alive = true;
+        }
+        assertTrue(writer_alive);
+        ColumnarLog log = logger.getColumnarLog();
+        log.flush();
+        assertEquals(1010, countValues(log.getFile()));
+    }
+    
+    /**
+     * Test that a successful export deletes the temporary log.
+     */
+    @Test
+    public void testExport() throws Exception {
+        File log_file = logger.getColumnarLog().getFile();
+        File csv = File.createTempFile("alica_log", ".csv");
+        csv.deleteOnExit();
+        logger.exportCsvAsync(csv, CsvLogExporter.Format.SPARSE, false, null).get();
+        assertFalse(log_file.exists());
+        assertTrue(csv.length() > 0);
+    }
+}
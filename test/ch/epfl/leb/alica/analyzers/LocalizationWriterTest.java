@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers;
+
+import ch.epfl.leb.alica.Analyzer;
+import ch.epfl.leb.alica.analyzers.quickpalm.QuickPalm;
+import ch.epfl.leb.alica.analyzers.spotcounter.SpotCounter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class LocalizationWriterTest {
+
+    /**
+     * Test of reading the file while it is written, and after it is closed.
+     */
+    @Test
+    public void testReadWhileWriting() throws IOException {
+        File file = File.createTempFile("alica", ".aloc");
+        file.deleteOnExit();
+        LocalizationWriter.getIndexFile(file).deleteOnExit();
+        LocalizationWriter writer = new LocalizationWriter(file);
+
+        writer.beginFrame(1);
+        writer.add(1.5f, 2.5f, 0.0f, 100.0f);
+        writer.add(3.5f, 4.5f, -50.0f, 200.0f);
+        writer.endFrame();
+        writer.beginFrame(2);
+        writer.endFrame();
+        // frame 3 is not ended yet, so it is not visible
+        writer.beginFrame(3);
+        writer.add(5.0f, 6.0f, 0.0f, 300.0f);
+
+        LocalizationReader reader = new LocalizationReader(file);
+        assertEquals(2, reader.getFrameCount());
+        assertEquals(2, reader.getRecordCount());
+        float[] values = new float[4];
+        assertEquals(1, reader.readRecord(1, values));
+        assertArrayEquals(new float[] {3.5f, 4.5f, -50.0f, 200.0f}, values, 0.0f);
+        assertEquals(2, reader.getFrameNumber(1));
+        assertEquals(2, reader.getFrameRecordCount(0));
+        assertEquals(0, reader.getFrameRecordCount(1));
+
+        writer.endFrame();
+        reader.refresh();
+        assertEquals(3, reader.getFrameCount());
+        assertEquals(3, reader.readRecord(2, values));
+        assertEquals(300.0f, values[3], 0.0f);
+        assertEquals(1, reader.getFrameRecordCount(2));
+        reader.close();
+
+        writer.close();
+        assertEquals(LocalizationWriter.HEADER_BYTES + 3 * LocalizationWriter.RECORD_BYTES,
+                file.length());
+        reader = new LocalizationReader(file);
+        assertEquals(3, reader.getRecordCount());
+        assertEquals(2, reader.getFirstRecord(2));
+        reader.close();
+    }
+
+    /**
+     * Test that the analyzers number the frames in the file from 1.
+     */
+    @Test
+    public void testAnalyzerFrameNumbering() throws IOException {
+        int width = 32, height = 32;
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) (100 + (i * 7919) % 13);
+        for (int y = 12; y <= 20; y++) {
+            for (int x = 12; x <= 20; x++) {
+                double r2 = (x - 16) * (x - 16) + (y - 16) * (y - 16);
+                pixels[y * width + x] += (short) (2000 * Math.exp(-r2 / 2.0));
+            }
+        }
+        
+        SpotCounter spot_counter = new SpotCounter(80, 5, false, 1);
+        assertFrameNumbers(spot_counter, pixels, width, height);
+        QuickPalm quick_palm = new QuickPalm(false, 5, 4.0, 106.0);
+        assertFrameNumbers(quick_palm, pixels, width, height);
+    }
+    
+    private void assertFrameNumbers(Analyzer analyzer, short[] pixels,
+            int width, int height) throws IOException {
+        File file = File.createTempFile("alica", ".aloc");
+        file.deleteOnExit();
+        LocalizationWriter.getIndexFile(file).deleteOnExit();
+        LocalizationWriter writer = new LocalizationWriter(file);
+        try {
+            if (analyzer instanceof SpotCounter) {
+                ((SpotCounter) analyzer).setLocalizationWriter(writer);
+            } else {
+                ((QuickPalm) analyzer).setLocalizationWriter(writer);
+            }
+            analyzer.processImage(pixels, width, height, 0.1, 0);
+            analyzer.processImage(pixels, width, height, 0.1, 100);
+        } finally {
+            analyzer.dispose();
+            writer.close();
+        }
+        LocalizationReader reader = new LocalizationReader(file);
+        try {
+            assertEquals(2, reader.getFrameCount());
+            assertEquals(1, reader.getFrameNumber(0));
+            assertEquals(2, reader.getFrameNumber(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Test of appending across the boundary of mapped segments.
+     */
+    @Test
+    public void testSegmentBoundary() throws IOException {
+        File file = File.createTempFile("alica", ".aloc");
+        file.deleteOnExit();
+        LocalizationWriter.getIndexFile(file).deleteOnExit();
+        LocalizationWriter writer = new LocalizationWriter(file);
+        int n = LocalizationWriter.SEGMENT_RECORDS + 10;
+        writer.beginFrame(0);
+        for (int i = 0; i < n; i++) {
+            writer.add(i, 0.0f, 0.0f, 0.0f);
+        }
+        writer.close();
+
+        LocalizationReader reader = new LocalizationReader(file);
+        assertEquals(n, reader.getRecordCount());
+        float[] values = new float[4];
+        for (int i = LocalizationWriter.SEGMENT_RECORDS - 5; i < n; i++) {
+            reader.readRecord(i, values);
+            assertEquals(i, values[0], 0.0f);
+        }
+        reader.close();
+    }
+
+    /**
+     * Test of opening a file which is not a localization file.
+     */
+    @Test(expected = IOException.class)
+    public void testWrongMagic() throws IOException {
+        File file = File.createTempFile("alica", ".aloc");
+        file.deleteOnExit();
+        File index = LocalizationWriter.getIndexFile(file);
+        index.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(LocalizationWriter.HEADER_BYTES);
+        raf.close();
+        raf = new RandomAccessFile(index, "rw");
+        raf.setLength(LocalizationWriter.HEADER_BYTES);
+        raf.close();
+        new LocalizationReader(file);
+    }
+}
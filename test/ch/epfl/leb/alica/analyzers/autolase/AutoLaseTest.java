@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.autolase;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class AutoLaseTest {
+
+    /**
+     * Reference implementation with a column-first accumulator.
+     */
+    private static class Reference {
+        private final int[][] accumulator;
+        private final int threshold;
+
+        Reference(int width, int height, int threshold) {
+            accumulator = new int[width][height];
+            this.threshold = threshold;
+        }
+
+        int next(short[] pixels, int image_width, int x_start, int y_start) {
+            int max = 0;
+            for (int i = 0; i < accumulator.length; i++) {
+                for (int j = 0; j < accumulator[i].length; j++) {
+                    int p = pixels[(j + y_start) * image_width + i + x_start] & 0xffff;
+                    accumulator[i][j] = (p > threshold) ? accumulator[i][j] + 1 : 0;
+                    max = Math.max(max, accumulator[i][j]);
+                }
+            }
+            return max;
+        }
+    }
+
+    private void assertMatchesReference(int n_threads, Roi roi) {
+        int width = 67, height = 45, threshold = 40000;
+        Rectangle analyzed = new Rectangle(0, 0, width, height);
+        if (roi != null) {
+            analyzed = analyzed.intersection(roi.getBounds());
+        }
+        int x_start = analyzed.x;
+        int y_start = analyzed.y;
+        int analyzed_width = analyzed.width;
+        int analyzed_height = analyzed.height;
+        Random random = new Random(n_threads);
+        AutoLase autolase = new AutoLase(threshold, n_threads);
+        autolase.setROI(roi);
+        Reference reference = new Reference(analyzed_width, analyzed_height, threshold);
+        short[] pixels = new short[width * height];
+        for (int frame = 0; frame < 50; frame++) {
+            for (int i = 0; i < pixels.length; i++) {
+                // mostly bright pixels, so that long on-times occur
+                pixels[i] = (short) (random.nextInt(10) < 9 ? 50000 : 100);
+            }
+            autolase.processImage(pixels, width, height, 0.1, frame);
+            assertEquals(reference.next(pixels, width, x_start, y_start),
+                    autolase.getBatchOutput(), 0.0);
+        }
+        autolase.dispose();
+    }
+
+    /**
+     * Test of processImage method against the column-first implementation.
+     */
+    @Test
+    public void testMatchesReference() {
+        assertMatchesReference(1, null);
+        assertMatchesReference(4, null);
+    }
+
+    /**
+     * Test of processImage method with a ROI.
+     */
+    @Test
+    public void testMatchesReferenceInRoi() {
+        assertMatchesReference(1, new Roi(5, 7, 30, 20));
+        assertMatchesReference(3, new Roi(5, 7, 30, 20));
+    }
+
+    /**
+     * Test of processImage method with a ROI which extends past the image
+     * edges, and is clipped to the image.
+     */
+    @Test
+    public void testRoiPastImageEdges() {
+        assertMatchesReference(1, new Roi(50, 30, 40, 40));
+        assertMatchesReference(3, new Roi(50, 30, 40, 40));
+        assertMatchesReference(2, new Roi(-5, -3, 20, 20));
+    }
+
+    /**
+     * Test that an interrupted frame is not analyzed partially.
+     */
+    @Test
+    public void testInterrupted() {
+        // large enough that the bands are still running when the calling
+        // thread waits for them
+        int width = 2048, height = 2048;
+        short[] pixels = new short[width * height];
+        AutoLase autolase = new AutoLase(100, 2);
+        // starts the threads of the executor
+        autolase.processImage(pixels, width, height, 0.1, 0);
+        Thread.currentThread().interrupt();
+        try {
+            autolase.processImage(pixels, width, height, 0.1, 0);
+            fail("Interrupted analysis returned normally.");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof InterruptedException);
+            // the interrupt is not swallowed
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+            autolase.dispose();
+        }
+    }
+}
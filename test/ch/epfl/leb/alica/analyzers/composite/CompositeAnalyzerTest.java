@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ * 
+ * Author: Marcel Stefko
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.composite;
+
+import ch.epfl.leb.alica.Analyzer;
+import ch.epfl.leb.alica.analyzers.AnalyzerStatusPanel;
+import ch.epfl.leb.alica.analyzers.integrator.Integrator;
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class CompositeAnalyzerTest {
+    private CompositeAnalyzer composite;
+    
+    @After
+    public void tearDown() {
+        if (composite != null)
+            composite.dispose();
+    }
+    
+    /**
+     * Each analyzer receives every image, and the output of the primary
+     * analyzer is passed on.
+     */
+    @Test
+    public void testFanOut() {
+        int width = 4;
+        int height = 2;
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // left half 10, right half 30
+            pixels[i] = (short) ((i % width) < 2 ? 10 : 30);
+        }
+        
+        Integrator whole = new Integrator();
+        Integrator halves = new Integrator(Integrator.createPatchGrid(width, height, 2, 1));
+        CountingAnalyzer counter = new CountingAnalyzer(7.0);
+        composite = new CompositeAnalyzer(
+                Arrays.<Analyzer>asList(whole, halves, counter), 2);
+        
+        for (int i = 0; i < 5; i++) {
+            composite.processImage(pixels, width, height, 0.1, i);
+        }
+        assertEquals(5, counter.processed);
+        assertEquals(7.0, composite.getIntermittentOutput(), 0.0);
+        assertEquals(7.0, composite.getBatchOutput(), 0.0);
+        
+        double[] outputs = composite.getLastBatchOutputs();
+        assertEquals(3, outputs.length);
+        assertEquals(20.0, outputs[0], 1e-9);
+        assertEquals(20.0, outputs[1], 1e-9);
+        assertEquals(7.0, outputs[2], 0.0);
+        // the patch means are still available from the wrapped analyzer
+        assertArrayEquals(new double[] {10.0, 30.0}, halves.getLastBatchOutputs(), 1e-9);
+        assertEquals(3, composite.getLastProcessingTimesNs().length);
+    }
+    
+    /**
+     * Names of the vector components identify the analyzers.
+     */
+    @Test
+    public void testBatchOutputNames() {
+        composite = new CompositeAnalyzer(Arrays.<Analyzer>asList(
+                new Integrator(), new CountingAnalyzer(1.0)), 0);
+        String[] names = composite.getBatchOutputNames();
+        assertArrayEquals(new String[] {
+            "batched_output_0_Integrator", "batched_output_1_Counting"}, names);
+        assertEquals(names.length, composite.getLastBatchOutputs().length);
+        assertEquals("Composite(Integrator,Counting)", composite.getName());
+    }
+    
+    /**
+     * A failing analyzer does not prevent the others from finishing, and
+     * its exception is rethrown.
+     */
+    @Test
+    public void testFailurePropagation() {
+        CountingAnalyzer first = new CountingAnalyzer(1.0);
+        CountingAnalyzer failing = new CountingAnalyzer(2.0);
+        failing.fail = true;
+        CountingAnalyzer last = new CountingAnalyzer(3.0);
+        composite = new CompositeAnalyzer(
+                Arrays.<Analyzer>asList(first, failing, last), 0);
+        try {
+            composite.processImage(new short[4], 2, 2, 0.1, 0);
+            fail("Exception of the failing analyzer was not rethrown.");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, first.processed);
+        assertEquals(1, last.processed);
+        
+        // the composite stays usable once the analyzer recovers
+        failing.fail = false;
+        composite.processImage(new short[4], 2, 2, 0.1, 1);
+        assertEquals(1.0, composite.getBatchOutput(), 0.0);
+    }
+    
+    /**
+     * The ROI is forwarded to all analyzers.
+     */
+    @Test
+    public void testSetROI() {
+        CountingAnalyzer a = new CountingAnalyzer(1.0);
+        CountingAnalyzer b = new CountingAnalyzer(2.0);
+        composite = new CompositeAnalyzer(Arrays.<Analyzer>asList(a, b), 1);
+        Roi roi = new Roi(new Rectangle(0, 0, 1, 1));
+        composite.setROI(roi);
+        assertSame(roi, a.roi);
+        assertSame(roi, b.roi);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrimaryIndex() {
+        new CompositeAnalyzer(Arrays.<Analyzer>asList(new Integrator()), 1);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoAnalyzers() {
+        new CompositeAnalyzer(new ArrayList<Analyzer>(), 0);
+    }
+}
+
+/**
+ * Analyzer with a constant output, which counts the processed images.
+ */
+class CountingAnalyzer implements Analyzer {
+    private final double output;
+    volatile int processed = 0;
+    volatile boolean fail = false;
+    Roi roi;
+    
+    CountingAnalyzer(double output) {
+        this.output = output;
+    }
+    
+    @Override
+    public void processImage(Object image, int image_width, int image_height,
+            double pixel_size_um, long time_ms) {
+        if (fail)
+            throw new IllegalStateException("Analyzer failed.");
+        processed++;
+    }
+
+    @Override
+    public double getIntermittentOutput() {
+        return output;
+    }
+
+    @Override
+    public double getBatchOutput() {
+        return output;
+    }
+
+    @Override
+    public void setROI(Roi roi) {
+        this.roi = roi;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public String getName() {
+        return "Counting";
+    }
+
+    @Override
+    public AnalyzerStatusPanel getStatusPanel() {
+        return null;
+    }
+
+    @Override
+    public String getShortReturnDescription() {
+        return "constant";
+    }
+}
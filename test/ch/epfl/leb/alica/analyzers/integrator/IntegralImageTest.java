@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.integrator;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class IntegralImageTest {
+
+    /**
+     * Test of sum method, of class IntegralImage, against direct summation.
+     */
+    @Test
+    public void testSumMatchesDirectSum() {
+        int width = 211, height = 133;
+        Random random = new Random(1);
+        short[] shorts = new short[width * height];
+        byte[] bytes = new byte[width * height];
+        float[] floats = new float[width * height];
+        for (int i = 0; i < shorts.length; i++) {
+            shorts[i] = (short) random.nextInt(65536);
+            bytes[i] = (byte) random.nextInt(256);
+            floats[i] = random.nextFloat() * 100.0f;
+        }
+        IntegralImage integral = new IntegralImage();
+        for (Object pixels: new Object[] {shorts, bytes, floats}) {
+            integral.build(pixels, width, height);
+            for (int k = 0; k < 200; k++) {
+                int x0 = random.nextInt(width), x1 = x0 + 1 + random.nextInt(width - x0);
+                int y0 = random.nextInt(height), y1 = y0 + 1 + random.nextInt(height - y0);
+                double expected = PixelIntegrator.sum(pixels, width, x0, y0, x1, y1);
+                assertEquals(expected, integral.sum(x0, y0, x1, y1), 1e-9 * Math.abs(expected));
+            }
+        }
+    }
+
+    /**
+     * Test of mean method, of class IntegralImage, with clipping.
+     */
+    @Test
+    public void testMeanClipping() {
+        short[] pixels = {1, 2, 3, 4, 5, 6};
+        IntegralImage integral = new IntegralImage();
+        integral.build(pixels, 3, 2);
+        assertEquals(3.5, integral.mean(0, 0, 3, 2), 0.0);
+        assertEquals(4.0, integral.mean(1, -5, 10, 10), 0.0);
+        assertTrue(Double.isNaN(integral.mean(3, 0, 5, 2)));
+        // smaller frame reuses the table
+        integral.build(new short[] {7, 9}, 2, 1);
+        assertEquals(8.0, integral.mean(0, 0, 2, 1), 0.0);
+    }
+
+    /**
+     * Test of patch means of the Integrator in summed-area table mode.
+     */
+    @Test
+    public void testIntegratorPatchGrid() {
+        int width = 64, height = 48;
+        short[] pixels = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = (short) (x < width / 2 ? 100 : 300);
+            }
+        }
+        Integrator integrator = new Integrator(Integrator.createPatchGrid(width, height, 2, 3));
+        assertEquals(6, integrator.getPatchCount());
+        integrator.processImage(pixels, width, height, 0.1, 0);
+        integrator.processImage(pixels, width, height, 0.1, 1);
+        assertEquals(200.0, integrator.getBatchOutput(), 1e-9);
+        assertArrayEquals(new double[] {100, 300, 100, 300, 100, 300},
+                integrator.getLastBatchOutputs(), 1e-9);
+    }
+}
@@ -19,6 +19,7 @@
  */
 package ch.epfl.leb.alica.analyzers.integrator;
 
+import ij.gui.Roi;
 import org.junit.Test;
 import org.junit.Before;
 import static org.junit.Assert.*;
@@ -97,4 +98,31 @@ public class IntegratorTest {
         double expResult = 43.0;
         assertEquals(expResult, result, 0.0);
     }
+
+    /**
+     * Test of a ROI which extends past the right and bottom edges of the
+     * image, which is clipped in both modes.
+     */
+    @Test
+    public void testRoiPastImageEdges() {
+        int width = 8;
+        int height = 6;
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) (i + 1);
+        }
+        // covers columns 5-7 and rows 4-5 of the image
+        Roi roi = new Roi(5, 4, 10, 10);
+        double expected = (38 + 39 + 40 + 46 + 47 + 48) / 6.0;
+        
+        integrator.setROI(roi);
+        integrator.processImage(pixels, width, height, 0.1, 0);
+        assertEquals(expected, integrator.getIntermittentOutput(), 1e-9);
+        
+        Integrator patch_integrator = new Integrator(
+                Integrator.createPatchGrid(width, height, 2, 2));
+        patch_integrator.setROI(roi);
+        patch_integrator.processImage(pixels, width, height, 0.1, 0);
+        assertEquals(expected, patch_integrator.getIntermittentOutput(), 1e-9);
+    }
 }
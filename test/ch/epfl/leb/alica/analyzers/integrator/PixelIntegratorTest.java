@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.integrator;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class PixelIntegratorTest {
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 97;
+
+    private double referenceSum(ImageProcessor ip, int x_min, int y_min, int x_max, int y_max) {
+        double sum = 0.0;
+        for (int x=x_min; x<x_max; x++) {
+            for (int y=y_min; y<y_max; y++) {
+                sum += ip.getPixelValue(x, y);
+            }
+        }
+        return sum;
+    }
+
+    private void assertSumsMatch(ImageProcessor ip, double delta) {
+        Object pixels = ip.getPixels();
+        assertEquals(referenceSum(ip, 0, 0, WIDTH, HEIGHT),
+                PixelIntegrator.sum(pixels, WIDTH, 0, 0, WIDTH, HEIGHT), delta);
+        assertEquals(referenceSum(ip, 17, 5, 240, 90),
+                PixelIntegrator.sum(pixels, WIDTH, 17, 5, 240, 90), delta);
+        assertEquals(referenceSum(ip, 3, 4, 4, 5),
+                PixelIntegrator.sum(pixels, WIDTH, 3, 4, 4, 5), delta);
+    }
+
+    /**
+     * Test of sum method for 16-bit images, including values above 32767.
+     */
+    @Test
+    public void testShortSum() {
+        Random random = new Random(1);
+        short[] pixels = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) random.nextInt(65536);
+        }
+        assertSumsMatch(new ShortProcessor(WIDTH, HEIGHT, pixels, null), 0.0);
+    }
+
+    /**
+     * Test of sum method for 8-bit images, including values above 127.
+     */
+    @Test
+    public void testByteSum() {
+        Random random = new Random(2);
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        random.nextBytes(pixels);
+        assertSumsMatch(new ByteProcessor(WIDTH, HEIGHT, pixels, null), 0.0);
+    }
+
+    /**
+     * Test of sum method for 32-bit float images.
+     */
+    @Test
+    public void testFloatSum() {
+        Random random = new Random(3);
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (float) (1000.0 * random.nextGaussian());
+        }
+        assertSumsMatch(new FloatProcessor(WIDTH, HEIGHT, pixels, null), 1e-6);
+    }
+
+    /**
+     * Test of sum method with an unsupported pixel type.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        PixelIntegrator.sum(new int[4], 2, 0, 0, 2, 2);
+    }
+}
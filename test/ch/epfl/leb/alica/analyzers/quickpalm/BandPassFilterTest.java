@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class BandPassFilterTest {
+
+    private ShortProcessor createImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) (200 + random.nextInt(50));
+        }
+        for (int s = 0; s < 40; s++) {
+            int cx = random.nextInt(width), cy = random.nextInt(height);
+            for (int y = Math.max(0, cy - 4); y < Math.min(height, cy + 5); y++) {
+                for (int x = Math.max(0, cx - 4); x < Math.min(width, cx + 5); x++) {
+                    double r2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    pixels[y * width + x] += (short) (3000 * Math.exp(-r2 / 3.0));
+                }
+            }
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * Band-pass by two ImageJ blurs, as done previously by detectParticles.
+     */
+    private short[] referenceBandPass(ImageProcessor ip, double fwhm) {
+        GaussianBlur gblur = new GaussianBlur();
+        ImageProcessor spip = ip.duplicate();
+        ImageProcessor lpip = ip.duplicate();
+        gblur.blur(spip, 0.5);
+        gblur.blur(lpip, fwhm * 2);
+        short[] result = new short[ip.getWidth() * ip.getHeight()];
+        for (int i = 0; i < result.length; i++) {
+            int s = spip.get(i) - lpip.get(i);
+            result[i] = (short) ((s > 0) ? s : 0);
+        }
+        return result;
+    }
+
+    private void assertCloseToImageJ(int n_threads) {
+        double fwhm = 4;
+        ShortProcessor sp = createImage(123, 77, n_threads);
+        short[] expected = referenceBandPass(sp, fwhm);
+        BandPassFilter filter = new BandPassFilter(n_threads);
+        filter.setSigmas(0.4 * 0.5, 0.4 * fwhm * 2);
+        short[] pixels = (short[]) sp.getPixels();
+        filter.filter(pixels, 123, 77);
+        filter.dispose();
+        for (int i = 0; i < pixels.length; i++) {
+            // ImageJ tapers the kernel tails slightly differently
+            assertEquals("pixel " + i, expected[i] & 0xffff, pixels[i] & 0xffff,
+                    Math.max(3, 0.01 * (expected[i] & 0xffff)));
+        }
+    }
+
+    /**
+     * Test of filter method, compared to the ImageJ GaussianBlur.
+     */
+    @Test
+    public void testMatchesImageJ() {
+        assertCloseToImageJ(1);
+    }
+
+    /**
+     * Test of filter method with several threads.
+     */
+    @Test
+    public void testMatchesImageJMultithreaded() {
+        assertCloseToImageJ(3);
+    }
+
+    /**
+     * Test that an interrupted filter does not return a partially filtered
+     * image.
+     */
+    @Test
+    public void testInterrupted() {
+        ShortProcessor sp = createImage(1024, 1024, 0);
+        BandPassFilter filter = new BandPassFilter(3);
+        filter.setSigmas(0.2, 3.2);
+        Thread.currentThread().interrupt();
+        try {
+            filter.filter(sp.getPixels(), 1024, 1024);
+            fail("Interrupted filter returned normally.");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof InterruptedException);
+            // the interrupt is not swallowed
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+            filter.dispose();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class MaxCandidateHeapTest {
+
+    /**
+     * Full scan as done by MyFunctions.getMaxPositions().
+     */
+    private int[] scanMax(ImageProcessor ip) {
+        int[] results = new int[3];
+        for (int i = 0; i < ip.getWidth(); i++) {
+            for (int j = 0; j < ip.getHeight(); j++) {
+                int s = ip.get(i, j);
+                if (s > results[0]) {
+                    results[0] = s;
+                    results[1] = i;
+                    results[2] = j;
+                }
+            }
+        }
+        return results;
+    }
+
+    private void runDetection(double threshold, long seed) {
+        int width = 90, height = 70;
+        Random random = new Random(seed);
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // few distinct values, so that there are many ties
+            pixels[i] = (short) (random.nextInt(4) == 0 ? 0 : random.nextInt(40));
+        }
+        ImageProcessor ip = new ShortProcessor(width, height, pixels, null);
+        MaxCandidateHeap heap = new MaxCandidateHeap();
+        heap.build(ip, threshold);
+        int[] maxs = new int[3];
+        for (int n = 0; n < 2000; n++) {
+            heap.next(ip, maxs);
+            int[] expected = scanMax(ip);
+            if (expected[0] < threshold) {
+                // detection stops in both cases
+                assertTrue(maxs[0] < threshold);
+                break;
+            }
+            assertArrayEquals("iteration " + n, expected, maxs);
+            if (expected[0] == 0) {
+                break;
+            }
+            // clear a region as clearRegion() does, which sometimes
+            // leaves the maximum untouched
+            int x0 = Math.max(0, maxs[1] - random.nextInt(3) + (random.nextInt(5) == 0 ? 2 : 0));
+            int y0 = Math.max(0, maxs[2] - random.nextInt(3));
+            int x1 = Math.min(width - 1, x0 + random.nextInt(4));
+            int y1 = Math.min(height - 1, y0 + random.nextInt(4));
+            double thrsh = maxs[0] * 0.2;
+            for (int i = x0; i <= x1; i++) {
+                for (int j = y0; j <= y1; j++) {
+                    if (ip.get(i, j) > thrsh) {
+                        ip.set(i, j, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of next method against repeated full scans.
+     */
+    @Test
+    public void testMatchesFullScan() {
+        runDetection(20, 1);
+        runDetection(0, 2);
+    }
+
+    /**
+     * Test of next method if the threshold is not a number, as happens if
+     * no noise could be estimated.
+     */
+    @Test
+    public void testNaNThreshold() {
+        runDetection(Double.NaN, 3);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class ParticleTableTest {
+
+    /**
+     * Test of add method from several threads, with spilling to disk.
+     */
+    @Test
+    public void testConcurrentAppendWithSpill() throws InterruptedException {
+        // budget of two chunks, so that most chunks are spilled
+        final ParticleTable table = new ParticleTable(
+                2L * ParticleTable.CHUNK_ROWS * 7 * 4, null);
+        final int n_threads = 4;
+        final int rows_per_thread = 3 * ParticleTable.CHUNK_ROWS + 17;
+        Thread[] threads = new Thread[n_threads];
+        for (int t = 0; t < n_threads; t++) {
+            final int thread_id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < rows_per_thread; i++) {
+                        // frame encodes the thread and row, x the row
+                        table.add(thread_id * rows_per_thread + i, i, 2 * i,
+                                0.0, 100.0, 1.5, 2.5);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        assertEquals(n_threads * rows_per_thread, table.size());
+        assertTrue(table.getSpilledRowCount() > 0);
+        final boolean[] seen = new boolean[n_threads * rows_per_thread];
+        table.forEachRow(new ParticleTable.RowVisitor() {
+            @Override
+            public void visit(int frame, float x_px, float y_px, float z_nm,
+                    float intensity, float width_px, float height_px) {
+                assertFalse("row visited twice", seen[frame]);
+                seen[frame] = true;
+                assertEquals(frame % rows_per_thread, x_px, 0.0);
+                assertEquals(2 * x_px, y_px, 0.0);
+                assertEquals(100.0, intensity, 0.0);
+                assertEquals(2.5, height_px, 0.0);
+            }
+        });
+        for (boolean s: seen) {
+            assertTrue(s);
+        }
+
+        table.reset();
+        assertEquals(0, table.size());
+        table.add(1, 1, 1, 0, 1, 1, 1);
+        assertEquals(1, table.size());
+        table.close();
+    }
+}
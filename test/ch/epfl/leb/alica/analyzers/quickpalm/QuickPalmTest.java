@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.quickpalm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class QuickPalmTest {
+
+    /**
+     * Test of QuickPalm built with parameters instead of the dialog, which
+     * can not be shown on a headless JVM.
+     */
+    @Test
+    public void testParametersWithoutDialog() {
+        int width = 64, height = 64;
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) (100 + (i * 7919) % 13);
+        // well separated spots
+        int[][] spots = {{16, 16}, {48, 16}, {16, 48}, {48, 48}};
+        for (int[] spot: spots) {
+            for (int y = spot[1] - 4; y <= spot[1] + 4; y++) {
+                for (int x = spot[0] - 4; x <= spot[0] + 4; x++) {
+                    double r2 = (x - spot[0]) * (x - spot[0]) + (y - spot[1]) * (y - spot[1]);
+                    pixels[y * width + x] += (short) (2000 * Math.exp(-r2 / 2.0));
+                }
+            }
+        }
+        QuickPalm analyzer = new QuickPalm(false, 5, 4.0, 106.0);
+        try {
+            analyzer.processImage(pixels, width, height, 1.0, 0);
+            long n_particles = analyzer.getParticleTable().size();
+            assertTrue(n_particles > 0 && n_particles <= spots.length);
+            assertTrue(analyzer.getIntermittentOutput() > 0.0);
+        } finally {
+            analyzer.dispose();
+        }
+    }
+
+    /**
+     * Test of rejecting wrong parameters.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongParameters() {
+        new QuickPalm(false, 5, 0.0, 106.0);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.spotcounter;
+
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+import java.awt.Polygon;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class FindLocalMaximaTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates a noisy image with randomly placed gaussian spots.
+     */
+    private ShortProcessor createSpotImage(int width, int height, int n_spots, long seed) {
+        Random random = new Random(seed);
+        short[] pixels = new short[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (short) (100 + random.nextInt(20));
+        }
+        for (int s = 0; s < n_spots; s++) {
+            int cx = random.nextInt(width);
+            int cy = random.nextInt(height);
+            for (int y = Math.max(0, cy - 3); y < Math.min(height, cy + 4); y++) {
+                for (int x = Math.max(0, cx - 3); x < Math.min(width, cx + 4); x++) {
+                    double r2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    int value = (pixels[y * width + x] & 0xffff) +
+                            (int) (1000 * Math.exp(-r2 / 2.0));
+                    pixels[y * width + x] = (short) Math.min(value, 65535);
+                }
+            }
+        }
+        ShortProcessor sp = new ShortProcessor(width, height);
+        sp.setPixels(pixels);
+        return sp;
+    }
+
+    private void assertSamePolygon(Polygon expected, Polygon actual) {
+        assertEquals(expected.npoints, actual.npoints);
+        for (int i = 0; i < expected.npoints; i++) {
+            assertEquals(expected.xpoints[i], actual.xpoints[i]);
+            assertEquals(expected.ypoints[i], actual.ypoints[i]);
+        }
+    }
+
+    /**
+     * Test of FindMaxTiled method, of class FindLocalMaxima.
+     */
+    @Test
+    public void testTiledMatchesSerial() {
+        ShortProcessor sp = createSpotImage(257, 199, 400, 1);
+        for (int n = 1; n <= 5; n++) {
+            Polygon serial = FindLocalMaxima.FindMax(
+                    sp, null, n, 50, FindLocalMaxima.FilterType.NONE);
+            assertTrue(serial.npoints > 0);
+            for (int n_stripes = 1; n_stripes <= 7; n_stripes++) {
+                Polygon tiled = FindLocalMaxima.FindMaxTiled(
+                        sp, null, n, 50, FindLocalMaxima.FilterType.NONE,
+                        executor, n_stripes);
+                assertSamePolygon(serial, tiled);
+            }
+        }
+    }
+
+    /**
+     * Test of FindMaxTiled method with a ROI, of class FindLocalMaxima.
+     */
+    @Test
+    public void testTiledMatchesSerialInRoi() {
+        ShortProcessor sp = createSpotImage(128, 128, 150, 2);
+        Roi roi = new Roi(13, 20, 90, 61);
+        Polygon serial = FindLocalMaxima.FindMax(
+                sp, roi, 3, 50, FindLocalMaxima.FilterType.NONE);
+        Polygon tiled = FindLocalMaxima.FindMaxTiled(
+                sp, roi, 3, 50, FindLocalMaxima.FilterType.NONE, executor, 4);
+        assertSamePolygon(serial, tiled);
+    }
+
+    /**
+     * Test of a TiledScanner reused for images of different size and ROIs.
+     */
+    @Test
+    public void testScannerReuse() {
+        FindLocalMaxima.TiledScanner scanner = new FindLocalMaxima.TiledScanner(executor, 4);
+        Polygon tiled = new Polygon();
+        Roi[] rois = {null, new Roi(13, 20, 90, 61), new Roi(0, 0, 9, 9), null};
+        int[] sizes = {128, 128, 64, 257};
+        for (int i = 0; i < rois.length; i++) {
+            ShortProcessor sp = createSpotImage(sizes[i], sizes[i], sizes[i], 10 + i);
+            Polygon serial = FindLocalMaxima.FindMax(
+                    sp, rois[i], 3, 50, FindLocalMaxima.FilterType.NONE);
+            scanner.findMax(sp, rois[i], 3, 50, FindLocalMaxima.FilterType.NONE, tiled);
+            assertSamePolygon(serial, tiled);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.analyzers.spotcounter;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class NearestNeighbourGridTest {
+
+    private void assertMatchesBruteForce(NearestNeighbourGrid grid, int[] xs, int[] ys, int n) {
+        double[] expected = new double[n];
+        double[] actual = new double[n];
+        NearestNeighbourGrid.computeDistancesBruteForce(xs, ys, n, expected);
+        grid.computeDistances(xs, ys, n, actual);
+        assertArrayEquals(expected, actual, 0.0);
+    }
+
+    /**
+     * Test of computeDistances method on uniformly spread points.
+     */
+    @Test
+    public void testUniformPoints() {
+        NearestNeighbourGrid grid = new NearestNeighbourGrid();
+        Random random = new Random(1);
+        for (int n: new int[] {0, 1, 2, 3, 10, 100, 1000}) {
+            int[] xs = new int[n];
+            int[] ys = new int[n];
+            for (int i = 0; i < n; i++) {
+                xs[i] = random.nextInt(512);
+                ys[i] = random.nextInt(300);
+            }
+            assertMatchesBruteForce(grid, xs, ys, n);
+        }
+    }
+
+    /**
+     * Test of computeDistances method on clustered points, duplicates and
+     * lone outliers.
+     */
+    @Test
+    public void testClusteredPoints() {
+        NearestNeighbourGrid grid = new NearestNeighbourGrid();
+        Random random = new Random(2);
+        int n = 500;
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        for (int i = 0; i < n - 2; i++) {
+            xs[i] = 1000 + random.nextInt(20);
+            ys[i] = 2000 + random.nextInt(5);
+        }
+        xs[n - 2] = 0;
+        ys[n - 2] = 0;
+        xs[n - 1] = 4000;
+        ys[n - 1] = 37;
+        assertMatchesBruteForce(grid, xs, ys, n);
+        // fewer points than the capacity of the arrays
+        assertMatchesBruteForce(grid, xs, ys, 7);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.lasers;
+
+import ch.epfl.leb.alica.Laser;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class AsyncLaserTest {
+
+    /**
+     * Test of coalescing of settings submitted while the device is busy.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        SlowLaser slow_laser = new SlowLaser();
+        AsyncLaser laser = new AsyncLaser(slow_laser);
+        assertEquals(1.0, laser.setLaserPower(1.0), 0.0);
+        // the first setting blocks the device
+        assertTrue(slow_laser.started.await(5, TimeUnit.SECONDS));
+        assertEquals(2.0, laser.setLaserPower(2.0), 0.0);
+        assertEquals(100.0, laser.setLaserPower(300.0), 0.0);
+        assertEquals(3.0, laser.setLaserPower(3.0), 0.0);
+        // NaN is ignored
+        laser.setLaserPower(Double.NaN);
+        slow_laser.release.countDown();
+        assertTrue(laser.flush(5000));
+        // last write wins
+        assertEquals(2, slow_laser.applied.size());
+        assertEquals(1.0, slow_laser.applied.get(0), 0.0);
+        assertEquals(3.0, slow_laser.applied.get(1), 0.0);
+        assertEquals(3.0, laser.getLaserPowerCached(), 0.0);
+        assertEquals(4, laser.getSubmittedCount());
+        assertEquals(2, laser.getAppliedCount());
+        assertEquals(2, laser.getCoalescedCount());
+        assertEquals(2, laser.getLatencyHistogram().getCount());
+        assertTrue(laser.close(5000));
+    }
+
+    /**
+     * Test of reporting device errors on the next setting, and of closing.
+     */
+    @Test
+    public void testErrorAndClose() throws Exception {
+        SlowLaser slow_laser = new SlowLaser();
+        slow_laser.release.countDown();
+        slow_laser.fail = true;
+        AsyncLaser laser = new AsyncLaser(slow_laser);
+        laser.setLaserPower(5.0);
+        assertTrue(laser.flush(5000));
+        assertEquals(1, laser.getFailedCount());
+        slow_laser.fail = false;
+        try {
+            laser.setLaserPower(6.0);
+            fail("Device error was not reported.");
+        } catch (IllegalStateException ex) {
+            assertEquals("Device failure", ex.getMessage());
+        }
+        // the setting which reported the error is still applied on close
+        assertTrue(laser.close(5000));
+        assertEquals(6.0, laser.getLaserPowerCached(), 0.0);
+        try {
+            laser.setLaserPower(7.0);
+            fail("Closed laser accepted a setting.");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Laser which blocks until released, and records the applied settings.
+     */
+    private static class SlowLaser implements Laser {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<Double> applied = new ArrayList<Double>();
+        volatile boolean fail = false;
+        private double power = 0.0;
+
+        @Override
+        public double setLaserPower(double desired_power) throws Exception {
+            started.countDown();
+            release.await();
+            if (fail)
+                throw new IllegalStateException("Device failure");
+            synchronized (applied) {
+                applied.add(desired_power);
+            }
+            power = desired_power;
+            return power;
+        }
+
+        @Override
+        public double getLaserPower() throws Exception {
+            return power;
+        }
+
+        @Override
+        public double getLaserPowerCached() {
+            return power;
+        }
+
+        @Override
+        public double getMaxPower() {
+            return 100.0;
+        }
+
+        @Override
+        public double getMinPower() {
+            return 0.0;
+        }
+
+        @Override
+        public String getDeviceName() {
+            return "SLOW";
+        }
+
+        @Override
+        public String getPropertyName() {
+            return "Power";
+        }
+    }
+}
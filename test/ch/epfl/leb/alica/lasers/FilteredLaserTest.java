@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.lasers;
+
+import ch.epfl.leb.alica.Laser;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class FilteredLaserTest {
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * Test of absolute and relative deadbands and of the hysteresis.
+     */
+    @Test
+    public void testDeadbandAndHysteresis() throws Exception {
+        RecordingLaser recording_laser = new RecordingLaser();
+        FilteredLaser laser = new FilteredLaser(recording_laser);
+        laser.setDeadband(1.0, 0.1);
+        laser.setHysteresis(2.0);
+        // change from zero power is outside of the relative deadband
+        assertEquals(1.5, laser.setLaserPower(1.5, 0), 0.0);
+        assertEquals(1.5, laser.setLaserPower(2.4, 0), 0.0);
+        assertEquals(50.0, laser.setLaserPower(50.0, 0), 0.0);
+        // relative deadband is 5.0 at power 50
+        assertEquals(50.0, laser.setLaserPower(54.0, 0), 0.0);
+        assertEquals(56.0, laser.setLaserPower(56.0, 0), 0.0);
+        // reversal needs to exceed the deadband of 5.6 by 2.0
+        assertEquals(56.0, laser.setLaserPower(49.0, 0), 0.0);
+        assertEquals(48.0, laser.setLaserPower(48.0, 0), 0.0);
+        // NaN is ignored, out of range settings are constrained
+        assertEquals(48.0, laser.setLaserPower(Double.NaN, 0), 0.0);
+        assertEquals(100.0, laser.setLaserPower(500.0, 0), 0.0);
+        // turning off is never suppressed
+        assertEquals(0.0, laser.setLaserPower(-3.0, 0), 0.0);
+        assertEquals(6, laser.getIssuedCount());
+        assertEquals(6, recording_laser.count);
+        assertEquals(2, laser.getDeadbandSuppressedCount());
+        assertEquals(1, laser.getHysteresisSuppressedCount());
+        assertEquals(3, laser.getSuppressedCount());
+    }
+
+    /**
+     * Test of the update rate and slew rate limits.
+     */
+    @Test
+    public void testRateLimits() throws Exception {
+        RecordingLaser recording_laser = new RecordingLaser();
+        FilteredLaser laser = new FilteredLaser(recording_laser);
+        laser.setMaxUpdateRate(10.0);
+        laser.setMaxSlewRate(20.0);
+        // first setting is not limited
+        assertEquals(50.0, laser.setLaserPower(50.0, 0), 0.0);
+        assertEquals(50.0, laser.setLaserPower(60.0, SECOND / 20), 0.0);
+        assertEquals(1, laser.getRateSuppressedCount());
+        // 0.2 s after the last setting, the change is limited to 4.0
+        assertEquals(54.0, laser.setLaserPower(60.0, SECOND / 5), 0.0);
+        assertEquals(1, laser.getSlewLimitedCount());
+        assertEquals(56.0, laser.setLaserPower(56.0, SECOND), 0.0);
+        assertEquals(3, laser.getIssuedCount());
+        // turning off is not rate limited
+        assertEquals(0.0, laser.setLaserPower(0.0, SECOND + 1), 0.0);
+        assertEquals(0.0, recording_laser.getLaserPowerCached(), 0.0);
+    }
+
+    /**
+     * Laser which records the number of settings.
+     */
+    private static class RecordingLaser implements Laser {
+        int count = 0;
+        private double power = 0.0;
+
+        @Override
+        public double setLaserPower(double desired_power) throws Exception {
+            count++;
+            power = desired_power;
+            return power;
+        }
+
+        @Override
+        public double getLaserPower() throws Exception {
+            return power;
+        }
+
+        @Override
+        public double getLaserPowerCached() {
+            return power;
+        }
+
+        @Override
+        public double getMaxPower() {
+            return 100.0;
+        }
+
+        @Override
+        public double getMinPower() {
+            return 0.0;
+        }
+
+        @Override
+        public String getDeviceName() {
+            return "RECORDING";
+        }
+
+        @Override
+        public String getPropertyName() {
+            return "Power";
+        }
+    }
+}
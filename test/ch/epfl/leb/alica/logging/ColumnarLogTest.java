@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class ColumnarLogTest {
+
+    /**
+     * Collects the content of a log file.
+     */
+    private static class Collector implements ColumnarLog.LogVisitor {
+        final ArrayList<String> channels = new ArrayList<String>();
+        final ArrayList<String> strings = new ArrayList<String>();
+        final ArrayList<Integer> chunk_sizes = new ArrayList<Integer>();
+        long sum_frames = 0;
+        double sum_values = 0.0;
+        int last_text = -1;
+
+        @Override
+        public void visitChannel(int channel, String name, boolean is_text) {
+            assertEquals(channels.size(), channel);
+            channels.add(name + (is_text ? ":text" : ""));
+        }
+
+        @Override
+        public void visitString(int id, String value) {
+            assertEquals(strings.size(), id);
+            strings.add(value);
+        }
+
+        @Override
+        public void visitChunk(int channel, int[] frames, double[] values, int count) {
+            assertTrue(channel < channels.size());
+            chunk_sizes.add(count);
+            for (int i = 0; i < count; i++) {
+                if (channels.get(channel).endsWith(":text")) {
+                    // dictionary entry is written before its first use
+                    assertTrue(values[i] < strings.size());
+                    last_text = (int) values[i];
+                } else {
+                    sum_frames += frames[i];
+                    sum_values += values[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of streaming values in chunks and reading them back.
+     */
+    @Test
+    public void testAppendAndRead() throws IOException {
+        File file = File.createTempFile("alica_log", ".bin");
+        file.deleteOnExit();
+        ColumnarLog log = new ColumnarLog(file);
+        int n = 2 * ColumnarLog.CHUNK_EVENTS + 100;
+        int a = log.getChannelId("a", false);
+        for (int i = 0; i < n; i++) {
+            log.append(i, a, 0.5 * i);
+            if (i % 10 == 0) {
+                log.append(i, "b", (i % 20 == 0) ? "even" : "odd");
+            }
+        }
+        assertEquals(n + n / 10 + 1, log.getEventCount());
+        assertEquals(n - 1, log.getMaxFrame());
+        assertEquals(a, log.getChannelId("a", false));
+
+        // full chunks are on disk before a flush
+        Collector streamed = new Collector();
+        ColumnarLog.read(file, streamed);
+        assertEquals(2, streamed.chunk_sizes.size());
+
+        Collector collector = new Collector();
+        log.read(collector);
+        assertEquals(2, collector.channels.size());
+        assertEquals("b:text", collector.channels.get(1));
+        assertEquals(2, collector.strings.size());
+        assertEquals((long) n * (n - 1) / 2, collector.sum_frames);
+        assertEquals(0.25 * n * (n - 1), collector.sum_values, 1e-6);
+        // last text value is logged in frame n - 2 = 8290
+        assertEquals("odd", collector.strings.get(collector.last_text));
+
+        log.reset();
+        assertEquals(0, log.getEventCount());
+        assertEquals(0, log.getChannelCount());
+        log.append(1, "c", 1.0);
+        collector = new Collector();
+        log.read(collector);
+        assertEquals(1, collector.channels.size());
+        assertEquals(1.0, collector.sum_values, 0.0);
+        log.close();
+    }
+
+    /**
+     * Test of reading the part of the log which was written before the
+     * length was taken, while further values are appended.
+     */
+    @Test
+    public void testReadWithLength() throws IOException {
+        File file = File.createTempFile("alica_log", ".bin");
+        file.deleteOnExit();
+        ColumnarLog log = new ColumnarLog(file);
+        for (int i = 0; i < 10; i++) {
+            log.append(i, "a", 1.0);
+        }
+        log.flush();
+        long length = log.getFileLength();
+        assertEquals(file.length(), length);
+        for (int i = 10; i < 2 * ColumnarLog.CHUNK_EVENTS; i++) {
+            log.append(i, "a", 1.0);
+            log.append(i, "late", 2.0);
+        }
+        log.flush();
+        assertTrue(file.length() > length);
+
+        Collector collector = new Collector();
+        ColumnarLog.read(file, length, collector);
+        assertEquals(1, collector.channels.size());
+        assertEquals(10.0, collector.sum_values, 0.0);
+        assertEquals(45, collector.sum_frames);
+        log.close();
+    }
+
+    /**
+     * Test of adding a text value to a numeric channel.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testChannelKindMismatch() throws IOException {
+        File file = File.createTempFile("alica_log", ".bin");
+        file.deleteOnExit();
+        ColumnarLog log = new ColumnarLog(file);
+        try {
+            log.append(1, "a", 1.0);
+            log.append(2, "a", "text");
+        } finally {
+            log.close();
+        }
+    }
+}
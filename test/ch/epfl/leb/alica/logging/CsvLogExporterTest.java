@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class CsvLogExporterTest {
+
+    /**
+     * Test of the csv table, with forward filling of missing values.
+     */
+    @Test
+    public void testForwardFill() throws IOException {
+        File file = File.createTempFile("alica_log", ".bin");
+        file.deleteOnExit();
+        ColumnarLog log = new ColumnarLog(file);
+        // values of frame 0 are not exported
+        log.append(0, "running", 1.0);
+        log.append(1, "output", 2.0);
+        log.append(3, "output", 4.0);
+        // last value of a frame is used, also if frames are out of order
+        log.append(2, "setpoint", 10.0);
+        log.append(1, "setpoint", 5.0);
+        log.append(2, "setpoint", 11.0);
+        log.append(2, "time", "12:00");
+        log.close();
+
+        CsvLogExporter exporter = new CsvLogExporter();
+        ColumnarLog.read(file, exporter);
+        StringWriter writer = new StringWriter();
+        exporter.write(writer);
+        assertEquals(
+                "#frame_no,running,output,setpoint,time\n" +
+                "1,0.0,2.0,5.0,0.0\n" +
+                "2,0.0,2.0,11.0,12:00\n" +
+                "3,0.0,4.0,11.0,12:00\n",
+                writer.toString());
+    }
+
+    /**
+     * Test of the compressed sparse table, and of progress reports.
+     */
+    @Test
+    public void testSparseCompressed() throws IOException {
+        File file = File.createTempFile("alica_log", ".bin");
+        file.deleteOnExit();
+        File csv = File.createTempFile("alica_log", ".csv.gz");
+        csv.deleteOnExit();
+        ColumnarLog log = new ColumnarLog(file);
+        log.append(3, "output", 4.0);
+        log.append(1, "output", 2.0);
+        log.append(2, "time", "12:00");
+        for (int i = 0; i < 3 * ColumnarLog.CHUNK_EVENTS; i++) {
+            log.append(10 + i, "counter", i);
+        }
+        log.close();
+
+        CsvLogExporter exporter = new CsvLogExporter(CsvLogExporter.Format.SPARSE);
+        final double[] progress = new double[] {0.0};
+        exporter.setProgressListener(new CsvLogExporter.ProgressListener() {
+            @Override
+            public void progressChanged(double fraction) {
+                assertTrue(fraction >= progress[0]);
+                progress[0] = fraction;
+            }
+        });
+        exporter.export(file, csv, true);
+        assertEquals(1.0, progress[0], 0.0);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(csv))));
+        try {
+            assertEquals("#frame_no,parameter,value", reader.readLine());
+            int counter_rows = 0;
+            StringBuilder output_rows = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains("counter")) {
+                    assertEquals((10 + counter_rows) + ",counter," + 
+                            (double) counter_rows, line);
+                    counter_rows++;
+                } else if (line.contains("output")) {
+                    output_rows.append(line).append(';');
+                } else {
+                    assertEquals("2,time,12:00", line);
+                }
+            }
+            assertEquals(3 * ColumnarLog.CHUNK_EVENTS, counter_rows);
+            // sorted by frame within the chunk
+            assertEquals("1,output,2.0;3,output,4.0;", output_rows.toString());
+        } finally {
+            reader.close();
+        }
+    }
+}
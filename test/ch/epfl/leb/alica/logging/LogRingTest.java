@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.logging;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class LogRingTest {
+
+    /**
+     * Test of dropping events when the ring is full.
+     */
+    @Test
+    public void testFullRing() {
+        LogRing ring = new LogRing(4);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, ring.offer(i, 0, i));
+        }
+        assertEquals(2, ring.getDroppedCount());
+        final int[] next = new int[1];
+        LogRing.EventHandler handler = new LogRing.EventHandler() {
+            @Override
+            public void onEvent(int frame, int channel, double value) {
+                assertEquals(next[0], frame);
+                assertEquals(next[0], value, 0.0);
+                next[0]++;
+            }
+        };
+        assertEquals(3, ring.drain(handler, 3));
+        // event 3 is still in the ring, the slots of 0 to 2 are free again
+        assertTrue(ring.offer(4, 0, 4.0) && ring.offer(5, 0, 5.0) && ring.offer(6, 0, 6.0));
+        assertFalse(ring.offer(7, 0, 7.0));
+        assertEquals(4, ring.drain(handler, 10));
+        assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * Test of concurrent producers with a concurrent consumer.
+     */
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final LogRing ring = new LogRing(256);
+        final int n_producers = 4;
+        final int n_events = 50000;
+        Thread[] producers = new Thread[n_producers];
+        for (int p = 0; p < n_producers; p++) {
+            final int channel = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < n_events; i++) {
+                        while (!ring.offer(i, channel, 0.5 * i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        final int[] next = new int[n_producers];
+        LogRing.EventHandler handler = new LogRing.EventHandler() {
+            @Override
+            public void onEvent(int frame, int channel, double value) {
+                // events of each producer arrive complete and in order
+                assertEquals(next[channel], frame);
+                assertEquals(0.5 * frame, value, 0.0);
+                next[channel]++;
+            }
+        };
+        int drained = 0;
+        while (drained < n_producers * n_events) {
+            int count = ring.drain(handler, 100);
+            if (count == 0) {
+                Thread.yield();
+            }
+            drained += count;
+        }
+        for (Thread producer: producers) {
+            producer.join();
+        }
+        for (int p = 0; p < n_producers; p++) {
+            assertEquals(n_events, next[p]);
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
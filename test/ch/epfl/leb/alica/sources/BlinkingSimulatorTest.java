@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.sources;
+
+import ch.epfl.leb.alica.analyzers.integrator.Integrator;
+import ch.epfl.leb.alica.controllers.manual.ManualController;
+import ch.epfl.leb.alica.lasers.VirtualLaser;
+import ch.epfl.leb.alica.workers.Coordinator;
+import ch.epfl.leb.alica.workers.FrameTrigger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class BlinkingSimulatorTest {
+    private static final int SIZE = 64;
+
+    private static double mean(short[] pixels) {
+        double sum = 0.0;
+        for (short pixel: pixels)
+            sum += pixel & 0xffff;
+        return sum / pixels.length;
+    }
+
+    private static int meanOnCount(BlinkingSimulator simulator, int n_frames) {
+        long sum = 0;
+        for (int i = 0; i < n_frames; i++) {
+            simulator.nextFrame();
+            sum += simulator.getOnCount();
+        }
+        return (int) (sum / n_frames);
+    }
+
+    /**
+     * Test that the laser power switches emitters on.
+     */
+    @Test
+    public void testLaserPowerActivates() throws Exception {
+        VirtualLaser laser = new VirtualLaser(null, "VIRTUAL", "Power", 0.0, 10.0);
+        BlinkingSimulator simulator = new BlinkingSimulator(SIZE, SIZE, 10000, laser, 1);
+        simulator.setBleachRate(0.0, 0.0);
+        assertEquals(0, meanOnCount(simulator, 100));
+        laser.setLaserPower(10.0);
+        // on fraction p_on / (p_on + p_off) with p = 1 - exp(-rate),
+        // 1.01e-3 / 0.3945
+        int on_count = meanOnCount(simulator, 1000);
+        assertTrue(on_count > 21 && on_count < 30);
+        laser.setLaserPower(0.0);
+        meanOnCount(simulator, 50);
+        assertTrue(simulator.getOnCount() < 3);
+        assertEquals(0, simulator.getBleachedCount());
+    }
+
+    /**
+     * Test that bleached emitters do not come back, and that only the
+     * background remains.
+     */
+    @Test
+    public void testBleaching() throws Exception {
+        VirtualLaser laser = new VirtualLaser(null, "VIRTUAL", "Power", 0.0, 10.0);
+        BlinkingSimulator simulator = new BlinkingSimulator(SIZE, SIZE, 500, laser, 2);
+        simulator.setOnRate(0.0, 0.1);
+        simulator.setBleachRate(0.0, 0.05);
+        simulator.setCamera(20.0, 100.0, 2.0, 3.0);
+        laser.setLaserPower(10.0);
+        short[] bright = simulator.nextFrame();
+        assertTrue(simulator.getOnCount() > 0);
+        for (int i = 0; i < 500; i++)
+            simulator.nextFrame();
+        assertEquals(500, simulator.getBleachedCount());
+        assertEquals(0, simulator.getOnCount());
+        short[] background = simulator.nextFrame();
+        // baseline + gain * background photons
+        assertEquals(140.0, mean(background), 1.0);
+        assertTrue(mean(bright) > mean(background) + 10.0);
+    }
+
+    /**
+     * Test the frame count limit and the image numbers.
+     */
+    @Test
+    public void testFrameCount() throws Exception {
+        VirtualLaser laser = new VirtualLaser(null, "VIRTUAL", "Power", 0.0, 10.0);
+        BlinkingSimulator simulator = new BlinkingSimulator(SIZE, 32, 100, laser, 3);
+        simulator.setFrameCount(5);
+        for (int i = 0; i < 5; i++) {
+            short[] pixels = (short[]) simulator.waitForNewImage(1000000);
+            assertEquals(SIZE * 32, pixels.length);
+            assertEquals(i, simulator.getLastImageNumber());
+        }
+        assertTrue(simulator.isExhausted());
+        assertNull(simulator.waitForNewImage(1000000));
+    }
+
+    /**
+     * Test of the simulator in closed loop with a headless Coordinator.
+     */
+    @Test
+    public void testClosedLoopCoordinator() throws Exception {
+        VirtualLaser laser = new VirtualLaser(null, "VIRTUAL", "Power", 0.0, 10.0);
+        BlinkingSimulator simulator = new BlinkingSimulator(SIZE, SIZE, 10000, laser, 4);
+        simulator.setFrameCount(2000);
+        Coordinator coordinator = new Coordinator(simulator, new Integrator(),
+                new ManualController(10.0, 10.0), laser, 100, new FrameTrigger(10));
+        assertTrue(coordinator.awaitTermination(20000));
+        assertEquals(2000, coordinator.getAnalyzedFrameCount());
+        // the controller output reached the sample
+        assertTrue(simulator.getBleachedCount() > 0);
+    }
+
+    /**
+     * Test that a failing frame-synchronous control tick does not stop the
+     * analysis.
+     */
+    @Test
+    public void testControllerErrorKeepsAnalyzing() throws Exception {
+        VirtualLaser laser = new VirtualLaser(null, "VIRTUAL", "Power", 0.0, 10.0);
+        BlinkingSimulator simulator = new BlinkingSimulator(SIZE, SIZE, 100, laser, 4);
+        simulator.setFrameCount(100);
+        ManualController controller = new ManualController(10.0, 10.0) {
+            @Override
+            public double nextValue(double value) {
+                throw new IllegalStateException("Controller failed.");
+            }
+        };
+        Coordinator coordinator = new Coordinator(simulator, new Integrator(),
+                controller, laser, 100, new FrameTrigger(10));
+        assertTrue(coordinator.awaitTermination(20000));
+        assertEquals(100, coordinator.getAnalyzedFrameCount());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.sources;
+
+import ch.epfl.leb.alica.analyzers.integrator.Integrator;
+import ch.epfl.leb.alica.controllers.manual.ManualController;
+import ch.epfl.leb.alica.lasers.VirtualLaser;
+import ch.epfl.leb.alica.workers.Coordinator;
+import ch.epfl.leb.alica.workers.FrameTrigger;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class FileImageSourceTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    private static short pixel(int image, int i) {
+        return (short) (1000 * image + i);
+    }
+
+    private static void write(File file, ByteBuffer buffer) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a 16-bit TIFF stack whose second image is stored in two strips
+     * before the first one, with an ImageJ frame interval of 0.25 s.
+     */
+    private static File writeTiff(ByteOrder order) throws IOException {
+        File file = File.createTempFile("alica_replay", ".tif");
+        file.deleteOnExit();
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(order);
+        buffer.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        buffer.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        buffer.putShort((short) 42);
+        buffer.putInt(1024);
+        byte[] description = "ImageJ=1.51\nimages=2\nfinterval=0.25\n\0".getBytes("ISO-8859-1");
+        buffer.position(100);
+        buffer.put(description);
+        // second image, rows 2-3 at 200, rows 0-1 at 300
+        buffer.position(200);
+        for (int i = 2 * WIDTH; i < 4 * WIDTH; i++)
+            buffer.putShort(pixel(1, i));
+        buffer.position(300);
+        for (int i = 0; i < 2 * WIDTH; i++)
+            buffer.putShort(pixel(1, i));
+        // first image in one strip
+        buffer.position(500);
+        for (int i = 0; i < WIDTH * HEIGHT; i++)
+            buffer.putShort(pixel(0, i));
+        // IFDs of the first and the second image
+        writeIfd(buffer, 1024, 2048, new int[] {500}, 
+                new int[] {2 * WIDTH * HEIGHT}, description.length);
+        writeIfd(buffer, 2048, 0, new int[] {300, 200}, 
+                new int[] {4 * WIDTH, 4 * WIDTH}, 0);
+        buffer.position(3000);
+        buffer.putInt(300).putInt(200);
+        buffer.putInt(4 * WIDTH).putInt(4 * WIDTH);
+        write(file, buffer);
+        return file;
+    }
+
+    private static void writeIfd(ByteBuffer buffer, int offset, int next,
+            int[] strip_offsets, int[] strip_counts, int description_length) {
+        buffer.position(offset);
+        buffer.putShort((short) (description_length > 0 ? 7 : 6));
+        putEntry(buffer, 256, 3, 1, WIDTH);
+        putEntry(buffer, 257, 3, 1, HEIGHT);
+        putEntry(buffer, 258, 3, 1, 16);
+        putEntry(buffer, 259, 3, 1, 1);
+        if (description_length > 0)
+            putEntry(buffer, 270, 2, description_length, 100);
+        if (strip_offsets.length == 1) {
+            putEntry(buffer, 273, 4, 1, strip_offsets[0]);
+            putEntry(buffer, 279, 4, 1, strip_counts[0]);
+        } else {
+            // values are stored at 3000
+            putEntry(buffer, 273, 4, 2, 3000);
+            putEntry(buffer, 279, 4, 2, 3008);
+        }
+        buffer.putInt(next);
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+        buffer.putShort((short) tag);
+        buffer.putShort((short) type);
+        buffer.putInt(count);
+        if (type == 3 && count == 1) {
+            buffer.putShort((short) value);
+            buffer.putShort((short) 0);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+
+    /**
+     * Test of reading TIFF stacks of both byte orders.
+     */
+    @Test
+    public void testTiff() throws Exception {
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            FileImageSource source = FileImageSource.openTiff(writeTiff(order));
+            assertEquals(WIDTH, source.getImageWidth());
+            assertEquals(HEIGHT, source.getImageHeight());
+            assertEquals(2, source.getImageCount());
+            assertEquals(250.0, source.getFrameInterval(), 1e-9);
+            source.setFrameInterval(0.0);
+            for (int image = 0; image < 2; image++) {
+                assertFalse(source.isExhausted());
+                short[] pixels = (short[]) source.waitForNewImage(1000000);
+                assertEquals(image, source.getLastImageNumber());
+                for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                    assertEquals(pixel(image, i), pixels[i]);
+                }
+            }
+            assertTrue(source.isExhausted());
+            assertNull(source.waitForNewImage(1000000));
+            source.close();
+        }
+    }
+
+    /**
+     * Test of paced and looped replay of a raw stack.
+     */
+    @Test
+    public void testRawReplay() throws Exception {
+        File file = File.createTempFile("alica_replay", ".raw");
+        file.deleteOnExit();
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 3 * WIDTH * HEIGHT).order(ByteOrder.BIG_ENDIAN);
+        buffer.position(16);
+        for (int image = 0; image < 3; image++) {
+            for (int i = 0; i < WIDTH * HEIGHT; i++)
+                buffer.put((byte) pixel(image, i));
+        }
+        write(file, buffer);
+        FileImageSource source = FileImageSource.openRaw(file, WIDTH, HEIGHT, 8,
+                ByteOrder.BIG_ENDIAN, 16);
+        assertEquals(3, source.getImageCount());
+        source.setLooping(true);
+        source.setFrameInterval(20.0);
+        long start = System.nanoTime();
+        for (int n = 0; n < 6; n++) {
+            byte[] pixels = (byte[]) source.waitForNewImage(1000000000L);
+            assertEquals((byte) pixel(n % 3, 5), pixels[5]);
+        }
+        // the sixth image is due 100 ms after the first
+        assertTrue(System.nanoTime() - start >= 100000000L);
+        assertFalse(source.isExhausted());
+        // the next image is not due within 1 ms
+        assertNull(source.waitForNewImage(1000000));
+        source.close();
+    }
+
+    /**
+     * Test of a headless Coordinator driven by a replayed stack.
+     */
+    @Test
+    public void testHeadlessCoordinator() throws Exception {
+        File file = File.createTempFile("alica_replay", ".raw");
+        file.deleteOnExit();
+        int n_images = 50;
+        ByteBuffer buffer = ByteBuffer.allocate(2 * n_images * WIDTH * HEIGHT)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int image = 0; image < n_images; image++) {
+            for (int i = 0; i < WIDTH * HEIGHT; i++)
+                buffer.putShort(pixel(image, i));
+        }
+        write(file, buffer);
+        FileImageSource source = FileImageSource.openRaw(file, WIDTH, HEIGHT, 16,
+                ByteOrder.LITTLE_ENDIAN, 0);
+        VirtualLaser laser = new VirtualLaser(null, "VIRTUAL", "Power", 0.0, 10.0);
+        Coordinator coordinator = new Coordinator(source, new Integrator(),
+                new ManualController(10.0, 3.0), laser, 100, new FrameTrigger(10));
+        assertTrue(coordinator.awaitTermination(10000));
+        assertFalse(coordinator.isRunning());
+        assertEquals(n_images, coordinator.getAnalyzedFrameCount());
+        // turned off when the replay ended
+        assertEquals(0.0, laser.getLaserPowerCached(), 0.0);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class ControlSchedulerTest {
+
+    /**
+     * Test of skipping the ticks which were missed during an overrun.
+     */
+    @Test
+    public void testSkipMissedTicks() throws InterruptedException {
+        final long period_ns = 10000000L;
+        final long[] tick_times = new long[100];
+        final int[] ticks = new int[1];
+        ControlScheduler scheduler = new ControlScheduler(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(ticks) {
+                    if (ticks[0] < tick_times.length) {
+                        tick_times[ticks[0]] = System.nanoTime();
+                    }
+                    ticks[0]++;
+                }
+                if (ticks[0] == 3) {
+                    // overrun of more than three periods
+                    try {
+                        Thread.sleep(45);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "test scheduler");
+        scheduler.start(0, period_ns);
+        Thread.sleep(300);
+        assertTrue(scheduler.cancel(1000));
+        Thread.sleep(50);
+
+        synchronized(ticks) {
+            assertTrue(ticks[0] > 5);
+            assertEquals(ticks[0], scheduler.getTickCount());
+            assertTrue(scheduler.getSkippedTickCount() >= 4);
+            assertTrue(scheduler.getOverrunHistogram().getCount() >= 1);
+            assertEquals(ticks[0], scheduler.getJitterHistogram().getCount());
+            // the tick after the overrun starts on the period grid, not
+            // immediately after the overrunning tick
+            long gap = tick_times[3] - tick_times[2];
+            assertTrue("gap " + gap, gap >= 4 * period_ns);
+            // run and skipped ticks together cover the period grid of the
+            // 300 ms run, so no ticks were run in a burst to catch up
+            assertTrue(ticks[0] + scheduler.getSkippedTickCount() <= 32);
+        }
+    }
+
+    /**
+     * Test of starting a scheduler twice.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testStartTwice() {
+        ControlScheduler scheduler = new ControlScheduler(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, "test scheduler");
+        try {
+            scheduler.start(1000000000L, 1000000L);
+            scheduler.start(1000000000L, 1000000L);
+        } finally {
+            scheduler.cancel(1000);
+        }
+    }
+
+    /**
+     * Test that cancel waits for a running tick.
+     */
+    @Test
+    public void testCancelWaitsForTick() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final boolean[] finished = new boolean[1];
+        ControlScheduler scheduler = new ControlScheduler(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized(finished) {
+                    finished[0] = true;
+                }
+            }
+        }, "test scheduler");
+        scheduler.start(0, 1000000L);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(scheduler.cancel(1000));
+        synchronized(finished) {
+            assertTrue(finished[0]);
+        }
+        long ticks = scheduler.getTickCount();
+        Thread.sleep(20);
+        assertEquals(ticks, scheduler.getTickCount());
+    }
+
+    /**
+     * Test that cancel does not wait for a blocked tick longer than the
+     * timeout.
+     */
+    @Test
+    public void testCancelTimeout() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ControlScheduler scheduler = new ControlScheduler(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "test scheduler");
+        scheduler.start(0, 1000000L);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        assertFalse(scheduler.cancel(50));
+        long waited_ms = (System.nanoTime() - start) / 1000000L;
+        assertTrue("waited " + waited_ms + " ms", waited_ms >= 40 && waited_ms < 1000);
+        release.countDown();
+        assertTrue(scheduler.cancel(1000));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class FrameQueueTest {
+
+    /**
+     * Oldest frames are discarded when the queue overflows.
+     */
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        FrameQueue<Integer> queue =
+                new FrameQueue<Integer>(3, FrameQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(3, queue.size());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertNull(queue.poll());
+
+        assertEquals(5, queue.getEnqueuedCount());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(3, queue.getDequeuedCount());
+    }
+
+    /**
+     * Newly offered frames are rejected when the queue is full.
+     */
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        FrameQueue<Integer> queue =
+                new FrameQueue<Integer>(3, FrameQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i < 3, queue.offer(i));
+        }
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertNull(queue.poll());
+
+        assertEquals(3, queue.getEnqueuedCount());
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    /**
+     * A blocking producer and a consumer pass all frames in order.
+     */
+    @Test
+    public void testBlockingHandover() throws InterruptedException {
+        final int n_frames = 100000;
+        final FrameQueue<Integer> queue =
+                new FrameQueue<Integer>(4, FrameQueue.OverflowPolicy.BLOCK);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < n_frames; i++) {
+                        queue.offer(i);
+                    }
+                } catch (InterruptedException ex) {
+                    fail("Producer was interrupted.");
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < n_frames; i++) {
+            Integer frame = queue.poll(1, TimeUnit.SECONDS);
+            assertEquals(Integer.valueOf(i), frame);
+        }
+        producer.join();
+
+        assertEquals(n_frames, queue.getEnqueuedCount());
+        assertEquals(n_frames, queue.getDequeuedCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    /**
+     * Waiting on an empty queue times out.
+     */
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        FrameQueue<Integer> queue =
+                new FrameQueue<Integer>(2, FrameQueue.OverflowPolicy.BLOCK);
+        assertNull(queue.poll(5, TimeUnit.MILLISECONDS));
+        queue.offer(7);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * A consumer parked for a long timeout is woken by the producer, and a
+     * producer blocked on a full queue can be interrupted.
+     */
+    @Test
+    public void testWakeup() throws InterruptedException {
+        final FrameQueue<Integer> queue =
+                new FrameQueue<Integer>(1, FrameQueue.OverflowPolicy.BLOCK);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.offer(1);
+                    queue.offer(2);
+                    queue.offer(3);
+                } catch (InterruptedException ex) {
+                    interrupted.set(true);
+                }
+            }
+        };
+        producer.start();
+        long start = System.nanoTime();
+        assertEquals(Integer.valueOf(1), queue.poll(10, TimeUnit.SECONDS));
+        assertTrue((System.nanoTime() - start) < TimeUnit.SECONDS.toNanos(5));
+
+        // the producer blocks on the third frame until it is interrupted
+        Thread.sleep(50);
+        producer.interrupt();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertTrue(interrupted.get());
+        assertEquals(Integer.valueOf(2), queue.poll());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class FrameTriggerTest {
+
+    /**
+     * Test of triggering after a fixed number of frames.
+     */
+    @Test
+    public void testFramesPerTick() {
+        FrameTrigger trigger = new FrameTrigger(3);
+        int ticks = 0;
+        for (int i = 1; i <= 10; i++) {
+            boolean tick = trigger.frameAnalyzed(1000.0);
+            assertEquals(i % 3 == 0, tick);
+            if (tick)
+                ticks++;
+        }
+        assertEquals(3, ticks);
+        // frames since the last tick are forgotten
+        trigger.reset();
+        assertFalse(trigger.frameAnalyzed(1.0));
+        assertFalse(trigger.frameAnalyzed(1.0));
+        assertTrue(trigger.frameAnalyzed(1.0));
+    }
+
+    /**
+     * Test of triggering once enough statistics were accumulated.
+     */
+    @Test
+    public void testStatisticsTarget() {
+        FrameTrigger trigger = new FrameTrigger(5, 10.0);
+        assertFalse(trigger.frameAnalyzed(4.0));
+        assertFalse(trigger.frameAnalyzed(Double.NaN));
+        assertTrue(trigger.frameAnalyzed(6.0));
+        // sparse frames still trigger after the maximum number of frames
+        for (int i = 0; i < 4; i++) {
+            assertFalse(trigger.frameAnalyzed(1.0));
+        }
+        assertTrue(trigger.frameAnalyzed(1.0));
+    }
+
+    /**
+     * Test of argument checks.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroFrames() {
+        new FrameTrigger(0);
+    }
+}
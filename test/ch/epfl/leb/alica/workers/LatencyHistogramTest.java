@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Test of bucketing and percentile estimates.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNs(0.5));
+        assertTrue(Double.isNaN(histogram.getMeanNs()));
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+        assertEquals(0, LatencyHistogram.bucketOf(1999));
+        assertEquals(1, LatencyHistogram.bucketOf(2000));
+        assertEquals(10, LatencyHistogram.bucketOf(1024000));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(1500); // bucket 0
+        }
+        histogram.record(3000000); // bucket 11
+        histogram.record(5000000); // bucket 12
+        assertEquals(100, histogram.getCount());
+        assertEquals(98, histogram.getBucketCount(0));
+        assertEquals(2000, histogram.getPercentileNs(0.5));
+        assertEquals(LatencyHistogram.getBucketUpperBoundNs(11), histogram.getPercentileNs(0.99));
+        // limited by the longest duration
+        assertEquals(5000000, histogram.getPercentileNs(1.0));
+        assertEquals(5000000, histogram.getMaxNs());
+        assertEquals((98 * 1500 + 8000000) / 100.0, histogram.getMeanNs(), 1e-9);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNs());
+    }
+}
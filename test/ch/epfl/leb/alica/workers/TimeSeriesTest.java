@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * Author: Marcel Stefko
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.workers;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Marcel Stefko
+ */
+public class TimeSeriesTest {
+
+    /**
+     * Test of drawing a short history without decimation.
+     */
+    @Test
+    public void testRawPoints() {
+        TimeSeries series = new TimeSeries(8, 2, 4);
+        double[] x = new double[8];
+        double[] y = new double[8];
+        assertEquals(0, series.getPoints(8, x, y));
+        for (int i = 0; i < 5; i++) {
+            series.add(10.0 * i);
+        }
+        series.add(Double.NaN);
+        assertEquals(0, series.selectLevel(8));
+        assertEquals(5, series.getPoints(8, x, y));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, x[i], 0.0);
+            assertEquals(10.0 * i, y[i], 0.0);
+        }
+    }
+
+    /**
+     * Test of min/max decimation of a long history.
+     */
+    @Test
+    public void testDecimation() {
+        TimeSeries series = new TimeSeries(16, 4, 6);
+        double[] x = new double[16];
+        double[] y = new double[16];
+        // a single spike among 1000 values
+        for (int i = 0; i < 1000; i++) {
+            series.add((i == 567) ? 100.0 : 1.0);
+        }
+        assertEquals(1000, series.getCount());
+        // 8 buckets of 256 values cover the history in 16 points
+        assertEquals(4, series.selectLevel(16));
+        int n = series.getPoints(16, x, y);
+        assertEquals(8, n);
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, y[i]);
+            assertTrue(x[i] >= 0.0 && x[i] < 1000.0);
+            if (i > 0)
+                assertTrue(x[i] >= x[i - 1]);
+        }
+        assertEquals(100.0, max, 0.0);
+        // open bucket of values 768 to 999
+        assertEquals(883.5, x[n - 1], 0.0);
+        // history longer than the coarsest level shows its recent part
+        TimeSeries short_series = new TimeSeries(4, 2, 2);
+        for (int i = 0; i < 100; i++) {
+            short_series.add(i);
+        }
+        n = short_series.getPoints(4, x, y);
+        assertEquals(4, n);
+        assertEquals(96.0, y[0], 0.0);
+        assertEquals(99.0, y[3], 0.0);
+        assertEquals(98.5, x[3], 0.0);
+        series.clear();
+        assertEquals(0, series.getPoints(16, x, y));
+    }
+}